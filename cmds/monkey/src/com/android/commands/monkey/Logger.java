@@ -29,21 +29,17 @@ public abstract class Logger {
 
     public static Logger out = new Logger() { //Logger类持有的Logger对象
         public void println(String s) {
-            if (stdout) { // 说明可在控制台调试（标准输出流）
-                System.out.println(s);
-            }
-            if (logcat) { // 说明可用logcat调试
-                Log.i(TAG, s);
+            MonkeyAsyncLogger async = sAsync;
+            if (async == null || !async.println(false, s)) { //异步时由写线程输出
+                printOut(s);
             }
         }
     };
     public static Logger err = new Logger() {
         public void println(String s) { //Logger类持有的另一个Logger对象
-            if (stdout) {
-                System.err.println(s);
-            }
-            if (logcat) {
-                Log.w(TAG, s);
+            MonkeyAsyncLogger async = sAsync;
+            if (async == null || !async.println(true, s)) {
+                printErr(s);
             }
         }
     };
@@ -51,6 +47,8 @@ public abstract class Logger {
     public static boolean stdout = true;
     public static boolean logcat = true;
 
+    private static volatile MonkeyAsyncLogger sAsync; //不为null时，日志由写线程异步输出
+
     public abstract void println(String s);
 
     /**
@@ -63,4 +61,47 @@ public abstract class Logger {
         err.println(msg); //输出文本信息
         err.println(Log.getStackTraceString(t)); //输出线程堆栈
     }
+
+    /**
+     * Routes all logging through an async logger, or back to direct printing when null.
+     * The previous async logger is closed after writing out what it still holds.
+     */
+    public static void setAsync(MonkeyAsyncLogger async) {
+        MonkeyAsyncLogger old = sAsync;
+        sAsync = async;
+        if (old != null) {
+            old.close();
+        }
+    }
+
+    /**
+     * @return the async logger, or null if lines are printed directly
+     */
+    public static MonkeyAsyncLogger getAsync() {
+        return sAsync;
+    }
+
+    /**
+     * Prints a line to stdout and logcat right away, on the calling thread.
+     */
+    static void printOut(String s) {
+        if (stdout) { // 说明可在控制台调试（标准输出流）
+            System.out.println(s);
+        }
+        if (logcat) { // 说明可用logcat调试
+            Log.i(TAG, s);
+        }
+    }
+
+    /**
+     * Prints a line to stderr and logcat right away, on the calling thread.
+     */
+    static void printErr(String s) {
+        if (stdout) {
+            System.err.println(s);
+        }
+        if (logcat) {
+            Log.w(TAG, s);
+        }
+    }
 }
@@ -31,21 +31,21 @@ import android.os.RemoteException;
 import android.os.ServiceManager;
 import android.os.StrictMode;
 import android.os.SystemClock;
+import android.os.UserHandle;
+import android.view.Display;
 import android.view.IWindowManager;
 import android.view.Surface;
 
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.Writer;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.Paths;
 import java.util.Arrays;
 import java.util.ArrayList;
 import java.util.HashSet;
@@ -107,6 +107,9 @@ public class Monkey {
     /** Send no events. Use with long throttle-time to watch user operations */
     private boolean mSendNoEvents; //任何事件都不发送，给用户看的，debug用的
 
+    /** Generate events but don't inject them, to measure the event source alone. */
+    private boolean mSendNoInject; //只生成事件不注入，用于测量事件源的性能
+
     /** This is set when we would like to abort the running of the monkey. */
     private boolean mAbort; //标记monkey进程,程序是否中断的标志位
 
@@ -166,11 +169,23 @@ public class Monkey {
     /** Failure process name */
     private String mReportProcessName; //用于存储上报进程的名字,Monkey对象持有
 
+    /** Process of the last ANR; its captures are only deduplicated against that process. */
+    private String mAnrProcessName;
+
     /**
      * This is set by the ActivityController thread to request a "procrank"
      */
     private boolean mRequestProcRank = false;
 
+    /** Identical diagnostics requested within this window are captured once. */
+    private static final long DIAGNOSTICS_DEDUPE_MS = 10 * 1000;
+
+    /** Captures the requested diagnostics without blocking event injection. */
+    private final MonkeyDiagnostics mDiagnostics = new MonkeyDiagnostics();
+
+    /** Set once the release of a waiting watchdog callback has been queued. */
+    private boolean mWatchdogReleaseQueued = false; //已安排在采集完成后唤醒watchdog回调
+
     /** Kill the process after a timeout or crash. */
     private boolean mKillProcessAfterError; //用于标记AppCrash、ANR错误后，是否需要AMS干掉进程（不然会重启？）
 
@@ -198,6 +213,66 @@ public class Monkey {
     /** Whether to randomize each throttle (0-mThrottle ms) inserted between events. */
     boolean mRandomizeThrottle = false; //是否需要0-xx毫秒的随机延迟时间
 
+    /**
+     * Number of events generated ahead of injection on a separate thread, 0 to generate
+     * on the injection thread.
+     */
+    int mPipelineDepth = 0;
+
+    /** How often to print the injection metrics while running, 0 for only at the end. */
+    private long mMetricsInterval = 0;
+
+    /** Injection metrics of this run. */
+    private MonkeyMetrics mMetrics; //注入耗时、速率等指标
+
+    /** Wait for every activity launch and report its latency per component. */
+    private boolean mLaunchStats = false;
+
+    /** Launch latency of this run, null unless --launch-stats was given. */
+    private MonkeyLaunchStats mLaunchLatency;
+
+    /** File caching the main activities and permissions found at startup, null for none. */
+    private String mStartupCacheFile;
+
+    /** Discovery results of a previous run, null unless --startup-cache was given. */
+    private MonkeyStartupSnapshot mStartupSnapshot;
+
+    /** Longest a diagnostic command such as bugreport may run. */
+    private static final long REPORT_TIMEOUT_MS = 10 * 60 * 1000;
+
+    /** How often to sample per-frame render times, 0 to not sample them. */
+    private long mFrameStatsInterval = 0;
+
+    /** Background frame time sampler, null unless --frame-stats was given. */
+    private MonkeyFrameSampler mFrameSampler;
+
+    /** CSV file for the memory time series of the allowed packages, null for none. */
+    private String mMemorySampleFile;
+
+    /** How often to sample the memory of the allowed packages. */
+    private long mMemorySampleInterval = 5000;
+
+    /** Background /proc memory sampler, null unless --mem-sample was given. */
+    private MonkeyMemorySampler mMemorySampler;
+
+    /** Displays to send random touch gestures to, the default display if empty. */
+    private ArrayList<Integer> mDisplayIds = new ArrayList<Integer>();
+
+    /** Use the alias method to pick random event types instead of the cumulative walk. */
+    boolean mAliasSampler = false;
+
+    /** Weight random events by the new activities they reach. */
+    private boolean mAdaptive = false;
+
+    /** File to record the coverage feedback of --adaptive to, null for none. */
+    private String mAdaptiveLogFile;
+
+    /** Coverage feedback of an earlier run to replay instead of the live one, null for none. */
+    private String mAdaptiveReplayFile;
+
+    /** Adaptive event weights, set once the random source exists; read by binder threads. */
+    private volatile MonkeyAdaptiveWeights mAdaptiveWeights;
+
     /** The number of iterations **/
     int mCount = 1000; //默认的事件数量
 
@@ -234,6 +309,47 @@ public class Monkey {
     /** a filename to the setup script (if any) */
     private String mSetupFileName = null; //用于记录初始化的文件名，作为脚本文件
 
+    /** a text script to compile and where to write it, nothing else is run if set */
+    private String mCompileScriptIn = null;
+
+    private String mCompileScriptOut = null;
+
+    /** Log through a writer thread instead of printing on the logging thread. */
+    private boolean mAsyncLog; //异步输出日志
+
+    /** A binary log of every injected key and motion event, implies mAsyncLog. */
+    private String mEventLogFile = null;
+
+    /** A binary event log to print as text, nothing else is run if set */
+    private String mDecodeEventLogFile = null;
+
+    /** Where the run is checkpointed, see {@link MonkeyCheckpoint}. */
+    private String mCheckpointFile = null;
+
+    /** Events between two checkpoints. */
+    private long mCheckpointInterval = 10000;
+
+    /** A checkpoint to continue from. */
+    private String mResumeFile = null;
+
+    private MonkeyCheckpoint mResumeState; //--resume读取的检查点，在事件循环开始后不再使用
+
+    /** A script that reproduces a crash, to shrink with {@link MonkeyMinimizer}. */
+    private String mMinimizeScriptIn = null;
+
+    private String mMinimizeScriptOut = null;
+
+    /** How long a trial waits for the crash after its last event. */
+    private static final long MINIMIZE_SETTLE_MS = 3000;
+
+    /** Set when a crash matching mMatchDescription is reported, guarded by this. */
+    private boolean mCrashMatched = false; //最小化时用于判断本次试验是否复现了崩溃
+
+    /** Write generated events to this script instead of injecting them. */
+    private String mExportEventsFile = null;
+
+    private MonkeyEventExporter mEventExporter; //导出事件时不注入，也不等待间隔
+
     /** filenames of the script (if any) */
     private ArrayList<String> mScriptFileNames = new ArrayList<String>(); //用于保存每个脚本文件的名字，一个动态数组
 
@@ -244,9 +360,8 @@ public class Monkey {
 
     private static final String TOMBSTONE_PREFIX = "tombstone_"; //native崩溃生成的前缀文件名
 
-    private static int NUM_READ_TOMBSTONE_RETRIES = 5; //表示tombsone文件是否正在写入的重试次数
-
-    private HashSet<Long> mTombstones = null; //持有的用于记录native崩溃文件的情况，Long是tonmb文件的修改时间，在内存中持有对象，当然是为了记录了，赞
+    /** Watches TOMBSTONES_PATH while the monkey runs, with --monitor-native-crashes. */
+    private MonkeyTombstoneWatcher mTombstoneWatcher; //通过inotify获取新产生的tombstone文件
 
     float[] mFactors = new float[MonkeySourceRandom.FACTORZ_COUNT]; //创建一个float数组对象，存放12个元素，每个元素值表示某个事件的比例，不同的下标代表不同的事件类型
 
@@ -286,6 +401,10 @@ public class Monkey {
                         + intent + " in package " + pkg); //输出：同意或者拒绝的Intent信息、以及包信息
                 StrictMode.setThreadPolicy(savedPolicy);
             }
+            MonkeyAdaptiveWeights adaptive = mAdaptiveWeights;
+            if (adaptive != null && allow) {
+                adaptive.noteActivity(pkg, intent.getComponent());
+            }
             currentPackage = pkg; //将AMS启动的包名保存到currentPackage中，Monkey即可知道正在启动的是哪个应用（个别需求会用到）
             currentIntent = intent; //将启动Activity的Intent对象也保存到这里一个，Monkey即可知道目前启动的Activity，用的哪个Intent对象（个别需求会用到）
             return allow; //返回值表示是否允许AMS启动Activity
@@ -342,6 +461,10 @@ public class Monkey {
                             + " resume of package " + pkg);
                 }
             }
+            MonkeyAdaptiveWeights adaptive = mAdaptiveWeights;
+            if (adaptive != null && allow) {
+                adaptive.noteActivity(pkg, null);
+            }
             currentPackage = pkg;//记录当前屏幕中启动应用的包名
             StrictMode.setThreadPolicy(savedPolicy); //还是严格模式
             return allow; //返回Activity的是否允许启动……
@@ -374,6 +497,10 @@ public class Monkey {
                     || shortMsg.contains(mMatchDescription)
                     || longMsg.contains(mMatchDescription)
                     || stackTrace.contains(mMatchDescription)) { //当没有设置匹配的堆栈信息时、或者短信息包含指定的内容、或者长消息包括指定的内容、或者堆栈信息包含指定的内容，会走这里
+                synchronized (Monkey.this) {
+                    mCrashMatched = true;
+                    Monkey.this.notifyAll(); //唤醒等待试验结果的主线程
+                }
                 if (!mIgnoreCrashes || mRequestBugreport) { //如果没有设置忽略崩溃，或者必须得需要bugreport，会走这里
                     synchronized (Monkey.this) { //线程间同步，appCrashed（）方法在Monkey进程自己的Binder线程池中的某个线程中运行，这样Binder线程池里的线程会与Monkey的主线程竞争同一个对象锁（线程间同步）
                                                  //Monkey主线程，每循环一次才释放一次Monkey对象锁，如果Monkey主线程一直持有Monkey对象不放，则Binder线程池里的线程会一直被阻塞，等待这个Monkey对象锁被释放，这种情况下，AMS线程就会被这个Binder线程池中的线程影响
@@ -422,6 +549,7 @@ public class Monkey {
                     mRequestAnrTraces = true;  //修改共享变量（共享内存），表示需要请求ANR的Trace
                     mRequestDumpsysMemInfo = true; //修改共享变量，表示需要输出内存信息
                     mRequestProcRank = true; //修改共享变量，表示请求
+                    mAnrProcessName = processName;
                     if (mRequestBugreport) { //如果命令行参数中，执行了需要bugreport时
                         mRequestAnrBugreport = true; //修改共享变量，表示需要请求anr的bugreport
                         mReportProcessName = processName; //修改共享变量，保存上报的进程名
@@ -472,6 +600,89 @@ public class Monkey {
         }
     }
 
+    /**
+     * Queues the captures requested by the ActivityController callbacks on the
+     * diagnostics thread and clears the requests. Repeats for the same process within
+     * {@link #DIAGNOSTICS_DEDUPE_MS} are captured once. Must be called with the lock on
+     * this held; it only queues, so the callbacks are never blocked by a capture.
+     * <p>
+     * A waiting watchdog callback is released once every capture queued before it,
+     * including the watchdog bugreport, has completed.
+     */
+    private void queueRequestedDiagnostics() {
+        String anrKey = " " + mAnrProcessName; //只合并同一进程的重复采集
+        if (mRequestProcRank) {
+            mRequestProcRank = false;
+            mDiagnostics.submit("procrank" + anrKey, DIAGNOSTICS_DEDUPE_MS, new Runnable() {
+                @Override
+                public void run() {
+                    reportProcRank();
+                }
+            });
+        }
+        if (mRequestAnrTraces) {
+            mRequestAnrTraces = false;
+            mDiagnostics.submit("anr traces" + anrKey, DIAGNOSTICS_DEDUPE_MS, new Runnable() {
+                @Override
+                public void run() {
+                    reportAnrTraces();
+                }
+            });
+        }
+        if (mRequestAnrBugreport) {
+            mRequestAnrBugreport = false;
+            queueBugreport("anr_" + mReportProcessName + "_");
+        }
+        if (mRequestWatchdogBugreport) {
+            mRequestWatchdogBugreport = false;
+            Logger.out.println("Print the watchdog report");
+            queueBugreport("anr_watchdog_");
+        }
+        if (mRequestAppCrashBugreport) {
+            mRequestAppCrashBugreport = false;
+            queueBugreport("app_crash" + mReportProcessName + "_");
+        }
+        if (mRequestPeriodicBugreport) {
+            mRequestPeriodicBugreport = false;
+            queueBugreport("Bugreport_");
+        }
+        if (mRequestDumpsysMemInfo) {
+            mRequestDumpsysMemInfo = false;
+            mDiagnostics.submit("meminfo" + anrKey, DIAGNOSTICS_DEDUPE_MS, new Runnable() {
+                @Override
+                public void run() {
+                    reportDumpsysMemInfo();
+                }
+            });
+        }
+        if (mWatchdogWaiting && !mWatchdogReleaseQueued) {
+            mWatchdogReleaseQueued = true;
+            mDiagnostics.runAfterPending(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (Monkey.this) {
+                        mWatchdogReleaseQueued = false;
+                        mWatchdogWaiting = false;
+                        Monkey.this.notifyAll(); //采集完成后才唤醒watchdog回调，系统不会在bugreport完成前被杀掉
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Queues a bugreport. Bugreports with the same name are captured once per
+     * {@link #DIAGNOSTICS_DEDUPE_MS}, so repeated ANRs of one process produce one report.
+     */
+    private void queueBugreport(final String reportName) {
+        mDiagnostics.submit("bugreport " + reportName, DIAGNOSTICS_DEDUPE_MS, new Runnable() {
+            @Override
+            public void run() {
+                getBugreport(reportName);
+            }
+        });
+    }
+
     /**
      * Run the procrank tool to insert system status information into the debug
      * report.
@@ -485,11 +696,11 @@ public class Monkey {
     /**
      * Dump the most recent ANR trace. Wait about 5 seconds first, to let the
      * asynchronous report writing complete.
-     * 生成最近的ANR trace，先等5秒，让异步的anr报告先写入文件（Monkey主线程会等待5秒）
+     * 生成最近的ANR trace，先等5秒，让异步的anr报告先写入文件（在诊断线程中等待，不影响事件注入）
      */
     private void reportAnrTraces() {
         try {
-            Thread.sleep(5 * 1000); //这是为了等待anr的trace文件生成！Monkey进程（主线程）等待5s
+            Thread.sleep(5 * 1000); //这是为了等待anr的trace文件生成！诊断线程等待5s
         } catch (InterruptedException e) {
         }
 
@@ -517,8 +728,8 @@ public class Monkey {
      * Run "dumpsys meminfo"
      * <p>
      * NOTE: You cannot perform a dumpsys call from the ActivityController
-     * callback, as it will deadlock. This should only be called from the main
-     * loop of the monkey.
+     * callback, as it will deadlock. This should only be called from the
+     * diagnostics thread.
      * 报告名称meminfo
      * 可执行文件为dumpsys meminfo，当然是dumpsys命令
      */
@@ -530,62 +741,42 @@ public class Monkey {
      * Print report from a single command line.
      * 从单个命令行中的命令执行，并输出一个持久化的报告
      * <p>
-     * TODO: Use ProcessBuilder & redirectErrorStream(true) to capture both
-     * streams (might be important for some command lines)
-     * 在此方法中会创建一个子进程，且执行的线程（多数是Monkey主线程）会等待子进程完成工作后才会继续执行，这又涉及到进程间同步的知识点
+     * The command runs on the {@link MonkeyShell} worker of the calling thread instead of
+     * a process forked from the monkey; only its stdout is reported.
      * @param reportName Simple tag that will print before the report and in
      *            various annotations. 报告名称（持久化文件）
      * @param command Command line to execute. 调用的可执行文件（外部程序）
      */
     private void commandLineReport(String reportName, String command) {
-        Logger.err.println(reportName + ":"); //Monkey主进程（主线程）向标准错误流中输入报告名和一个冒号
-        Runtime rt = Runtime.getRuntime(); //获取运行时对象，但是却没有使用这个对象，不应该啊？大佬也会犯错？
-        Writer logOutput = null; //输出字符流对象（由内存到磁盘时使用）
+        Logger.err.println(reportName + ":"); //向标准错误流中输入报告名和一个冒号
 
+        OutputStream sink = null;
         try {
-            // Process must be fully qualified here because android.os.Process
-            // is used elsewhere 这段话该怎么翻译？Runtime对象的exec（）方法执行程序后会返回一个Process对象，表示子进程
-            java.lang.Process p = Runtime.getRuntime().exec(command); //替换命令，在新的子进程中执行某个程序，返回一个Process对象表示子进程（exec会执行内核的exec系统调用）
-
             if (mRequestBugreport) { //检查命令行参数中是否传入了需要使用bugreport
-                logOutput =
-                        new BufferedWriter(new FileWriter(new File(Environment //创建可缓存的输出字符流
-                                .getLegacyExternalStorageDirectory(), reportName), true)); //创建一个通道，从内存中向reportName命名的文件中写入日志，这个文件的路径是Environment的静态方法getLegacyExternalStorageDirectory（）返回的路径
-                                //默认的内存缓冲区是8192个字节
+                // command output -> report file, byte for byte without decoding lines
+                sink = new BufferedOutputStream(new FileOutputStream(new File(
+                        Environment.getLegacyExternalStorageDirectory(), reportName), true));
+            } else {
+                // command output -> System.err
+                sink = new MonkeyShell.LoggerSink();
             }
-            // pipe everything from process stdout -> System.err，管道通常获取到的数据是进程的标准输出、标准错误？（这里使用了管道）Monkey主进程作为获取输入流的进程  即 子进程 | Monkey进程
-            InputStream inStream = p.getInputStream(); //获取子进程的标准输入流对象（将子进程的标准输出信息、标准错误读取到内存中）……，这里可以获取到的是子进程的标准输出与标准错误数据，我猜测Monkey主进程会等待子进程完成工作，为啥InputStream对象可以这样？
-            InputStreamReader inReader = new InputStreamReader(inStream); //将输入字节流，转成输入字符流
-            BufferedReader inBuffer = new BufferedReader(inReader); //在当前进程的内存中创建一个BufferedReader对象作为缓冲区，用于缓存标准输入字符流中的数据（这里的意思是标准输入的数据，是从别的子进程获取到的，相当于中间建立了一个管道）
-            String s; //创建一个String局部变量
-            while ((s = inBuffer.readLine()) != null) { //一行一行的读缓冲区中的数据，保存到局部变量s中，直到没有数据为止（如果管道里真的没有数据呢？）没有数据获取到的字符串为null
-                if (mRequestBugreport) { //如果需要执行Bugreport命令保存到文件中，命令行控制
-                    try {
-                        // When no space left on the device the write will 如果没有磁盘控件，将会报IOException
-                        // occurs an I/O exception, so we needed to catch it
-                        // and continue to read the data of the sync pipe to
-                        // aviod the bugreport hang forever.
-                        logOutput.write(s); //把从子进程中执行的bugreport程序中的获取到的标准输出与标准错误，从内存写入到文件中
-                        logOutput.write("\n"); //每写完一行字符串，再写个换行符
-                    } catch (IOException e) { //发生IO异常，直接捕获（磁盘没有空间时，会这样）
-                        while(inBuffer.readLine() != null) {} //处理也比较粗暴，先不停的一行一行的读取，直到没有内容……没有磁盘空间，也要在内存中把数据处理完
-                        Logger.err.println(e.toString()); //最后的monkey主线程会在标准错误流中打印异常的堆栈信息
-                        break;
-                    }
-                } else {
-                    Logger.err.println(s); //这里不需要将bugreport的内容保存在文件中，只是在monkey的标准错误流中输出，看来bugreport程序也时cli程序，仅向标准输出、标准错误中写入内容
-                }
-            } //读取完子进程的标准输出与标准错误，或者磁盘没有空间，循环结束
-
-            int status = p.waitFor(); //在这里，Monkey主进程（主线程）会做等待（被阻塞），等待子进程执行的命令行程序（可执行文件）结束，当然不仅仅是bugreport（进程间同步），还要获取子进程的退出状态码
-            Logger.err.println("// " + reportName + " status was " + status); //子进程执行完成后，Monkey主进程向标准错误中写入报告日志的文件名，以及打印子进程的退出状态码
-
-            if (logOutput != null) { //如果存在输出字符流对象
-                logOutput.close(); //关闭输出字符串流对象（释放内存）
+            int status = MonkeyShell.getInstance().run(command, sink, REPORT_TIMEOUT_MS);
+            if (status == MonkeyShell.STATUS_TIMEOUT) {
+                Logger.err.println("// " + reportName + " timed out");
+            } else {
+                Logger.err.println("// " + reportName + " status was " + status); //打印命令的退出状态码
             }
-        } catch (Exception e) { //捕获到任何其他的异常
+        } catch (IOException e) { //报告文件无法创建
             Logger.err.println("// Exception from " + reportName + ":");
-            Logger.err.println(e.toString()); //直接将字符串内容输出到标准错误流中
+            Logger.err.println(e.toString());
+        } finally {
+            if (sink != null) {
+                try {
+                    sink.close();
+                } catch (IOException e) {
+                    Logger.err.println(e.toString());
+                }
+            }
         }
     }
 
@@ -632,6 +823,7 @@ public class Monkey {
 
         Logger.err.println("args: " + Arrays.toString(args)); //向标准错误流，输出命令行参数信息
         int resultCode = (new Monkey()).run(args); //创建Monkey对象,调用run（）方法，将数组对象（命令行参数）传进去，退出状态码会保存在resultCode中
+        Logger.setAsync(null); //输出异步日志中剩余的内容
         System.exit(resultCode); //退出虚拟机进程，返回退出状态码，进程结束
     }
 
@@ -671,6 +863,33 @@ public class Monkey {
             return -1; //如果命令行参数发生错误，返回退出状态码-1，这个退出状态码，shell可以拿到
         }
 
+        if (mCompileScriptIn != null) { //只编译脚本，不运行monkey
+            return MonkeyScriptCompiler.compile(mCompileScriptIn, mCompileScriptOut) ? 0 : -1;
+        }
+
+        if (mDecodeEventLogFile != null) { //只输出二进制事件日志，不运行monkey
+            return MonkeyEventLogDecoder.decode(mDecodeEventLogFile, mVerbose > 0) ? 0 : -1;
+        }
+
+        if (mAsyncLog || mEventLogFile != null) {
+            try {
+                Logger.setAsync(new MonkeyAsyncLogger(mEventLogFile));
+            } catch (IOException e) {
+                Logger.err.println("** Error: Unable to open event log " + mEventLogFile
+                        + ": " + e);
+                return -1;
+            }
+        }
+
+        if (mExportEventsFile != null) {
+            try {
+                mEventExporter = new MonkeyEventExporter(mExportEventsFile, mCount);
+            } catch (IOException e) {
+                Logger.err.println("** Error: Unable to open " + mExportEventsFile + ": " + e);
+                return -1;
+            }
+        }
+
         if (!loadPackageLists()) { //检查并处理文件中持久的包名（白名单文件、黑名单文件）看来除了命令行指定包名，还可以指定文件
             return -1;
         }
@@ -681,6 +900,21 @@ public class Monkey {
             mMainCategories.add(Intent.CATEGORY_MONKEY); //说明你可以自己写一个Category为Monkey的Activity供启动？
         }
 
+        if (mResumeFile != null) {
+            mResumeState = MonkeyCheckpoint.read(mResumeFile);
+            if (mResumeState == null) {
+                return -1;
+            }
+            mSeed = mResumeState.mSeed; //继续原来的事件流
+            mDroppedKeyEvents = mResumeState.mDroppedKeyEvents;
+            mDroppedPointerEvents = mResumeState.mDroppedPointerEvents;
+            mDroppedTrackballEvents = mResumeState.mDroppedTrackballEvents;
+            mDroppedFlipEvents = mResumeState.mDroppedFlipEvents;
+            mDroppedRotationEvents = mResumeState.mDroppedRotationEvents;
+            Logger.out.println(":Resuming at event " + mResumeState.mEventCounter + " from "
+                    + mResumeFile);
+        }
+
         if (mSeed == 0) { //随机种子没有设置时，使用时间戳+当前对象的hashCode值相加得到一个新的随机种子值
             mSeed = System.currentTimeMillis() + System.identityHashCode(this);
         }
@@ -704,19 +938,44 @@ public class Monkey {
             return -3; //系统服务出错，会返回-3
         }
 
+        if (mStartupCacheFile != null) {
+            try {
+                long key = MonkeyStartupSnapshot.computeKey(mPm, ActivityManager.getCurrentUser(),
+                        mMainCategories, mPermissionTargetSystem);
+                mStartupSnapshot = MonkeyStartupSnapshot.load(mStartupCacheFile, key);
+            } catch (RemoteException e) {
+                Logger.err.println("** Failed talking with package manager!");
+                return -3;
+            }
+        }
+
         if (!getMainApps()) { //查找系统中所有可启动的主Activity（每个App对应一个）
             return -4; //没有找到可用的主Activity，返回-4
         }
 
-        mRandom = new Random(mSeed); //创建Random对象……随机种子传给它,伪随机……
+        // a resumed run draws from the Random as it was at the checkpoint
+        mRandom = mResumeState != null ? mResumeState.mRandom : new Random(mSeed); //创建Random对象……随机种子传给它,伪随机……
 
         //初始化Monkey对象持有的mEventSource，注意优先走单个脚本文件、然后是多个脚本文件，接着是网络、最后才是命令行的方式，同时指定时的优先级就是这样……
 
-        if (mScriptFileNames != null && mScriptFileNames.size() == 1) { //当指定1个脚本文件时，会走这里
+        if (mMinimizeScriptIn != null) {
+            // every trial replays its own script, see runMinimizer()
+            mEventSource = new MonkeySourceScript(mRandom, mMinimizeScriptIn, mThrottle,
+                    mRandomizeThrottle, mProfileWaitTime, mDeviceSleepTime);
+            mEventSource.setVerbose(mVerbose);
+            mCountEvents = false;
+        } else if (mScriptFileNames != null && mScriptFileNames.size() == 1) { //当指定1个脚本文件时，会走这里
             // script mode, ignore other options
             mEventSource = new MonkeySourceScript(mRandom, mScriptFileNames.get(0), mThrottle,
                     mRandomizeThrottle, mProfileWaitTime, mDeviceSleepTime); //创建MonkeySourceScript对象，mEventSource指向此对象
             mEventSource.setVerbose(mVerbose); //设置MonkeySourceScript的监控等级，同Monkey对象持有的mVerbose保持一致
+            if (mResumeState != null) {
+                if (mResumeState.mSource != MonkeyCheckpoint.SOURCE_SCRIPT) {
+                    Logger.err.println("** Error: " + mResumeFile + " is not a script checkpoint");
+                    return -1;
+                }
+                ((MonkeySourceScript) mEventSource).restoreState(mResumeState);
+            }
 
             mCountEvents = false; //无需计算事件的次数，使用脚本文件时，无需计算事件数
         } else if (mScriptFileNames != null && mScriptFileNames.size() > 1) { //当指定多个脚本文件时，会走这里
@@ -757,14 +1016,92 @@ public class Monkey {
                 }
             }
 
-            // in random mode, we start with a random activity，随机模式中，启动一个随机的Activity
-            ((MonkeySourceRandom) mEventSource).generateActivity(); //生成Activity事件（首先启动Activity，这个没毛病）
+            if (mAliasSampler && !mAdaptive) {
+                ((MonkeySourceRandom) mEventSource).setEventTypeSampler(new MonkeyAliasSampler());
+            }
+            if (mAdaptive) {
+                if (mResumeState != null) {
+                    // the bandit state is not in the checkpoint
+                    Logger.err.println("** Error: --adaptive cannot be used with --resume");
+                    return -1;
+                }
+                try {
+                    mAdaptiveWeights = new MonkeyAdaptiveWeights(mMainApps, mAdaptiveLogFile,
+                            mAdaptiveReplayFile);
+                } catch (IOException e) {
+                    Logger.err.println("** Error: Unable to open adaptive feedback: " + e);
+                    return -1;
+                }
+                ((MonkeySourceRandom) mEventSource).setAdaptiveWeights(mAdaptiveWeights);
+            }
+            if (mStartupSnapshot != null) {
+                ((MonkeySourceRandom) mEventSource).setStartupSnapshot(mStartupSnapshot);
+            }
+            if (!mDisplayIds.isEmpty()) {
+                int[] displayIds = new int[mDisplayIds.size()];
+                for (int i = 0; i < displayIds.length; i++) {
+                    displayIds[i] = mDisplayIds.get(i);
+                }
+                ((MonkeySourceRandom) mEventSource).setDisplayIds(displayIds);
+            }
+
+            if (mResumeState != null) {
+                if (mResumeState.mSource != MonkeyCheckpoint.SOURCE_RANDOM) {
+                    Logger.err.println("** Error: " + mResumeFile + " is not a random checkpoint");
+                    return -1;
+                }
+                // the first activity was drawn from the Random before the checkpoint, bring
+                // an app to the front without drawing from it
+                ((MonkeySourceRandom) mEventSource).restoreState(mResumeState);
+                new MonkeyActivityEvent(mMainApps.get(0)).injectEvent(mWm, mAm, mVerbose);
+            } else {
+                // in random mode, we start with a random activity，随机模式中，启动一个随机的Activity
+                ((MonkeySourceRandom) mEventSource).generateActivity(); //生成Activity事件（首先启动Activity，这个没毛病）
+            }
         }
 
         // validate source generator 检查事件比例，如果使用的是MoneySourceRandom，则这里会走MonkeySourceRandom的计算规则（此规则定义在接口MonkeyEventSource，不同的事件源可以修改计算规则）
         if (!mEventSource.validate()) {
             return -5; //事件比例错误，直接返回退出状态码为-5
         }
+        if (mStartupSnapshot != null) {
+            mStartupSnapshot.writeIfChanged(); //权限信息在validate()中查询，之后再保存
+        }
+
+        if (mCheckpointFile != null && !(mEventSource instanceof MonkeySourceRandom)
+                && !(mEventSource instanceof MonkeySourceScript)) {
+            Logger.err.println("** Warning: --checkpoint only applies to random events and a"
+                    + " single script, ignoring");
+            mCheckpointFile = null;
+        }
+        if (mPipelineDepth > 0 && mCheckpointFile != null) {
+            // events generated ahead would be missing from the checkpointed Random state
+            Logger.err.println("** Warning: --pipeline-depth is ignored with --checkpoint");
+        } else if (mPipelineDepth > 0 && mAdaptiveWeights != null) {
+            // categories drawn ahead would be credited with discoveries of earlier events
+            Logger.err.println("** Warning: --pipeline-depth is ignored with --adaptive");
+        } else if (mPipelineDepth > 0 && mFactors[MonkeySourceRandom.FACTOR_ROTATION] != 0) {
+            // gestures generated ahead of a rotation would use the old display size
+            Logger.err.println("** Warning: --pipeline-depth is ignored with --pct-rotation");
+        } else if (mPipelineDepth > 0) {
+            if (mEventSource instanceof MonkeySourceRandom) {
+                // Generate random events on their own thread so that the main loop only injects.
+                mEventSource = new MonkeyEventPipeline(mEventSource, mPipelineDepth);
+            } else {
+                Logger.err.println("** Warning: --pipeline-depth only applies to random events,"
+                        + " ignoring");
+            }
+        }
+
+        if (mMemorySampleFile != null) {
+            try {
+                mMemorySampler = new MonkeyMemorySampler(mAm, mMemorySampleInterval,
+                        mMemorySampleFile);
+            } catch (IOException e) {
+                Logger.err.println("** Error: Unable to open " + mMemorySampleFile + ": " + e);
+                return -1;
+            }
+        }
 
         // If we're profiling, do it immediately before/after the main monkey
         // loop
@@ -774,51 +1111,87 @@ public class Monkey {
             signalPersistentProcesses();
         }
 
+        // Cached display sizes are dropped whenever a watched display rotates, and
+        // whenever any display is resized or removed.
+        MonkeyDisplayCache.watchDisplays();
+        MonkeyDisplayCache.watch(mWm, Display.DEFAULT_DISPLAY);
+        for (int displayId : mDisplayIds) {
+            if (displayId != Display.DEFAULT_DISPLAY) {
+                MonkeyDisplayCache.watch(mWm, displayId);
+            }
+        }
+
+        if (mMonitorNativeCrashes) {
+            // tombstones written before this point are not reported
+            mTombstoneWatcher = new MonkeyTombstoneWatcher(TOMBSTONES_PATH, TOMBSTONE_PREFIX);
+            mTombstoneWatcher.startWatching();
+        }
+        mMetrics = new MonkeyMetrics(mMetricsInterval, mDiagnostics);
+        MonkeyMetrics.setInstance(mMetrics);
+        if (mLaunchStats) {
+            mLaunchLatency = new MonkeyLaunchStats();
+            MonkeyLaunchStats.setInstance(mLaunchLatency);
+        }
+        if (mFrameStatsInterval > 0) {
+            if (mFrameStatsInterval > 2000) {
+                // the renderer keeps about 120 frames per window, 2 s at 60 Hz
+                Logger.err.println("** Warning: --frame-stats intervals over 2000 ms miss"
+                        + " frames of busy windows");
+            }
+            // the packages allowed with -p, or every process if none were given
+            Set<String> packages = MonkeyUtils.getPackageFilter().getValidPackages();
+            mFrameSampler = new MonkeyFrameSampler(mFrameStatsInterval,
+                    packages.toArray(new String[packages.size()]));
+            MonkeyFrameSampler.setInstance(mFrameSampler);
+            mFrameSampler.start();
+        }
+        if (mMemorySampler != null) {
+            mMemorySampler.start();
+        }
         mNetworkMonitor.start(); //开始监控网络,其实只是初始化一些时间NetworkMonitor对象持有的时间数据，它是一个Binder对象,其实在getSystemInterfaces（）方法中已经向AMS注册此Binder，AMS通过此Binder与Monkey进程通信网络情况
         int crashedAtCycle = 0; //保存执行Monkey过程中发现的崩溃数量
+        boolean minimized = false;
         try {
-            crashedAtCycle = runMonkeyCycles(); //monkey主线程，执行最重要的runMonkeyCycles（）方法，返回值为发现的崩溃数量
+            if (mMinimizeScriptIn != null) {
+                minimized = runMinimizer();
+            } else {
+                crashedAtCycle = runMonkeyCycles(); //monkey主线程，执行最重要的runMonkeyCycles（）方法，返回值为发现的崩溃数量
+            }
         } finally {
+            if (mEventSource instanceof MonkeyEventPipeline) {
+                ((MonkeyEventPipeline) mEventSource).shutdown();
+            }
+            MonkeyInputInjector.finish(); //确认最后一个不完整的异步窗口是否被分发
+            if (mEventExporter != null) {
+                try {
+                    mEventExporter.close();
+                } catch (IOException e) {
+                    Logger.err.println("** Error: Failed writing " + mExportEventsFile + ": " + e);
+                }
+            }
             // Release the rotation lock if it's still held and restore the
             // original orientation. //执行完Monkey，会走finally
             new MonkeyRotationEvent(Surface.ROTATION_0, false).injectEvent(
                 mWm, mAm, mVerbose); //Monkey所有事件都完成后，最后注入一个MonkeyRotationEvent，为了调整屏幕吗？没错，就是为了调整屏幕
         }
         mNetworkMonitor.stop(); //停止监控网络
+        if (mFrameSampler != null) {
+            mFrameSampler.stop();
+        }
+        if (mMemorySampler != null) {
+            mMemorySampler.stop();
+        }
+        if (mTombstoneWatcher != null) {
+            mTombstoneWatcher.stopWatching();
+        }
+        MonkeyDisplayCache.unwatchAll(mWm);
 
-        //下面这部分代码，都是在运行事件流结束后（runMonkeyCycles（）方法结束）才会走到这里（应该是用于收尾工作的代码）
-        synchronized (this) { //Monkey主线程需要先获取Monkey对象锁，才能继续执行以下的代码块，这是为了与binder线程进行线程间的同步，因为他们都访问同样的共享变量，缺点是下面的代码与runMonkeyCycles（）中的一部分有重复，目的是为了收集日志
-            if (mRequestAnrTraces) { //当AMS发现某个app出现Anr，通过远程调用appNotResponse（）方法，然后该值mRequestAnrTraces会在当前monkey进程的binder线程池中某个线程中赋值为true（由于binder线程池某个线程已经持有Monkey对象锁）
-                reportAnrTraces(); //调用者获取anr trace信息，其实只是向标准输出流中打印anr的数据
-                mRequestAnrTraces = false; //表示已经执行过anr trace的获取，不需要获取了
-            }
-            if (mRequestAnrBugreport){ //获取anr相关的，bugreport命令
-                Logger.out.println("Print the anr report");
-                getBugreport("anr_" + mReportProcessName + "_");
-                mRequestAnrBugreport = false; //防止重复bugreport anr信息
-            }
-            if (mRequestWatchdogBugreport) {
-                Logger.out.println("Print the watchdog report");
-                getBugreport("anr_watchdog_"); //请求执行bugreport，获取关于watchdogBugreport的信息
-                mRequestWatchdogBugreport = false; //防止重复调用
-            }
-            if (mRequestAppCrashBugreport){
-                getBugreport("app_crash" + mReportProcessName + "_"); //请求执行bugreport，捕获关于app崩溃时的信息
-                mRequestAppCrashBugreport = false;
-            }
-            if (mRequestDumpsysMemInfo) { //获取内存信息
-                reportDumpsysMemInfo();
-                mRequestDumpsysMemInfo = false;
-            }
-            if (mRequestPeriodicBugreport){ //到达某个时间点，貌似是个数值，符合要求，就执行一次bugreport
-                getBugreport("Bugreport_");
-                mRequestPeriodicBugreport = false;
-            }
-            if (mWatchdogWaiting) {
-                mWatchdogWaiting = false;
-                notifyAll(); //通知唤醒所有在Monkey对象上停顿的线程，继续执行，执行的线程需要先获取到对象锁
-            }
+        //下面这部分代码，都是在运行事件流结束后（runMonkeyCycles（）方法结束）才会走到这里，收集剩余的诊断信息并等待采集完成
+        synchronized (this) {
+            queueRequestedDiagnostics();
         }
+        mDiagnostics.drain();
+        MonkeyShell.shutdown(); //诊断命令都已执行完，结束shell工作进程
 
         //继续收尾工作
         if (mGenerateHprof) {
@@ -846,11 +1219,50 @@ public class Monkey {
                     + " trackballs=" + mDroppedTrackballEvents
                     + " flips=" + mDroppedFlipEvents
                     + " rotations=" + mDroppedRotationEvents);
+            if (MonkeyInputInjector.isAsync()) {
+                // accepted async events of windows whose sync event failed, a guess
+                Logger.out.println(":Presumed dropped: keys="
+                        + MonkeyInputInjector.getPresumedDroppedKeys()
+                        + " pointers=" + MonkeyInputInjector.getPresumedDroppedMotions());
+            }
+        }
+
+        // report injection metrics
+        if (mVerbose > 0 || mMetricsInterval > 0) {
+            mMetrics.dump();
+        }
+        MonkeyMetrics.setInstance(null);
+
+        // report launch latency
+        if (mLaunchLatency != null) {
+            mLaunchLatency.dump();
+            MonkeyLaunchStats.setInstance(null);
+        }
+
+        // report frame times
+        if (mFrameSampler != null) {
+            mFrameSampler.dump();
+            MonkeyFrameSampler.setInstance(null);
+        }
+
+        // report memory growth
+        if (mMemorySampler != null) {
+            mMemorySampler.dump();
+        }
+
+        // report what the adaptive weights learned
+        if (mAdaptiveWeights != null) {
+            mAdaptiveWeights.dump();
+            mAdaptiveWeights = null;
         }
 
         // report network stats
         mNetworkMonitor.dump(); //输出网络情况，到标准输出流中，为啥对网络状态这么敏感……？而且是Monkey程序结束后
 
+        if (mMinimizeScriptIn != null) {
+            return minimized ? 0 : -1;
+        }
+
         if (crashedAtCycle < mCount - 1) {
             Logger.err.println("** System appears to have crashed at event " + crashedAtCycle
                     + " of " + mCount + " using seed " + mSeed); //当发现的崩溃数量小于执行次数，在标准错误流中输出一段日志
@@ -941,6 +1353,27 @@ public class Monkey {
                 } else if (opt.equals("--pct-permission")) {
                     int i = MonkeySourceRandom.FACTOR_PERMISSION;
                     mFactors[i] = -nextOptionLong("runtime permission toggle events percentage");
+                } else if (opt.equals("--adaptive")) {
+                    mAdaptive = true;
+                } else if (opt.equals("--adaptive-log")) {
+                    mAdaptive = true;
+                    mAdaptiveLogFile = nextOptionData();
+                } else if (opt.equals("--adaptive-replay")) {
+                    mAdaptive = true;
+                    mAdaptiveReplayFile = nextOptionData();
+                } else if (opt.equals("--display")) {
+                    mDisplayIds.add((int) nextOptionLong("display id"));
+                } else if (opt.equals("--event-sampler")) {
+                    String sampler = nextOptionData();
+                    if ("alias".equals(sampler)) {
+                        mAliasSampler = true;
+                    } else if ("cumulative".equals(sampler)) {
+                        mAliasSampler = false;
+                    } else {
+                        Logger.err.println("** Error: Unknown event sampler: " + sampler);
+                        showUsage();
+                        return false;
+                    }
                 } else if (opt.equals("--pkg-blacklist-file")) {
                     mPkgBlacklistFile = nextOptionData();
                 } else if (opt.equals("--pkg-whitelist-file")) {
@@ -949,16 +1382,75 @@ public class Monkey {
                     mThrottle = nextOptionLong("delay (in milliseconds) to wait between events");
                 } else if (opt.equals("--randomize-throttle")) {
                     mRandomizeThrottle = true;
+                } else if (opt.equals("--inject-mode")) {
+                    String mode = nextOptionData();
+                    if (!MonkeyInputInjector.setMode(mode)) {
+                        Logger.err.println("** Error: Unknown inject mode: " + mode);
+                        showUsage();
+                        return false;
+                    }
+                } else if (opt.equals("--inject-window")) {
+                    MonkeyInputInjector.setWindow(
+                            (int) nextOptionLong("async events to inject between waits"));
+                } else if (opt.equals("--metrics-interval")) {
+                    mMetricsInterval = nextOptionLong("Metrics interval (in milliseconds)");
+                } else if (opt.equals("--startup-cache")) {
+                    mStartupCacheFile = nextOptionData();
+                } else if (opt.equals("--launch-stats")) {
+                    mLaunchStats = true;
+                } else if (opt.equals("--mem-sample")) {
+                    mMemorySampleFile = nextOptionData();
+                } else if (opt.equals("--mem-sample-interval")) {
+                    mMemorySampleInterval =
+                            nextOptionLong("Memory sample interval (in milliseconds)");
+                } else if (opt.equals("--frame-stats")) {
+                    mFrameStatsInterval = nextOptionLong("Frame stats interval (in milliseconds)");
+                } else if (opt.equals("--pipeline-depth")) {
+                    mPipelineDepth = (int) nextOptionLong("number of events to generate ahead");
                 } else if (opt.equals("--wait-dbg")) {
                     // do nothing - it's caught at the very start of run()
                 } else if (opt.equals("--dbg-no-events")) {
                     mSendNoEvents = true;
+                } else if (opt.equals("--dbg-no-inject")) {
+                    mSendNoInject = true;
                 } else if (opt.equals("--port")) { //在命令行中指定一个端口
                     mServerPort = (int) nextOptionLong("Server port to listen on for commands");
                 } else if (opt.equals("--setup")) {
                     mSetupFileName = nextOptionData();
                 } else if (opt.equals("-f")) {
                     mScriptFileNames.add(nextOptionData());
+                } else if (opt.equals("--compile-script")) {
+                    mCompileScriptIn = nextOptionData();
+                    mCompileScriptOut = nextOptionData();
+                    if (mCompileScriptIn == null || mCompileScriptOut == null) {
+                        Logger.err.println("** Error: --compile-script needs an input and an"
+                                + " output file");
+                        showUsage();
+                        return false;
+                    }
+                } else if (opt.equals("--async-log")) {
+                    mAsyncLog = true;
+                } else if (opt.equals("--event-log")) {
+                    mEventLogFile = nextOptionData();
+                } else if (opt.equals("--decode-event-log")) {
+                    mDecodeEventLogFile = nextOptionData();
+                } else if (opt.equals("--checkpoint")) {
+                    mCheckpointFile = nextOptionData();
+                } else if (opt.equals("--checkpoint-interval")) {
+                    mCheckpointInterval = nextOptionLong("Events between checkpoints");
+                } else if (opt.equals("--resume")) {
+                    mResumeFile = nextOptionData();
+                } else if (opt.equals("--minimize")) {
+                    mMinimizeScriptIn = nextOptionData();
+                    mMinimizeScriptOut = nextOptionData();
+                    if (mMinimizeScriptIn == null || mMinimizeScriptOut == null) {
+                        Logger.err.println("** Error: --minimize needs an input and an output"
+                                + " script");
+                        showUsage();
+                        return false;
+                    }
+                } else if (opt.equals("--export-events")) {
+                    mExportEventsFile = nextOptionData();
                 } else if (opt.equals("--profile-wait")) {
                     mProfileWaitTime = nextOptionLong("Profile delay" +
                                 " (in milliseconds) to wait between user action");
@@ -994,7 +1486,7 @@ public class Monkey {
 
         // If a server port hasn't been specified, we need to specify 没有指定TCP方式，就必须指定数量
         // a count
-        if (mServerPort == -1) { //不使用TCP远程命令时，会走这里，强行处理事件数
+        if (mServerPort == -1 && mCompileScriptIn == null && mDecodeEventLogFile == null) { //不使用TCP远程命令时，会走这里，强行处理事件数
             String countStr = nextArg(); //获取事件数
             if (countStr == null) {
                 Logger.err.println("** Error: Count not specified"); //看到你了，说明没有指定事件次数
@@ -1132,6 +1624,30 @@ public class Monkey {
      *         activities //返回true，表示获取到对应包的Launcher Activity
      */
     private boolean getMainApps() {
+        List<ComponentName> cached =
+                mStartupSnapshot != null ? mStartupSnapshot.getMainApps() : null;
+        if (cached != null) {
+            mMainApps.addAll(cached); //使用上次运行保存的主Activity，不再查询PMS
+        } else if (!queryMainApps()) {
+            return false;
+        } else if (mStartupSnapshot != null) {
+            mStartupSnapshot.setMainApps(mMainApps);
+        }
+
+        if (mMainApps.size() == 0) {
+            Logger.out.println("** No activities found to run,  monkey aborted."); //没有找到可用的主Activity
+            return false;  //返回false，会造成Monkey程序结束
+        }
+
+        return true;
+    }
+
+    /**
+     * Queries the package manager for the main activities of every category.
+     *
+     * @return false if the package manager could not be reached
+     */
+    private boolean queryMainApps() {
         try {
             final int N = mMainCategories.size(); //获取Category的数量，默认是两个，通过-c的命令行参数可以添加，一个是CATEGORY_LAUNCHER、另一个是
             for (int i = 0; i < N; i++) { //遍历所有的Category
@@ -1172,12 +1688,6 @@ public class Monkey {
             Logger.err.println("** Failed talking with package manager!"); //PMS系统服务出错，走这里
             return false; //说明没有获取到可以启动的主Activity
         }
-
-        if (mMainApps.size() == 0) {
-            Logger.out.println("** No activities found to run,  monkey aborted."); //没有找到可用的主Activity
-            return false;  //返回false，会造成Monkey程序结束
-        }
-
         return true;
     }
 
@@ -1195,9 +1705,15 @@ public class Monkey {
     private int runMonkeyCycles() {
         int eventCounter = 0; //临时存储事件总数
         int cycleCounter = 0; //临时存储循环次数
+        if (mResumeState != null) {
+            eventCounter = mResumeState.mEventCounter;
+            cycleCounter = mResumeState.mCycleCounter;
+            mResumeState = null;
+        }
+        int lastCheckpoint = eventCounter;
+        // only the random source generates without waiting on sleeps or sockets
+        final boolean timeGeneration = mEventSource instanceof MonkeySourceRandom;
 
-        boolean shouldReportAnrTraces = false; //记录是否应该报告ANR的标志位
-        boolean shouldReportDumpsysMemInfo = false; //记录是否应该报告系统内存信息的标志位
         boolean shouldAbort = false; //记录是否应该中断monkey主线程的标志位（monkey程序是否应该终止的标志位）
         boolean systemCrashed = false; //记录系统是否发生崩溃的标志位，比如AMS服务可能会停止工作，那么Monkey进程也会停止……有道理……
 
@@ -1208,43 +1724,16 @@ public class Monkey {
             // 注意：如果没有设置忽略anr、忽略crash、忽略native crash，当出现一次后，monkey程序会结束
             while (!systemCrashed && cycleCounter < mCount) {
                 //每次获取事件前做的事情真多呀
+                long lockStart = System.nanoTime();
                 synchronized (this) { //Monkey的主线程需要获取Monkey对象锁，可继续运行此代码块（Monkey对象自身的锁)，后面你知道为何使用这个对象锁，主要是为了线程间同步
-                    if (mRequestProcRank) { //monkey主线程执行到这里，检查标志位，是否需要报告进程信息，也是AMS远程调用指定的，发生ANR时，指定
-                        reportProcRank(); //报告进程评分，创建子进程，调用命令行工具
-                        mRequestProcRank = false; //防止下次循环继续上报，因为程序在主线程循环执行中
-                    }
-                    if (mRequestAnrTraces) {//需要上报anr的traces，也是AMS远程调用指定的，发生ANR时指定
-                        mRequestAnrTraces = false; //防止下次循环直接上报ANR的traces
-                        shouldReportAnrTraces = true; //表示本次循环应该上报AnrTraces的标志位
-                    }
-                    if (mRequestAnrBugreport){ //需要上报anr的bugreport，它的值是AMS远程调用指定的，发生ANR时指定
-                        getBugreport("anr_" + mReportProcessName + "_"); //报告的文件名为anr_进程名_
-                        mRequestAnrBugreport = false; //防止下次循环中直接上报
-                    }
-                    if (mRequestWatchdogBugreport) { //需要上报watchdog的bugreport，这个值是当系统挂了的时候，也是由AMS远程调用指定的
-                        Logger.out.println("Print the watchdog report"); //标注输出流输出日志
-                        getBugreport("anr_watchdog_"); //子进程中执行命令行程序，持久化名字为anr_watchdog_
-                        mRequestWatchdogBugreport = false; //这个标志位会由AMS修改，跨进程的告诉Monkey主线程可以干什么
-                    }
-                    if (mRequestAppCrashBugreport){ //需要上报app崩溃的bugreport,这个值也是AMS远程调用赋值，草，Binder进程间通信太重要了
-                        getBugreport("app_crash" + mReportProcessName + "_"); //生成app_crash文件，同样在子进程中进行
-                        mRequestAppCrashBugreport = false; //防止下次循环中执行
-                    }
-                    if (mRequestPeriodicBugreport){ //需要上报什么?这个蒙了，这是没有提取到事件的时候，会赋值为true，阶段性的上报一次bugreport
-                        getBugreport("Bugreport_"); //单纯的调用bugreport，卧槽，闹半天，每份报告都是单纯的bugreport，因为没有拿到事件
-                        mRequestPeriodicBugreport = false; //防止下次循环中执行
-                    }
-                    if (mRequestDumpsysMemInfo) { //是否需要请求系统内存信息，这个值也是AMS发现出现ANR后，远程调用方法，并修改的此值
-                        mRequestDumpsysMemInfo = false; //防止下次循环中直接执行（或者说，只能由AMS来赋值）
-                        shouldReportDumpsysMemInfo = true; //标记应该上报内存信息
-                    }
-                    if (mMonitorNativeCrashes) { //如果需要监控native的崩溃信息，由命令行参数--monitor-native-crashes决定，每次执行完一个事件，即会
-                        // first time through, when eventCounter == 0, just set up
-                        // the watcher (ignore the error)
-                        if (checkNativeCrashes() && (eventCounter > 0)) { //发现本地崩溃，且事件数量大于0（这里没有系统服务的回调，而是一直目录中的文件数量）
+                    queueRequestedDiagnostics(); //只负责排队，采集在后台线程中进行，不会阻塞事件注入与binder回调
+                    if (mTombstoneWatcher != null) { //如果需要监控native的崩溃信息，由命令行参数--monitor-native-crashes决定
+                        // the watcher was set up before the first event, so every
+                        // tombstone it reports is new
+                        if (mTombstoneWatcher.checkNewTombstones()) { //发现本地崩溃，inotify在FileObserver线程中发现文件写入完成
                             Logger.out.println("** New native crash detected."); //在标准输出流，打印natvie崩溃找到的消息
                             if (mRequestBugreport) { //同样调用bugreport命令
-                                getBugreport("native_crash_"); //只不过文件名是这个……，这里子进程中进行
+                                queueBugreport("native_crash_"); //只不过文件名是这个……，在后台线程中进行
                             }
                             mAbort = mAbort || !mIgnoreNativeCrashes || mKillProcessAfterError; //检查是否需要中断monkey进程，有一个值为true，即会赋值给mAbort，说明Monkey程序即将要结束了
                                               //mAbort、mIgnoreNativeCrashes、mKillProcessAfterError
@@ -1253,23 +1742,9 @@ public class Monkey {
                     if (mAbort) { //如果Monkey程序需要中断
                         shouldAbort = true; //局部变量赋值应该中断
                     }
-                    if (mWatchdogWaiting) { //如果已经通知watchdog等待
-                        mWatchdogWaiting = false;
-                        notifyAll();  //通知所有停留在Monkey对象上的线程，继续运行（不过其他线程如果阻塞在这里，还得获取到Monkey对象锁，才能继续运行，尴尬）
-                    }
                 } //monkey执行到这里，会释放Monkey对象锁，其他线程开始有机会获取Monkey对象锁
-
-                // Report ANR, dumpsys after releasing lock on this.
-                // This ensures the availability of the lock to Activity controller's appNotResponding
-                if (shouldReportAnrTraces) { //如果必须上报ANR Trace，上面都标记过了，果然局部变量在下面会使用
-                    shouldReportAnrTraces = false; //防止下次循环上报
-                    reportAnrTraces(); //通过此方法，上报AnrTraces
-                }
-
-                if (shouldReportDumpsysMemInfo) { //必须上报内存信息的情况
-                    shouldReportDumpsysMemInfo = false; //防止下次循环直接上报
-                    reportDumpsysMemInfo(); //报告内存信息，使用的命令是：dumpsys meminfo
-                }
+                mMetrics.addBlockedNanos(System.nanoTime() - lockStart);
+                mMetrics.maybeReport();
 
                 if (shouldAbort) { //应该中断monkey进程的处理
                     shouldAbort = false; //防止下次循环……好像没有什么必要了……作者多写了……
@@ -1295,10 +1770,64 @@ public class Monkey {
                     Logger.out.println("    // Sending event #" + eventCounter); //输出事件总数
                 } //每执行100个事件，输出一次日志
 
-                MonkeyEvent ev = mEventSource.getNextEvent(); //从EventSource对象中提取事件，如果从命令行执行，实际是从MonkeySourceRandom的getNextEvent（）方法中提取事件的，每次循环都从MonkeySourceEvent中提取事件，假设有两个点事件在队列中
+                if (mEventSource instanceof MonkeyEventPipeline) {
+                    mMetrics.recordQueueDepth(((MonkeyEventPipeline) mEventSource).size());
+                }
+                if (mCheckpointFile != null && eventCounter - lastCheckpoint >= mCheckpointInterval
+                        && canCheckpoint()) {
+                    writeCheckpoint(eventCounter, cycleCounter); //只在事件源没有排队事件时保存
+                    lastCheckpoint = eventCounter;
+                }
+
+                long generateStart = System.nanoTime();
+                MonkeyEvent ev = mEventSource.getNextEvent();
+                if (timeGeneration) {
+                    mMetrics.recordGeneration(System.nanoTime() - generateStart);
+                }
+
+                // In this debugging mode events are generated and dropped, so for
+                // random events the metrics show how fast the source alone is.
+                if (mSendNoInject && ev != null) {
+                    if (!(ev instanceof MonkeyThrottleEvent)) {
+                        eventCounter++;
+                        if (mCountEvents) {
+                            cycleCounter++;
+                        }
+                    }
+                    ev.recycle();
+                    continue;
+                }
+
+                // Events are written to a script as fast as they are generated, without
+                // injecting them or waiting for their throttles.
+                if (mEventExporter != null && ev != null) {
+                    try {
+                        mEventExporter.export(ev, eventCounter);
+                    } catch (IOException e) {
+                        Logger.err.println("** Error: Failed writing " + mExportEventsFile
+                                + ": " + e);
+                        return eventCounter;
+                    }
+                    if (!(ev instanceof MonkeyThrottleEvent)) {
+                        eventCounter++;
+                        if (mCountEvents) {
+                            cycleCounter++;
+                        }
+                    }
+                    ev.recycle();
+                    continue;
+                } //从EventSource对象中提取事件，如果从命令行执行，实际是从MonkeySourceRandom的getNextEvent（）方法中提取事件的，每次循环都从MonkeySourceEvent中提取事件，假设有两个点事件在队列中
                 //我将创建一种新的MonkeySource，解析View树，生成MonkeyEvent
                if (ev != null) {  //如果成功提取到事件……
+                    if (mFrameSampler != null && !(ev instanceof MonkeyThrottleEvent)) {
+                        mFrameSampler.noteEvent(MonkeyMetrics.getTypeName(ev.getEventType()));
+                    }
+                    long injectStart = System.nanoTime();
                     int injectCode = ev.injectEvent(mWm, mAm, mVerbose); //回调每个MonkeyEvent的injectEvent（）方法，并且把自己持有的WMS、AMS、还有日志等级都传了进去，具体的操作，由具体的事件对象自己执行，注入码表示成功或者失败
+                    mMetrics.recordInjection(ev, System.nanoTime() - injectStart, injectCode);
+                    if (mMemorySampler != null) {
+                        mMemorySampler.setEventCounter(eventCounter);
+                    }
                     if (injectCode == MonkeyEvent.INJECT_FAIL) { //处理失败的情况，卧槽还要+1
                         Logger.out.println("    // Injection Failed"); //向标准输出流打印日志
                         if (ev instanceof MonkeyKeyEvent) { //若事件为MonkeyKeyEvent对象
@@ -1327,6 +1856,14 @@ public class Monkey {
                             cycleCounter++;  //循环次数加1
                         }
                     }
+
+                    // The throttle travels with the event, the event itself can be reused
+                    // as soon as it has been injected.
+                    long throttle = ev.getThrottle();
+                    ev.recycle();
+                    if (throttle >= 0) {
+                        MonkeyThrottleEvent.sleep(throttle, mVerbose);
+                    }
                 } else { //从双向链表中，没有提取到事件对象时会执行到这里，这里平时是不会走到的……牛逼，这个调试方法好
                     if (!mCountEvents) { //如果不需要统计循环的执行次数，当使用单个脚本文件、多个脚本文件时，此时不需要统计事件的循环次数
                         cycleCounter++; //循环次数增加1
@@ -1352,91 +1889,126 @@ public class Monkey {
     }
 
     /**
-     * Send SIGNAL_USR1 to all processes. This will generate large (5mb)
-     * profiling reports in data/misc, so use with care.
-     * 发送一个信号，给所有进程，报告会存放到data/misc目录下
-     * 用于对比所有进程的信息，牛逼
-     * 没发生崩溃时，持久化一份
-     * 发生崩溃时，也可以持久化一份
+     * @return true if the event source has no events queued that were generated from the
+     *         current Random state
      */
-    private void signalPersistentProcesses() {
-        try {
-            mAm.signalPersistentProcesses(Process.SIGNAL_USR1); //使用AMS的signalPersistentProcesses方法，并把信号传递过去，SIGNAL_USR1这个信号是一个自定义信号
-
-            synchronized (this) { //monkey主线程获取Monkey对象锁
-                wait(2000); //主线程等待2s
-            } //释放Monkey对象锁
-        } catch (RemoteException e) { //远程服务出错时，向标准错误写入信息
-            Logger.err.println("** Failed talking with activity manager!"); //发生远程服务错误，在标准错误流中输出一行信息
-        } catch (InterruptedException e) {
+    private boolean canCheckpoint() {
+        if (mEventSource instanceof MonkeySourceRandom) {
+            return ((MonkeySourceRandom) mEventSource).canCheckpoint();
         }
+        return ((MonkeySourceScript) mEventSource).canCheckpoint();
     }
 
     /**
-     * Watch for appearance of new tombstone files, which indicate native
-     * crashes.
-     * 检查native崩溃的方法，直接检查tobstones文件的数量，每执行一个事件都会检查一下文件数量
-     * @return Returns true if new files have appeared in the list
+     * Saves the state needed to continue this run with --resume.
      */
-    private boolean checkNativeCrashes() {
-        String[] tombstones = TOMBSTONES_PATH.list(); //检查这个/data/tombstones目录，获取到所有文件名
-
-        // shortcut path for usually empty directory, so we don't waste even
-        // more objects
-        if (tombstones == null || tombstones.length == 0) {
-            mTombstones = null; //mTombstones持有的集合对象，每个元素是文件的最后修改时间，厉害，不用文件名，用文件的修改时间
-            return false; //说明没有native崩溃
-        }
-
-        boolean result = false;
-
-        // use set logic to look for new files
-        HashSet<Long> newStones = new HashSet<Long>(); //创建一个Set对象
-        for (String t : tombstones) { //遍历所有的tombstones文件名
-            if (t.startsWith(TOMBSTONE_PREFIX)) { //如果前缀是tombstone_开头的文件
-                File f = new File(TOMBSTONES_PATH, t);
-                newStones.add(f.lastModified()); //把文件最后修改的时间，添加到Set集合中
-                if (mTombstones == null || !mTombstones.contains(f.lastModified())) { //要是mTombstones还没有赋值，文件的修改时间也没有临时添加到临时创建的Set中
-                    result = true; //先把结果赋值为true，说明发现native崩溃
-                    waitForTombstoneToBeWritten(Paths.get(TOMBSTONES_PATH.getPath(), t)); //这里貌似没啥用啊……
-                    Logger.out.println("** New tombstone found: " + f.getAbsolutePath()
-                                       + ", size: " + f.length()); //打印找到的tombstone文件，以及字节数
-                }
+    private void writeCheckpoint(int eventCounter, int cycleCounter) {
+        MonkeyCheckpoint cp = new MonkeyCheckpoint();
+        cp.mSeed = mSeed;
+        cp.mRandom = mRandom;
+        cp.mEventCounter = eventCounter;
+        cp.mCycleCounter = cycleCounter;
+        cp.mDroppedKeyEvents = mDroppedKeyEvents;
+        cp.mDroppedPointerEvents = mDroppedPointerEvents;
+        cp.mDroppedTrackballEvents = mDroppedTrackballEvents;
+        cp.mDroppedFlipEvents = mDroppedFlipEvents;
+        cp.mDroppedRotationEvents = mDroppedRotationEvents;
+        if (mEventSource instanceof MonkeySourceRandom) {
+            ((MonkeySourceRandom) mEventSource).saveState(cp);
+        } else {
+            ((MonkeySourceScript) mEventSource).saveState(cp);
+        }
+        try {
+            cp.write(mCheckpointFile);
+            if (mVerbose > 1) {
+                Logger.out.println(":Checkpoint at event " + eventCounter);
             }
+        } catch (IOException e) {
+            Logger.err.println("** Error: Failed writing checkpoint " + mCheckpointFile + ": "
+                    + e);
         }
+    }
 
-        // keep the new list for the next time
-        mTombstones = newStones; //将临时创建的Set对象，赋值给Monkey对象持有的Set对象负责持有，这样旧的Set对象，在方法结束后，会被回收掉
-
-        return result; //返回是否发生native崩溃的结果
+    /**
+     * Shrinks the --minimize script to the events needed to reproduce the crash matching
+     * --match-description, or any crash without it. Every trial starts from the allowed
+     * packages being force-stopped, so state left by the previous trial does not count.
+     *
+     * @return false if the crash did not reproduce or the scripts could not be written
+     */
+    private boolean runMinimizer() {
+        MonkeyMinimizer minimizer = new MonkeyMinimizer(mMinimizeScriptIn, mMinimizeScriptOut);
+        if (!minimizer.load()) {
+            return false;
+        }
+        if (!MonkeyUtils.getPackageFilter().hasValidPackages()) {
+            Logger.err.println("** Warning: No -p packages, nothing is restarted between"
+                    + " trials");
+        }
+        return minimizer.minimize(new MonkeyMinimizer.Trial() {
+            @Override
+            public boolean reproduces(String script) {
+                return runMinimizeTrial(script);
+            }
+        });
     }
 
     /**
-     * Wait for the given tombstone file to be completely written.
-     * 用于等待tombstone文件写入完成
-     * @param path The path of the tombstone file.
+     * Replays one candidate script of the minimizer.
+     *
+     * @return true if a matching crash was reported
      */
-    private void waitForTombstoneToBeWritten(Path path) {
-        boolean isWritten = false;
-        try {
-            // Ensure file is done writing by sleeping and comparing the previous and current size
-            for (int i = 0; i < NUM_READ_TOMBSTONE_RETRIES; i++) {  //确保文件已经写完了，只重试5次（相当于最多等5s
-                long size = Files.size(path); //获取文件的字节数（注意不是行数）
+    private boolean runMinimizeTrial(String script) {
+        for (String pkg : MonkeyUtils.getPackageFilter().getValidPackages()) {
+            try {
+                mAm.forceStopPackage(pkg, UserHandle.USER_ALL); //每次试验前重启目标应用
+            } catch (RemoteException e) {
+                Logger.err.println("** Failed force-stopping " + pkg + ": " + e);
+            }
+        }
+        synchronized (this) {
+            mAbort = false;
+            mCrashMatched = false;
+        }
+        mEventSource = new MonkeySourceScript(mRandom, script, mThrottle, mRandomizeThrottle,
+                mProfileWaitTime, mDeviceSleepTime);
+        mEventSource.setVerbose(mVerbose);
+        mCount = 1; //脚本只回放一遍
+        runMonkeyCycles();
+
+        // the crash is reported by a binder call that can arrive after the last event
+        long deadline = SystemClock.uptimeMillis() + MINIMIZE_SETTLE_MS;
+        synchronized (this) {
+            long wait;
+            while (!mCrashMatched && (wait = deadline - SystemClock.uptimeMillis()) > 0) {
                 try {
-                    Thread.sleep(1000); //线程休息1秒
-                } catch (InterruptedException e) { }
-                if (size > 0 && Files.size(path) == size) { //字节数没有改变，则说明文件不再写入了
-                    //File size is bigger than 0 and hasn't changed
-                    isWritten = true;
+                    wait(wait);
+                } catch (InterruptedException e) {
                     break;
                 }
             }
-        } catch (IOException e) {
-            Logger.err.println("Failed to get tombstone file size: " + e.toString());
+            return mCrashMatched;
         }
-        if (!isWritten) {
-            Logger.err.println("Incomplete tombstone file.");
-            return;
+    }
+
+    /**
+     * Send SIGNAL_USR1 to all processes. This will generate large (5mb)
+     * profiling reports in data/misc, so use with care.
+     * 发送一个信号，给所有进程，报告会存放到data/misc目录下
+     * 用于对比所有进程的信息，牛逼
+     * 没发生崩溃时，持久化一份
+     * 发生崩溃时，也可以持久化一份
+     */
+    private void signalPersistentProcesses() {
+        try {
+            mAm.signalPersistentProcesses(Process.SIGNAL_USR1); //使用AMS的signalPersistentProcesses方法，并把信号传递过去，SIGNAL_USR1这个信号是一个自定义信号
+
+            synchronized (this) { //monkey主线程获取Monkey对象锁
+                wait(2000); //主线程等待2s
+            } //释放Monkey对象锁
+        } catch (RemoteException e) { //远程服务出错时，向标准错误写入信息
+            Logger.err.println("** Failed talking with activity manager!"); //发生远程服务错误，在标准错误流中输出一行信息
+        } catch (InterruptedException e) {
         }
     }
 
@@ -1555,13 +2127,30 @@ public class Monkey {
         usage.append("              [--pct-appswitch PERCENT] [--pct-flip PERCENT]\n");
         usage.append("              [--pct-anyevent PERCENT] [--pct-pinchzoom PERCENT]\n");
         usage.append("              [--pct-permission PERCENT]\n");
+        usage.append("              [--event-sampler alias|cumulative]\n");
+        usage.append("              [--adaptive] [--adaptive-log feedbackfile]\n");
+        usage.append("              [--adaptive-replay feedbackfile]\n");
+        usage.append("              [--display DISPLAY_ID [--display DISPLAY_ID] ...]\n");
         usage.append("              [--pkg-blacklist-file PACKAGE_BLACKLIST_FILE]\n");
         usage.append("              [--pkg-whitelist-file PACKAGE_WHITELIST_FILE]\n");
-        usage.append("              [--wait-dbg] [--dbg-no-events]\n");
+        usage.append("              [--wait-dbg] [--dbg-no-events] [--dbg-no-inject]\n");
         usage.append("              [--setup scriptfile] [-f scriptfile [-f scriptfile] ...]\n");
+        usage.append("              [--compile-script scriptfile compiledfile]\n");
         usage.append("              [--port port]\n");
         usage.append("              [-s SEED] [-v [-v] ...]\n");
+        usage.append("              [--async-log] [--event-log eventlogfile]\n");
+        usage.append("              [--decode-event-log eventlogfile]\n");
+        usage.append("              [--export-events scriptfile]\n");
+        usage.append("              [--checkpoint file [--checkpoint-interval EVENTS]]\n");
+        usage.append("              [--resume checkpointfile]\n");
+        usage.append("              [--minimize crashscript outscript]\n");
         usage.append("              [--throttle MILLISEC] [--randomize-throttle]\n");
+        usage.append("              [--pipeline-depth EVENTS]\n");
+        usage.append("              [--metrics-interval MILLISEC]\n");
+        usage.append("              [--launch-stats] [--frame-stats MILLISEC]\n");
+        usage.append("              [--mem-sample csvfile [--mem-sample-interval MILLISEC]]\n");
+        usage.append("              [--inject-mode async|wait-finish|wait-result]\n");
+        usage.append("              [--inject-window EVENTS]\n");
         usage.append("              [--profile-wait MILLISEC]\n");
         usage.append("              [--device-sleep-time MILLISEC]\n");
         usage.append("              [--randomize-script]\n");
@@ -1569,6 +2158,7 @@ public class Monkey {
         usage.append("              [--bugreport]\n");
         usage.append("              [--periodic-bugreport]\n");
         usage.append("              [--permission-target-system]\n");
+        usage.append("              [--startup-cache cachefile]\n");
         usage.append("              COUNT\n");
         Logger.err.println(usage.toString()); //向标准错误流中写入文本，默认打印在屏幕上
     }
@@ -18,6 +18,7 @@ package com.android.commands.monkey;
 
 import android.app.ActivityManager;
 import android.app.IActivityManager;
+import android.app.WaitResult;
 import android.content.ComponentName;
 import android.content.Intent;
 import android.content.pm.IPackageManager;
@@ -56,6 +57,10 @@ public class MonkeyActivityEvent extends MonkeyEvent {
         mAlarmTime = arg;
     }
 
+    ComponentName getComponent() {
+        return mApp;
+    }
+
     /**
      * @return Intent for the new activity
      *  创建Intent对象，用于启动Activity
@@ -89,7 +94,22 @@ public class MonkeyActivityEvent extends MonkeyEvent {
             intent.putExtras(args); //在这为Intent设置此属性，传入创建的Bundle对象，可以看下这个Intent的alarmTime有啥用，估计AMS中会处理
         }
 
+        MonkeyLaunchStats stats = MonkeyLaunchStats.getInstance();
         try {
+            if (stats != null) {
+                // blocks until the activity has drawn its first frame, or the wait timed out
+                WaitResult result = iam.startActivityAndWait(null, getPackageName(), null,
+                        intent, null, null, null, 0, 0, null, null,
+                        ActivityManager.getCurrentUser()); //等待启动完成，获取启动耗时和冷热启动类型
+                stats.record(mApp, result);
+                if (verbose > 0 && result != null) {
+                    Logger.out.println(":Launched: " + mApp.flattenToShortString()
+                            + " state=" + WaitResult.launchStateToString(result.launchState)
+                            + " totalTime=" + result.totalTime
+                            + (result.timeout ? " (timeout)" : ""));
+                }
+                return MonkeyEvent.INJECT_SUCCESS;
+            }
             //需传入包名、Intent对象、当前用户
             iam.startActivityAsUserWithFeature(null, getPackageName(), null, intent, null, null,
                     null, 0, 0, null, null, ActivityManager.getCurrentUser()); //依靠AMS系统服务切换Activity，这个startActivityAsUserWithFeature方法完成Activity的启动
@@ -0,0 +1,329 @@
+/*
+ * Copyright (C) 2008 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.commands.monkey;
+
+import android.content.ComponentName;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Reweights the event categories and the app switch targets towards those that keep
+ * reaching activities the run has not seen yet.
+ * <p>
+ * Each category and each main app is an arm of a bandit. The reward of an arm is 1 if a new
+ * state was discovered since it was last played and 0 otherwise; a state is a started
+ * activity component or a resumed package, as reported by the activity controller. Arms
+ * keep a discounted success rate and their weight is the user's factor scaled by that rate
+ * relative to the other arms, mixed with the plain factors so that nothing with a positive
+ * factor is starved. Categories with a factor of 0 stay at 0.
+ * <p>
+ * The activity controller reports on binder threads, so feedback is queued and only
+ * applied when the next category is drawn, at a step counted in draws. Every applied
+ * discovery is written to the feedback log as "step package state"; a run given that log
+ * to replay ignores the controller and applies the same discoveries at the same steps, so
+ * with the same seed it generates the same events.
+ * 基于新发现的Activity动态调整事件类别和切换目标应用的权重，反馈记录可回放以复现事件流
+ */
+public class MonkeyAdaptiveWeights implements MonkeySourceRandom.EventTypeSampler {
+    /** How much of each draw is spread by the plain factors regardless of rewards. */
+    private static final float EXPLORATION = 0.2f;
+    /** Discount applied to the statistics of an arm each time it is played. */
+    private static final float DISCOUNT = 0.98f;
+
+    /** Discounted plays and rewards of one arm. */
+    private static final class Arm {
+        float mPlays;
+        float mRewards;
+        boolean mPending; //已选择，等待下一次反馈结算
+
+        float rate() {
+            return (mRewards + 1.0f) / (mPlays + 2.0f); // starts at 1/2 before any play
+        }
+
+        void settle(boolean rewarded) {
+            mPlays = mPlays * DISCOUNT + 1.0f;
+            mRewards = mRewards * DISCOUNT + (rewarded ? 1.0f : 0.0f);
+            mPending = false;
+        }
+    }
+
+    private final List<ComponentName> mApps;
+    private final Arm[] mCategories = new Arm[MonkeySourceRandom.FACTORZ_COUNT];
+    private final Arm[] mAppArms;
+    private final float[] mBase = new float[MonkeySourceRandom.FACTORZ_COUNT];
+    private final float[] mCumulative = new float[MonkeySourceRandom.FACTORZ_COUNT];
+    private final float[] mAppCumulative;
+
+    private final HashSet<String> mSeen = new HashSet<String>();
+    private final ArrayList<String> mQueued = new ArrayList<String>(); //binder线程写入，按对出现
+    private final ArrayList<String> mDrained = new ArrayList<String>();
+    private long mStep;
+    private long mDiscoveries;
+    private int mLastApp = -1;
+
+    private final Writer mLog;
+    private final String mLogFile;
+    private final long[] mReplaySteps;
+    private final String[] mReplay; //package和state交替存放
+    private int mReplayIndex;
+
+    /**
+     * @param apps the main apps the app switch events start
+     * @param logFile file to record the feedback to, or null
+     * @param replayFile feedback recorded by an earlier run to apply instead of the live
+     *        one, or null
+     */
+    public MonkeyAdaptiveWeights(List<ComponentName> apps, String logFile, String replayFile)
+            throws IOException {
+        mApps = apps;
+        for (int i = 0; i < mCategories.length; i++) {
+            mCategories[i] = new Arm();
+        }
+        mAppArms = new Arm[apps.size()];
+        for (int i = 0; i < mAppArms.length; i++) {
+            mAppArms[i] = new Arm();
+        }
+        mAppCumulative = new float[apps.size()];
+        if (mAppArms.length > 0) {
+            updateCumulative(mAppArms, null, mAppCumulative); //第一个Activity在validate()之前启动
+        }
+
+        if (replayFile != null) {
+            ArrayList<Long> steps = new ArrayList<Long>();
+            ArrayList<String> states = new ArrayList<String>();
+            readFeedback(replayFile, steps, states);
+            mReplaySteps = new long[steps.size()];
+            for (int i = 0; i < mReplaySteps.length; i++) {
+                mReplaySteps[i] = steps.get(i);
+            }
+            mReplay = states.toArray(new String[states.size()]);
+        } else {
+            mReplaySteps = null;
+            mReplay = null;
+        }
+        mLogFile = logFile;
+        mLog = logFile != null ? new BufferedWriter(new FileWriter(logFile)) : null;
+    }
+
+    private static void readFeedback(String file, List<Long> steps, List<String> states)
+            throws IOException {
+        BufferedReader in = new BufferedReader(new FileReader(file));
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] fields = line.trim().split(" ");
+                if (fields.length != 3) {
+                    continue;
+                }
+                try {
+                    steps.add(Long.parseLong(fields[0]));
+                } catch (NumberFormatException e) {
+                    throw new IOException("Bad step in " + file + ": " + line);
+                }
+                states.add(fields[1]);
+                states.add(fields[2]);
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Reports a started activity or a resumed package. Called on binder threads; ignored
+     * while replaying.
+     *
+     * @param pkg the package of the activity
+     * @param component the started component, or null for a resumed package
+     */
+    public void noteActivity(String pkg, ComponentName component) {
+        if (mReplay != null || pkg == null) {
+            return;
+        }
+        String state = component != null ? component.flattenToShortString() : pkg;
+        synchronized (mQueued) {
+            mQueued.add(pkg);
+            mQueued.add(state);
+        }
+    }
+
+    @Override
+    public void setWeights(float[] weights) {
+        float total = 0.0f;
+        for (int i = 0; i < mBase.length; i++) {
+            mBase[i] = Math.max(weights[i], 0.0f);
+            total += mBase[i];
+        }
+        if (total <= 0.0f) {
+            throw new IllegalArgumentException("No event category has a positive weight");
+        }
+        updateCumulative(mCategories, mBase, mCumulative);
+    }
+
+    @Override
+    public int nextCategory(Random random) {
+        applyFeedback();
+        mStep++;
+        int category = pick(mCumulative, random.nextFloat());
+        mCategories[category].mPending = true;
+        return category;
+    }
+
+    /**
+     * @return the index of the main app the next app switch starts
+     */
+    public int nextApp(Random random) {
+        if (mAppCumulative.length == 0) {
+            return random.nextInt(mApps.size()); // keeps the empty list error of the caller
+        }
+        int app = pick(mAppCumulative, random.nextFloat());
+        mAppArms[app].mPending = true;
+        mLastApp = app;
+        return app;
+    }
+
+    private static int pick(float[] cumulative, float cls) {
+        float value = cls * cumulative[cumulative.length - 1];
+        for (int i = 0; i < cumulative.length; i++) {
+            if (value < cumulative[i]) {
+                return i;
+            }
+        }
+        // rounding, take the last arm that can be drawn
+        for (int i = cumulative.length - 1; i > 0; i--) {
+            if (cumulative[i] > cumulative[i - 1]) {
+                return i;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Applies the discoveries made since the previous draw, settles the arms played since
+     * then and recomputes the weights.
+     */
+    private void applyFeedback() {
+        mDrained.clear();
+        if (mReplay != null) {
+            while (mReplayIndex < mReplaySteps.length && mReplaySteps[mReplayIndex] <= mStep) {
+                mDrained.add(mReplay[mReplayIndex * 2]);
+                mDrained.add(mReplay[mReplayIndex * 2 + 1]);
+                mReplayIndex++;
+            }
+        } else {
+            synchronized (mQueued) {
+                mDrained.addAll(mQueued);
+                mQueued.clear();
+            }
+        }
+
+        boolean discovered = false;
+        boolean appRewarded = false;
+        String lastPkg = mLastApp >= 0 ? mApps.get(mLastApp).getPackageName() : null;
+        for (int i = 0; i < mDrained.size(); i += 2) {
+            String pkg = mDrained.get(i);
+            String state = mDrained.get(i + 1);
+            if (!mSeen.add(state)) {
+                continue;
+            }
+            discovered = true;
+            mDiscoveries++;
+            if (pkg.equals(lastPkg)) {
+                appRewarded = true; //新状态属于最近切换到的应用
+            }
+            if (mLog != null) {
+                try {
+                    mLog.write(mStep + " " + pkg + " " + state + "\n");
+                } catch (IOException e) {
+                    Logger.err.println("** Error: Failed writing " + mLogFile + ": " + e);
+                }
+            }
+        }
+
+        boolean settled = false;
+        for (Arm arm : mCategories) {
+            if (arm.mPending) {
+                arm.settle(discovered);
+                settled = true;
+            }
+        }
+        if (mLastApp >= 0 && mAppArms[mLastApp].mPending) {
+            mAppArms[mLastApp].settle(appRewarded);
+            updateCumulative(mAppArms, null, mAppCumulative);
+        }
+        if (settled) {
+            updateCumulative(mCategories, mBase, mCumulative);
+        }
+    }
+
+    /**
+     * Computes the running sums of the arm weights: the base weight scaled by the arm's
+     * rate over the mean rate, mixed with the base weight alone.
+     *
+     * @param base the base weight of each arm, or null for 1 each
+     */
+    private static void updateCumulative(Arm[] arms, float[] base, float[] out) {
+        float baseTotal = 0.0f;
+        float scaledTotal = 0.0f;
+        for (int i = 0; i < arms.length; i++) {
+            float b = base != null ? base[i] : 1.0f;
+            baseTotal += b;
+            scaledTotal += b * arms[i].rate();
+        }
+        float sum = 0.0f;
+        for (int i = 0; i < arms.length; i++) {
+            float b = base != null ? base[i] : 1.0f;
+            if (b > 0.0f) {
+                sum += EXPLORATION * b / baseTotal
+                        + (1.0f - EXPLORATION) * b * arms[i].rate() / scaledTotal;
+            }
+            out[i] = sum;
+        }
+    }
+
+    /**
+     * Closes the feedback log and prints what the weights converged to.
+     */
+    public void dump() {
+        if (mLog != null) {
+            try {
+                mLog.close();
+            } catch (IOException e) {
+                Logger.err.println("** Error: Failed writing " + mLogFile + ": " + e);
+            }
+        }
+        Logger.out.println(":Adaptive: draws=" + mStep + " states=" + mDiscoveries
+                + (mReplay != null ? " replayed" : ""));
+        float previous = 0.0f;
+        for (int i = 0; i < mCumulative.length; i++) {
+            if (mBase[i] > 0.0f) {
+                Logger.out.println(":Adaptive: category=" + i
+                        + " rate=" + mCategories[i].rate()
+                        + " weight=" + (mCumulative[i] - previous));
+            }
+            previous = mCumulative[i];
+        }
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2008 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.commands.monkey;
+
+import java.util.Random;
+
+/**
+ * Samples event categories in constant time with Vose's alias method.
+ * <p>
+ * Each draw takes one random column and one random float regardless of the number of
+ * categories. Building the table is linear in the number of categories.
+ * 别名采样：每次抽样的代价与事件类别数量无关
+ */
+public class MonkeyAliasSampler implements MonkeySourceRandom.EventTypeSampler {
+    private float[] mProbability = new float[0]; //每一列保留自身类别的概率
+    private int[] mAlias = new int[0]; //每一列的另一个类别
+
+    @Override
+    public void setWeights(float[] weights) {
+        final int n = weights.length;
+        float total = 0.0f;
+        for (float w : weights) {
+            total += Math.max(w, 0.0f);
+        }
+        if (total <= 0.0f) {
+            throw new IllegalArgumentException("No event category has a positive weight");
+        }
+
+        float[] scaled = new float[n];
+        int[] small = new int[n];
+        int[] large = new int[n];
+        int smallCount = 0;
+        int largeCount = 0;
+        for (int i = 0; i < n; i++) {
+            scaled[i] = Math.max(weights[i], 0.0f) * n / total;
+            if (scaled[i] < 1.0f) {
+                small[smallCount++] = i;
+            } else {
+                large[largeCount++] = i;
+            }
+        }
+
+        float[] probability = new float[n];
+        int[] alias = new int[n];
+        while (smallCount > 0 && largeCount > 0) {
+            int less = small[--smallCount];
+            int more = large[--largeCount];
+            probability[less] = scaled[less];
+            alias[less] = more;
+            scaled[more] = (scaled[more] + scaled[less]) - 1.0f;
+            if (scaled[more] < 1.0f) {
+                small[smallCount++] = more;
+            } else {
+                large[largeCount++] = more;
+            }
+        }
+        // Whatever is left is 1 up to rounding error.
+        while (largeCount > 0) {
+            int i = large[--largeCount];
+            probability[i] = 1.0f;
+            alias[i] = i;
+        }
+        while (smallCount > 0) {
+            int i = small[--smallCount];
+            probability[i] = 1.0f;
+            alias[i] = i;
+        }
+
+        mProbability = probability;
+        mAlias = alias;
+    }
+
+    @Override
+    public int nextCategory(Random random) {
+        int column = random.nextInt(mProbability.length);
+        return random.nextFloat() < mProbability[column] ? column : mAlias[column];
+    }
+}
@@ -0,0 +1,371 @@
+/*
+ * Copyright (C) 2008 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.commands.monkey;
+
+import android.view.MotionEvent;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Logging backend that moves the formatting and writing of log lines to a writer thread.
+ * <p>
+ * Producers copy a line, or the fields of an injected event, into a preallocated record
+ * of a ring and return; nothing is allocated per event. The ring takes several producers
+ * (the main loop, binder threads, the diagnostics thread) and one consumer, the writer
+ * thread, which prints the records in the order they were claimed. When the ring is full,
+ * producers wait for the writer instead of dropping lines.
+ * <p>
+ * With a binary event log, injected key and motion events are written to it in the
+ * {@link MonkeyEventLogDecoder} format instead of being printed as text; the decoder turns
+ * them back into the usual ":Sending ..." lines. Text lines are still printed.
+ * <p>
+ * Records still in the ring are lost if the process is killed; {@link #close} writes them
+ * out on a normal exit. Producers register while they fill a record, and close() waits
+ * for the registered ones before stopping the writer, so a line logged by a daemon thread
+ * during close() is either written by the writer or printed by its caller, never lost.
+ * 异步日志：生产者只把数据拷贝到预先分配的环形缓冲区，由写线程负责格式化与输出
+ */
+public class MonkeyAsyncLogger {
+    private static final int CAPACITY = 4096; // must be a power of two
+    private static final int MAX_POINTERS = 10; // more pointers are logged as the first ten
+
+    private static final int KIND_OUT = 0;
+    private static final int KIND_ERR = 1;
+    private static final int KIND_EVENT = 2;
+
+    /** How long the writer parks when the ring is empty and nobody woke it up. */
+    private static final long PARK_NANOS = 100 * 1000 * 1000;
+
+    /** How long a thread waiting on the writer parks before checking again. */
+    private static final long WAIT_NANOS = 50 * 1000;
+
+    /**
+     * One slot of the ring. {@link #sequence} equals the slot's next claim sequence while
+     * the slot is free, and that sequence + 1 once the record is published.
+     */
+    private static final class Record {
+        volatile long sequence;
+
+        int kind;
+        String text;
+
+        // injected event
+        int event; // MonkeyEventLogDecoder.EVENT_*
+        int action;
+        int result;
+        int arg; // key code, or id of the pointer the action refers to
+        long eventTime;
+        int pointerCount;
+        final int[] ids = new int[MAX_POINTERS];
+        final float[] xs = new float[MAX_POINTERS];
+        final float[] ys = new float[MAX_POINTERS];
+    }
+
+    private final Record[] mRing = new Record[CAPACITY];
+    private final AtomicLong mHead = new AtomicLong(); //下一个被生产者申请的序号
+    private volatile long mTail; //写线程下一个要处理的序号
+
+    private final Thread mWriter;
+    private volatile boolean mWriterParked;
+    private volatile boolean mClosed;
+    private final AtomicInteger mProducers = new AtomicInteger(); //正在填写记录的生产者数量
+
+    private final DataOutputStream mEventLog; //二进制事件日志，为null时事件以文本输出
+    private final StringBuilder mText = new StringBuilder(); //仅写线程使用
+
+    /**
+     * @param eventLogFile the binary event log to write, or null to print events as text
+     */
+    public MonkeyAsyncLogger(String eventLogFile) throws IOException {
+        for (int i = 0; i < CAPACITY; i++) {
+            mRing[i] = new Record();
+            mRing[i].sequence = i;
+        }
+        if (eventLogFile != null) {
+            mEventLog = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(eventLogFile)));
+            mEventLog.writeInt(MonkeyEventLogDecoder.MAGIC);
+            mEventLog.writeShort(MonkeyEventLogDecoder.VERSION);
+            mEventLog.writeShort(0);
+        } else {
+            mEventLog = null;
+        }
+        mWriter = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drainLoop();
+            }
+        }, "MonkeyLogger");
+        mWriter.setDaemon(true);
+        mWriter.start();
+    }
+
+    /**
+     * @return true if every injected event should be logged, regardless of verbosity
+     */
+    public boolean logsAllEvents() {
+        return mEventLog != null;
+    }
+
+    /**
+     * Queues a text line.
+     *
+     * @return false if the logger is closed and the caller should print the line itself
+     */
+    public boolean println(boolean err, String s) {
+        long seq = begin();
+        if (seq < 0) {
+            return false;
+        }
+        Record r = claim(seq);
+        if (r == null) {
+            return false;
+        }
+        r.kind = err ? KIND_ERR : KIND_OUT;
+        r.text = s;
+        publish(r, seq);
+        return true;
+    }
+
+    /**
+     * Queues an injected motion event.
+     *
+     * @param event MonkeyEventLogDecoder.EVENT_TOUCH or EVENT_TRACKBALL
+     * @param action the action, including the pointer index
+     * @param pointerCount the number of pointers
+     * @param ids the pointer ids, in the order of the pointers
+     * @param coords the pointer coordinates
+     * @param eventTime the time of the event
+     * @param result the result of the injection
+     * @return false if the logger is closed
+     */
+    public boolean logMotion(int event, int action, int pointerCount, int[] ids,
+            MotionEvent.PointerCoords[] coords, long eventTime, int result) {
+        long seq = begin();
+        if (seq < 0) {
+            return false;
+        }
+        Record r = claim(seq);
+        if (r == null) {
+            return false;
+        }
+        r.kind = KIND_EVENT;
+        r.event = event;
+        r.action = action;
+        r.result = result;
+        r.eventTime = eventTime;
+        int index = (action & MotionEvent.ACTION_POINTER_INDEX_MASK)
+                >> MotionEvent.ACTION_POINTER_INDEX_SHIFT;
+        r.arg = index < pointerCount ? ids[index] : -1;
+        int n = Math.min(pointerCount, MAX_POINTERS);
+        r.pointerCount = n;
+        for (int i = 0; i < n; i++) {
+            r.ids[i] = ids[i];
+            r.xs[i] = coords[i].x;
+            r.ys[i] = coords[i].y;
+        }
+        publish(r, seq);
+        return true;
+    }
+
+    /**
+     * Queues an injected key event.
+     *
+     * @return false if the logger is closed
+     */
+    public boolean logKey(int action, int keyCode, long eventTime, int result) {
+        long seq = begin();
+        if (seq < 0) {
+            return false;
+        }
+        Record r = claim(seq);
+        if (r == null) {
+            return false;
+        }
+        r.kind = KIND_EVENT;
+        r.event = MonkeyEventLogDecoder.EVENT_KEY;
+        r.action = action;
+        r.result = result;
+        r.eventTime = eventTime;
+        r.arg = keyCode;
+        r.pointerCount = 0;
+        publish(r, seq);
+        return true;
+    }
+
+    /**
+     * Waits until the writer has printed everything queued so far.
+     */
+    public void flush() {
+        long target = mHead.get();
+        while (mTail < target && mWriter.isAlive()) {
+            LockSupport.unpark(mWriter);
+            LockSupport.parkNanos(WAIT_NANOS);
+        }
+    }
+
+    /**
+     * Writes out the queued records and stops the writer. Lines logged afterwards are
+     * printed by the caller.
+     */
+    public void close() {
+        mClosed = true;
+        // producers that got past the check before it was set finish their records first
+        while (mProducers.get() > 0 && mWriter.isAlive()) {
+            LockSupport.unpark(mWriter);
+            LockSupport.parkNanos(WAIT_NANOS);
+        }
+        flush();
+        mWriter.interrupt();
+        try {
+            mWriter.join();
+        } catch (InterruptedException e) {
+            // the records are already written
+        }
+        if (mEventLog != null) {
+            try {
+                mEventLog.close();
+            } catch (IOException e) {
+                Logger.printErr("** Error: Failed closing the event log: " + e);
+            }
+        }
+    }
+
+    /**
+     * Registers a producer and takes the next sequence.
+     *
+     * @return the sequence, or -1 if the logger is closed
+     */
+    private long begin() {
+        mProducers.incrementAndGet();
+        if (mClosed) { // checked after registering, see close()
+            mProducers.decrementAndGet();
+            return -1;
+        }
+        return mHead.getAndIncrement();
+    }
+
+    /**
+     * Waits for the slot of a sequence to be free.
+     *
+     * @return the record, or null if the writer died and the caller must print the line
+     */
+    private Record claim(long seq) {
+        Record r = mRing[(int) (seq & (CAPACITY - 1))];
+        while (r.sequence != seq) { //缓冲区已满，等待写线程腾出位置
+            if (!mWriter.isAlive()) {
+                mProducers.decrementAndGet();
+                return null;
+            }
+            LockSupport.unpark(mWriter);
+            LockSupport.parkNanos(WAIT_NANOS);
+        }
+        return r;
+    }
+
+    private void publish(Record r, long seq) {
+        r.sequence = seq + 1;
+        mProducers.decrementAndGet();
+        if (mWriterParked) {
+            LockSupport.unpark(mWriter);
+        }
+    }
+
+    private void drainLoop() {
+        long tail = mTail;
+        while (true) {
+            Record r = mRing[(int) (tail & (CAPACITY - 1))];
+            if (r.sequence != tail + 1) {
+                flushEventLog();
+                if (mWriter.isInterrupted() && mHead.get() == tail) {
+                    return;
+                }
+                mWriterParked = true;
+                if (r.sequence != tail + 1) { // re-check after announcing, see publish()
+                    LockSupport.parkNanos(PARK_NANOS);
+                }
+                mWriterParked = false;
+                continue;
+            }
+            write(r);
+            r.text = null;
+            r.sequence = tail + CAPACITY; //释放该位置
+            tail++;
+            mTail = tail;
+        }
+    }
+
+    private void write(Record r) {
+        switch (r.kind) {
+            case KIND_OUT:
+                Logger.printOut(r.text);
+                break;
+            case KIND_ERR:
+                Logger.printErr(r.text);
+                break;
+            default:
+                if (mEventLog != null) {
+                    writeBinary(r);
+                } else {
+                    mText.setLength(0);
+                    if (r.event == MonkeyEventLogDecoder.EVENT_KEY) {
+                        MonkeyEventLogDecoder.formatKey(mText, r.action, r.arg);
+                    } else {
+                        MonkeyEventLogDecoder.formatMotion(mText, r.event, r.action, r.arg,
+                                r.pointerCount, r.ids, r.xs, r.ys);
+                    }
+                    Logger.printOut(mText.toString());
+                }
+                break;
+        }
+    }
+
+    private void writeBinary(Record r) {
+        try {
+            mEventLog.writeByte(r.event);
+            mEventLog.writeByte(r.result);
+            mEventLog.writeByte(r.pointerCount);
+            mEventLog.writeByte(0);
+            mEventLog.writeInt(r.action);
+            mEventLog.writeLong(r.eventTime);
+            mEventLog.writeInt(r.arg);
+            for (int i = 0; i < r.pointerCount; i++) {
+                mEventLog.writeInt(r.ids[i]);
+                mEventLog.writeFloat(r.xs[i]);
+                mEventLog.writeFloat(r.ys[i]);
+            }
+        } catch (IOException e) {
+            Logger.printErr("** Error: Failed writing the event log: " + e);
+        }
+    }
+
+    private void flushEventLog() {
+        if (mEventLog != null) {
+            try {
+                mEventLog.flush(); //缓冲区空闲时才写入磁盘
+            } catch (IOException e) {
+                Logger.printErr("** Error: Failed writing the event log: " + e);
+            }
+        }
+    }
+}
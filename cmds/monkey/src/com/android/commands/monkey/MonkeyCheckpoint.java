@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2008 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.commands.monkey;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Random;
+
+/**
+ * State of a monkey run at an event boundary, enough to continue the same event stream
+ * with --resume after the device rebooted or the monkey was killed.
+ * <p>
+ * A checkpoint is only taken when the event source has no generated events queued, so
+ * the saved Random state is exactly the state the next event is generated from. The file
+ * is written next to its final name, synced and renamed over it, so a reboot while writing
+ * leaves the previous checkpoint intact.
+ * <p>
+ * All values are big endian.
+ *
+ * <pre>
+ * int magic, short version, byte source, byte unused, long seed,
+ * int eventCounter, int cycleCounter, 5 * long dropped (keys, pointers, trackballs,
+ * flips, rotations), int randomLength, byte[randomLength] serialized Random,
+ * random source: boolean keyboardOpen
+ * script source: boolean opened, int position, 4 * long timing anchors
+ * </pre>
+ * 定期保存monkey运行状态，设备重启后可用--resume继续同一个事件流
+ */
+public class MonkeyCheckpoint {
+    static final int MAGIC = 0x4d4b4350; // "MKCP"
+    static final short VERSION = 1;
+
+    static final int SOURCE_RANDOM = 1;
+    static final int SOURCE_SCRIPT = 2;
+
+    int mSource;
+    long mSeed;
+    Random mRandom;
+    int mEventCounter;
+    int mCycleCounter;
+
+    long mDroppedKeyEvents;
+    long mDroppedPointerEvents;
+    long mDroppedTrackballEvents;
+    long mDroppedFlipEvents;
+    long mDroppedRotationEvents;
+
+    // MonkeySourceRandom
+    boolean mKeyboardOpen;
+
+    // MonkeySourceScript
+    boolean mScriptOpened;
+    int mScriptPosition; //当前这一遍已读取的行数（编译脚本为记录数）
+    long mLastRecordedDownTimeKey;
+    long mLastRecordedDownTimeMotion;
+    long mLastExportDownTimeKey;
+    long mLastExportDownTimeMotion;
+
+    /**
+     * Writes the checkpoint, replacing the file atomically.
+     */
+    public void write(String file) throws IOException {
+        ByteArrayOutputStream random = new ByteArrayOutputStream();
+        ObjectOutputStream oos = new ObjectOutputStream(random);
+        oos.writeObject(mRandom); //Random实现了Serializable，序列化后包含当前的种子状态
+        oos.close();
+
+        File target = new File(file);
+        File tmp = new File(file + ".tmp");
+        FileOutputStream fos = new FileOutputStream(tmp);
+        try {
+            DataOutputStream out = new DataOutputStream(fos);
+            out.writeInt(MAGIC);
+            out.writeShort(VERSION);
+            out.writeByte(mSource);
+            out.writeByte(0);
+            out.writeLong(mSeed);
+            out.writeInt(mEventCounter);
+            out.writeInt(mCycleCounter);
+            out.writeLong(mDroppedKeyEvents);
+            out.writeLong(mDroppedPointerEvents);
+            out.writeLong(mDroppedTrackballEvents);
+            out.writeLong(mDroppedFlipEvents);
+            out.writeLong(mDroppedRotationEvents);
+            out.writeInt(random.size());
+            random.writeTo(out);
+            if (mSource == SOURCE_RANDOM) {
+                out.writeBoolean(mKeyboardOpen);
+            } else {
+                out.writeBoolean(mScriptOpened);
+                out.writeInt(mScriptPosition);
+                out.writeLong(mLastRecordedDownTimeKey);
+                out.writeLong(mLastRecordedDownTimeMotion);
+                out.writeLong(mLastExportDownTimeKey);
+                out.writeLong(mLastExportDownTimeMotion);
+            }
+            out.flush();
+            fos.getFD().sync(); //确保设备掉电重启后文件内容完整
+        } finally {
+            fos.close();
+        }
+        if (!tmp.renameTo(target)) {
+            throw new IOException("Failed renaming " + tmp + " to " + target);
+        }
+    }
+
+    /**
+     * Reads a checkpoint.
+     *
+     * @return the checkpoint, or null if it could not be read
+     */
+    public static MonkeyCheckpoint read(String file) {
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != MAGIC) {
+                Logger.err.println("** Error: " + file + " is not a monkey checkpoint");
+                return null;
+            }
+            short version = in.readShort();
+            if (version != VERSION) {
+                Logger.err.println("** Error: Unsupported checkpoint version " + version);
+                return null;
+            }
+            MonkeyCheckpoint cp = new MonkeyCheckpoint();
+            cp.mSource = in.readByte();
+            in.readByte();
+            cp.mSeed = in.readLong();
+            cp.mEventCounter = in.readInt();
+            cp.mCycleCounter = in.readInt();
+            cp.mDroppedKeyEvents = in.readLong();
+            cp.mDroppedPointerEvents = in.readLong();
+            cp.mDroppedTrackballEvents = in.readLong();
+            cp.mDroppedFlipEvents = in.readLong();
+            cp.mDroppedRotationEvents = in.readLong();
+            byte[] random = new byte[in.readInt()];
+            in.readFully(random);
+            ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(random));
+            cp.mRandom = (Random) ois.readObject();
+            if (cp.mSource == SOURCE_RANDOM) {
+                cp.mKeyboardOpen = in.readBoolean();
+            } else {
+                cp.mScriptOpened = in.readBoolean();
+                cp.mScriptPosition = in.readInt();
+                cp.mLastRecordedDownTimeKey = in.readLong();
+                cp.mLastRecordedDownTimeMotion = in.readLong();
+                cp.mLastExportDownTimeKey = in.readLong();
+                cp.mLastExportDownTimeMotion = in.readLong();
+            }
+            return cp;
+        } catch (IOException e) {
+            Logger.err.println("** Error: Failed reading checkpoint " + file + ": " + e);
+            return null;
+        } catch (ClassNotFoundException e) {
+            Logger.err.println("** Error: Failed reading checkpoint " + file + ": " + e);
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // nothing left to do
+                }
+            }
+        }
+    }
+}
@@ -38,14 +38,13 @@ public class MonkeyCommandEvent extends MonkeyEvent {
     @Override
     public int injectEvent(IWindowManager iwm, IActivityManager iam, int verbose) {
         if (mCmd != null) {
-            //Execute the shell command 用于执行shell命令
-            try {
-                java.lang.Process p = Runtime.getRuntime().exec(mCmd); //在子进程中执行命令
-                int status = p.waitFor(); //等待子进程完成工作，并获取子进程的退出状态码
-                Logger.err.println("// Shell command " + mCmd + " status was " + status); //标准错误流中输出命令名，以及子进程的退出状态码（命令执行结果）
-            } catch (Exception e) {
-                Logger.err.println("// Exception from " + mCmd + ":"); //发生的任何异常，都捕获，并告知异常是由哪个命令引起的
-                Logger.err.println(e.toString()); //打印异常对象
+            //Execute the shell command on the shared shell worker 用于执行shell命令，不再每次fork子进程
+            int status = MonkeyShell.getInstance().run(mCmd, null,
+                    MonkeyShell.COMMAND_TIMEOUT_MS);
+            if (status == MonkeyShell.STATUS_TIMEOUT) {
+                Logger.err.println("// Shell command " + mCmd + " timed out");
+            } else {
+                Logger.err.println("// Shell command " + mCmd + " status was " + status); //标准错误流中输出命令名，以及命令的退出状态码（命令执行结果）
             }
         }
         return MonkeyEvent.INJECT_SUCCESS; //最后返回执行事件成功
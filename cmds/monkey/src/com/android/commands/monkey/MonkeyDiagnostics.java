@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2008 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.commands.monkey;
+
+import android.os.SystemClock;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs diagnostics captures (bugreports, ANR traces, meminfo, ...) one at a time on a
+ * background thread, so that event injection and the activity controller callbacks don't
+ * wait for them.
+ * <p>
+ * Each capture has a key, typically its report name. A capture is dropped if one with the
+ * same key is still queued, or started less than its dedupe window ago. Several ANRs of one
+ * process in quick succession therefore produce a single bugreport.
+ * 在后台线程中依次执行诊断信息的采集，相同的采集请求会被合并
+ */
+public class MonkeyDiagnostics {
+    private final ExecutorService mExecutor;
+
+    private final Object mLock = new Object();
+    private final HashSet<String> mQueued = new HashSet<String>(); //已排队但尚未开始的采集
+    private final HashMap<String, Long> mStarted = new HashMap<String, Long>(); //每种采集最近一次开始的时间
+
+    private long mBusyMillis; //采集所花费的总时间
+
+    public MonkeyDiagnostics() {
+        mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "MonkeyDiagnostics");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Queues a capture.
+     *
+     * @param key identifies identical captures
+     * @param dedupeMillis how long after one capture started another one with the same key
+     *        is dropped, 0 to only drop captures that are still queued
+     * @param capture the capture to run
+     * @return false if the capture was dropped
+     */
+    public boolean submit(final String key, final long dedupeMillis, final Runnable capture) {
+        synchronized (mLock) {
+            if (mQueued.contains(key)) {
+                return false;
+            }
+            Long started = mStarted.get(key);
+            if (started != null && SystemClock.uptimeMillis() - started < dedupeMillis) {
+                return false;
+            }
+            mQueued.add(key);
+        }
+        try {
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    long start = SystemClock.uptimeMillis();
+                    synchronized (mLock) {
+                        mQueued.remove(key);
+                        mStarted.put(key, start);
+                    }
+                    try {
+                        capture.run();
+                    } catch (RuntimeException e) {
+                        Logger.error("// Exception from diagnostics " + key + ":", e);
+                    }
+                    synchronized (mLock) {
+                        mBusyMillis += SystemClock.uptimeMillis() - start;
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            synchronized (mLock) {
+                mQueued.remove(key);
+            }
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Runs an action once every capture queued so far has completed.
+     */
+    public void runAfterPending(Runnable action) {
+        try {
+            mExecutor.execute(action);
+        } catch (RejectedExecutionException e) {
+            action.run(); // already drained, nothing is pending
+        }
+    }
+
+    /**
+     * @return the time spent running captures so far, in milliseconds
+     */
+    public long getBusyMillis() {
+        synchronized (mLock) {
+            return mBusyMillis;
+        }
+    }
+
+    /**
+     * Waits for all queued captures to complete. No captures can be queued afterwards.
+     */
+    public void drain() {
+        mExecutor.shutdown();
+        try {
+            while (!mExecutor.awaitTermination(1, TimeUnit.MINUTES)) {
+                Logger.out.println("// Waiting for diagnostics to complete");
+            }
+        } catch (InterruptedException e) {
+            Logger.err.println("** Interrupted while waiting for diagnostics");
+        }
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2008 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.commands.monkey;
+
+import android.graphics.Point;
+import android.hardware.display.DisplayManager;
+import android.hardware.display.DisplayManagerGlobal;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.RemoteException;
+import android.util.SparseArray;
+import android.view.Display;
+import android.view.IRotationWatcher;
+import android.view.IWindowManager;
+
+/**
+ * Caches the size of each display so that generating a gesture doesn't have to ask the
+ * display manager every time.
+ * <p>
+ * The cache is cleared when the monkey injects a {@link MonkeyRotationEvent} and when the
+ * window manager reports a rotation of a watched display. The entry of a single display is
+ * dropped when the display manager reports it resized or removed, so a removed display is
+ * looked up again, found missing, and no longer targeted.
+ * 缓存屏幕的宽和高，只有屏幕旋转时才重新获取
+ */
+public class MonkeyDisplayCache {
+    private static final Object sLock = new Object();
+
+    private static final SparseArray<Point> sSizes = new SparseArray<Point>(); //key为displayId
+
+    private static final SparseArray<IRotationWatcher> sWatchers =
+            new SparseArray<IRotationWatcher>();
+
+    private static DisplayManager.DisplayListener sDisplayListener;
+    private static HandlerThread sListenerThread; //monkey主线程没有Looper，回调在此线程中执行
+
+    private MonkeyDisplayCache() {
+    }
+
+    /**
+     * Returns the size of a display. The returned point must not be modified.
+     *
+     * @param displayId the display to look up
+     * @return the size, or null if there is no such display
+     */
+    public static Point getSize(int displayId) {
+        synchronized (sLock) {
+            Point size = sSizes.get(displayId);
+            if (size == null) {
+                Display display = DisplayManagerGlobal.getInstance().getRealDisplay(displayId);
+                if (display == null) {
+                    return null;
+                }
+                size = new Point(display.getWidth(), display.getHeight());
+                sSizes.put(displayId, size);
+            }
+            return size;
+        }
+    }
+
+    /**
+     * Forgets all cached sizes, they are looked up again on next use.
+     */
+    public static void invalidate() {
+        synchronized (sLock) {
+            sSizes.clear();
+        }
+    }
+
+    /**
+     * Asks the window manager to report rotations of a display so that its cached size is
+     * dropped even when something other than the monkey rotates the screen.
+     */
+    public static void watch(IWindowManager wm, int displayId) {
+        IRotationWatcher watcher = new IRotationWatcher.Stub() {
+            @Override
+            public void onRotationChanged(int rotation) {
+                invalidate();
+            }
+        };
+        try {
+            wm.watchRotation(watcher, displayId);
+            synchronized (sLock) {
+                sWatchers.put(displayId, watcher);
+            }
+        } catch (RemoteException e) {
+            Logger.err.println("** Failed watching rotation of display " + displayId);
+        }
+    }
+
+    /**
+     * Asks the display manager to report displays that change or go away, so that their
+     * cached sizes are dropped.
+     */
+    public static void watchDisplays() {
+        synchronized (sLock) {
+            if (sDisplayListener != null) {
+                return;
+            }
+            sListenerThread = new HandlerThread("MonkeyDisplayListener");
+            sListenerThread.start();
+            sDisplayListener = new DisplayManager.DisplayListener() {
+                @Override
+                public void onDisplayAdded(int displayId) {
+                }
+
+                @Override
+                public void onDisplayChanged(int displayId) {
+                    forget(displayId);
+                }
+
+                @Override
+                public void onDisplayRemoved(int displayId) {
+                    forget(displayId);
+                }
+            };
+            DisplayManagerGlobal.getInstance().registerDisplayListener(sDisplayListener,
+                    new Handler(sListenerThread.getLooper()),
+                    DisplayManager.EVENT_FLAG_DISPLAY_CHANGED
+                            | DisplayManager.EVENT_FLAG_DISPLAY_REMOVED);
+        }
+    }
+
+    private static void forget(int displayId) {
+        synchronized (sLock) {
+            sSizes.remove(displayId);
+        }
+    }
+
+    /**
+     * Stops all watchers registered with {@link #watch} and {@link #watchDisplays}.
+     */
+    public static void unwatchAll(IWindowManager wm) {
+        synchronized (sLock) {
+            if (sDisplayListener != null) {
+                DisplayManagerGlobal.getInstance().unregisterDisplayListener(sDisplayListener);
+                sDisplayListener = null;
+                sListenerThread.quit();
+                sListenerThread = null;
+            }
+            for (int i = 0; i < sWatchers.size(); i++) {
+                try {
+                    wm.removeRotationWatcher(sWatchers.valueAt(i));
+                } catch (RemoteException e) {
+                    // the window manager is gone, nothing to remove from
+                }
+            }
+            sWatchers.clear();
+        }
+    }
+}
@@ -49,6 +49,15 @@ public abstract class MonkeyEvent {
     // error code for security exception during injection
     public static final int INJECT_ERROR_SECURITY_EXCEPTION = -2; //表示注入事件时出现安全异常的错误码，同样父类中定义
 
+    /**
+     * Delay to wait after this event has been injected, or -1 if none. Set by
+     * {@link MonkeyEventQueue} in place of queueing a separate {@link MonkeyThrottleEvent}.
+     */
+    private long mThrottle = -1;
+
+    /** Set on events handed out by a pool; only those are handed back by {@link #recycle()}. */
+    private boolean mRecyclable;
+
     /**
      * 创建MonkeyEvent对象，必须调用的构造方法，必须指定事件类型
      * @param type 表示事件的分类
@@ -57,6 +66,32 @@ public abstract class MonkeyEvent {
         eventType = type;
     }
 
+    /**
+     * @return the delay in milliseconds to wait after injecting this event, or -1 if none
+     */
+    public long getThrottle() {
+        return mThrottle;
+    }
+
+    public void setThrottle(long throttle) {
+        mThrottle = throttle;
+    }
+
+    final boolean isRecyclable() {
+        return mRecyclable;
+    }
+
+    final void setRecyclable(boolean recyclable) {
+        mRecyclable = recyclable;
+    }
+
+    /**
+     * Returns this event to its pool once it has been injected. The event must not be used
+     * afterwards. Events that were not obtained from a pool are left alone.
+     */
+    public void recycle() {
+    }
+
     /**事件类型
      * @return event type 用于返回事件类型
      */
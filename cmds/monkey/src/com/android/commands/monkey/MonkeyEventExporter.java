@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2008 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.commands.monkey;
+
+import android.content.ComponentName;
+import android.view.MotionEvent;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Writes generated events as a script for {@link MonkeySourceScript}, instead of injecting
+ * them. Replaying the script with -f injects the same events in the same order, with the
+ * same throttles.
+ * <p>
+ * A "# event N" comment is written before every {@link #MARK_INTERVAL}th event, counted
+ * like the monkey counts injected events, so the tail leading up to a crash can be cut out
+ * of the script: keep the header, up to "start data >>", and the lines after a mark.
+ * <p>
+ * Motion events use the DispatchMotion command, which keeps every pointer. Their down
+ * times are replaced by gesture numbers, since the replay only uses them to tell gestures
+ * apart and events generated within the same millisecond would otherwise merge.
+ * 将生成的事件写成脚本，不注入，便于快速得到某个种子的事件序列并截取回放
+ */
+public class MonkeyEventExporter {
+    /** Events between two "# event N" marks. */
+    static final int MARK_INTERVAL = 1000;
+
+    private final Writer mOut;
+    private final StringBuilder mLine = new StringBuilder();
+
+    private long mLastDownTime = -1; //上一个触摸事件生成时的按下时间
+    private long mGesture; //手势编号，替代按下时间
+    private long mUnsupported;
+
+    /**
+     * Opens the script and writes its header.
+     *
+     * @param file the script to write
+     * @param count the number of events that will be exported, for the header
+     */
+    public MonkeyEventExporter(String file, long count) throws IOException {
+        mOut = new BufferedWriter(new FileWriter(file), 64 * 1024);
+        mOut.write("type= raw events\n");
+        mOut.write(MonkeySourceScript.HEADER_COUNT + " " + count + "\n");
+        mOut.write(MonkeySourceScript.HEADER_SPEED + " 1.0\n");
+        mOut.write(MonkeySourceScript.STARTING_DATA_LINE + "\n");
+    }
+
+    /**
+     * Writes one event.
+     *
+     * @param ev the event
+     * @param eventNumber the number the monkey gives the event, to place the marks
+     */
+    public void export(MonkeyEvent ev, long eventNumber) throws IOException {
+        if (eventNumber % MARK_INTERVAL == 0 && !(ev instanceof MonkeyThrottleEvent)) {
+            mOut.write("# event " + eventNumber + "\n");
+        }
+        mLine.setLength(0);
+        if (ev.getThrottle() > 0) {
+            mLine.append("Throttle(").append(ev.getThrottle()).append(")\n"); //作用于下一行的事件
+        }
+
+        if (ev instanceof MonkeyKeyEvent) {
+            MonkeyKeyEvent e = (MonkeyKeyEvent) ev;
+            mLine.append("DispatchKey(").append(e.getDownTime())
+                    .append(',').append(e.getEventTime())
+                    .append(',').append(e.getAction())
+                    .append(',').append(e.getKeyCode())
+                    .append(',').append(e.getRepeatCount())
+                    .append(',').append(e.getMetaState())
+                    .append(',').append(e.getDeviceId())
+                    .append(',').append(e.getScanCode()).append(')');
+        } else if (ev instanceof MonkeyMotionEvent) {
+            appendMotion((MonkeyMotionEvent) ev);
+        } else if (ev instanceof MonkeyRotationEvent) {
+            MonkeyRotationEvent e = (MonkeyRotationEvent) ev;
+            mLine.append("RotateScreen(").append(e.getRotationDegree())
+                    .append(',').append(e.isPersist() ? 1 : 0).append(')');
+        } else if (ev instanceof MonkeyActivityEvent) {
+            MonkeyActivityEvent e = (MonkeyActivityEvent) ev;
+            ComponentName app = e.getComponent();
+            mLine.append("LaunchActivity(").append(app.getPackageName())
+                    .append(',').append(app.getClassName());
+            if (e.mAlarmTime != 0) {
+                mLine.append(',').append(e.mAlarmTime);
+            }
+            mLine.append(')');
+        } else if (ev instanceof MonkeyFlipEvent) {
+            mLine.append("DispatchFlip(").append(((MonkeyFlipEvent) ev).isKeyboardOpen())
+                    .append(')');
+        } else if (ev instanceof MonkeyPermissionEvent) {
+            MonkeyPermissionEvent e = (MonkeyPermissionEvent) ev;
+            mLine.append("TogglePermission(").append(e.getPackageName())
+                    .append(',').append(e.getPermissionName()).append(')');
+        } else if (ev instanceof MonkeyThrottleEvent) {
+            mLine.append("UserWait(").append(((MonkeyThrottleEvent) ev).getThrottleTime())
+                    .append(')');
+        } else {
+            mUnsupported++;
+            mLine.append("# not exported: ").append(ev.getClass().getSimpleName());
+        }
+        mLine.append('\n');
+        mOut.append(mLine);
+    }
+
+    private void appendMotion(MonkeyMotionEvent e) {
+        long downTime = e.getDownTime();
+        int action = e.getAction();
+        if (downTime < 0 || downTime != mLastDownTime
+                || (action & MotionEvent.ACTION_MASK) == MotionEvent.ACTION_DOWN) {
+            mGesture++; //新的手势，没有按下时间的事件（如轨迹球移动）各自单独成组
+        }
+        mLastDownTime = downTime;
+
+        mLine.append("DispatchMotion(")
+                .append(e.getEventType() == MonkeyEvent.EVENT_TYPE_TRACKBALL ? "trackball"
+                        : "touch")
+                .append(',').append(mGesture)
+                .append(',').append(action)
+                .append(',').append(e.getDisplayId())
+                .append(',').append(e.getIntermediateNote() ? 1 : 0)
+                .append(',').append(e.getPointerCount());
+        for (int i = 0; i < e.getPointerCount(); i++) {
+            MotionEvent.PointerCoords c = e.getPointerCoords(i);
+            mLine.append(',').append(e.getPointerId(i))
+                    .append(',').append(c.x)
+                    .append(',').append(c.y);
+        }
+        mLine.append(')');
+    }
+
+    /**
+     * Finishes the script.
+     */
+    public void close() throws IOException {
+        mOut.close();
+        if (mUnsupported > 0) {
+            Logger.err.println("** " + mUnsupported + " events could not be exported");
+        }
+    }
+}
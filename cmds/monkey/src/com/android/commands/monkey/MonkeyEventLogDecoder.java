@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2008 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.commands.monkey;
+
+import android.view.KeyEvent;
+import android.view.MotionEvent;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+/**
+ * Reads a binary event log written by {@link MonkeyAsyncLogger} and prints it as the text
+ * the monkey prints for each injected event.
+ * <p>
+ * All values are big endian.
+ *
+ * <pre>
+ * header: int magic, short version, short unused
+ * record: byte event, byte result, byte pointerCount, byte unused, int action,
+ *         long eventTime, int arg, pointerCount * (int id, float x, float y)
+ * </pre>
+ * For key events arg is the key code, for motion events the id of the pointer the action
+ * refers to. The result is the MonkeyEvent.INJECT_* code of the injection.
+ * 将二进制事件日志还原为":Sending Touch (ACTION_DOWN)"格式的文本
+ */
+public class MonkeyEventLogDecoder {
+    static final int MAGIC = 0x4d4b4c31; // "MKL1"
+    static final short VERSION = 1;
+
+    static final int EVENT_TOUCH = 1;
+    static final int EVENT_TRACKBALL = 2;
+    static final int EVENT_KEY = 3;
+
+    private static final int MAX_POINTERS = 255;
+
+    private MonkeyEventLogDecoder() {
+    }
+
+    /**
+     * @return the EVENT_* value for the type label of a motion event
+     */
+    static int motionEvent(String typeLabel) {
+        return "Trackball".equals(typeLabel) ? EVENT_TRACKBALL : EVENT_TOUCH;
+    }
+
+    /**
+     * Prints a binary event log.
+     *
+     * @param file the event log to read
+     * @param showTimes if true, each line is prefixed with the event time
+     * @return false if the log could not be read
+     */
+    public static boolean decode(String file, boolean showTimes) {
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != MAGIC) {
+                Logger.err.println("** Error: " + file + " is not a monkey event log");
+                return false;
+            }
+            short version = in.readShort();
+            if (version != VERSION) {
+                Logger.err.println("** Error: Unsupported event log version " + version);
+                return false;
+            }
+            in.readShort();
+
+            int[] ids = new int[MAX_POINTERS];
+            float[] xs = new float[MAX_POINTERS];
+            float[] ys = new float[MAX_POINTERS];
+            StringBuilder sb = new StringBuilder();
+            int records = 0;
+            while (true) {
+                int event;
+                try {
+                    event = in.readUnsignedByte();
+                } catch (EOFException e) {
+                    break;
+                }
+                int result = in.readUnsignedByte();
+                int pointerCount = in.readUnsignedByte();
+                in.readUnsignedByte();
+                int action = in.readInt();
+                long eventTime = in.readLong();
+                int arg = in.readInt();
+                for (int i = 0; i < pointerCount; i++) {
+                    ids[i] = in.readInt();
+                    xs[i] = in.readFloat();
+                    ys[i] = in.readFloat();
+                }
+
+                sb.setLength(0);
+                if (showTimes) {
+                    sb.append('[').append(eventTime).append("] ");
+                }
+                if (event == EVENT_KEY) {
+                    formatKey(sb, action, arg);
+                } else {
+                    formatMotion(sb, event, action, arg, pointerCount, ids, xs, ys);
+                }
+                Logger.out.println(sb.toString());
+                if (result == MonkeyEvent.INJECT_FAIL) {
+                    Logger.out.println("    // Injection Failed");
+                }
+                records++;
+            }
+            Logger.out.println("// Decoded " + records + " events from " + file);
+            return true;
+        } catch (IOException e) {
+            Logger.err.println("** Error: Failed reading " + file + ": " + e);
+            return false;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // nothing left to do
+                }
+            }
+        }
+    }
+
+    /**
+     * Formats a key event like MonkeyKeyEvent does.
+     */
+    static void formatKey(StringBuilder sb, int action, int keyCode) {
+        sb.append(":Sending Key (")
+                .append(action == KeyEvent.ACTION_UP ? "ACTION_UP" : "ACTION_DOWN")
+                .append("): ").append(keyCode).append("    // ");
+        try {
+            sb.append(MonkeySourceRandom.getKeyName(keyCode));
+        } catch (ArrayIndexOutOfBoundsException e) {
+            sb.append("Unknown key event");
+        }
+    }
+
+    /**
+     * Formats a motion event like MonkeyMotionEvent does.
+     */
+    static void formatMotion(StringBuilder sb, int event, int action, int actionPointerId,
+            int pointerCount, int[] ids, float[] xs, float[] ys) {
+        sb.append(":Sending ").append(event == EVENT_TRACKBALL ? "Trackball" : "Touch")
+                .append(" (");
+        switch (action & MotionEvent.ACTION_MASK) {
+            case MotionEvent.ACTION_DOWN:
+                sb.append("ACTION_DOWN");
+                break;
+            case MotionEvent.ACTION_MOVE:
+                sb.append("ACTION_MOVE");
+                break;
+            case MotionEvent.ACTION_UP:
+                sb.append("ACTION_UP");
+                break;
+            case MotionEvent.ACTION_CANCEL:
+                sb.append("ACTION_CANCEL");
+                break;
+            case MotionEvent.ACTION_POINTER_DOWN:
+                sb.append("ACTION_POINTER_DOWN ").append(actionPointerId);
+                break;
+            case MotionEvent.ACTION_POINTER_UP:
+                sb.append("ACTION_POINTER_UP ").append(actionPointerId);
+                break;
+            default:
+                sb.append(action);
+                break;
+        }
+        sb.append("):");
+        for (int i = 0; i < pointerCount; i++) {
+            sb.append(" ").append(ids[i]);
+            sb.append(":(").append(xs[i]).append(",").append(ys[i]).append(")");
+        }
+    }
+}
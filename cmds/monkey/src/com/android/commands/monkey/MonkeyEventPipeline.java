@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2008 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.commands.monkey;
+
+import android.os.SystemClock;
+import android.view.MotionEvent;
+
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * An event source that generates events on a background thread.
+ * <p>
+ * The wrapped source is only ever called from the generator thread, one event at a time,
+ * so the sequence handed to the injection loop is exactly the sequence the source would
+ * have produced on its own. The generator runs ahead of injection by at most
+ * {@code depth} events, so a source whose events depend on the device state left by
+ * earlier events, such as the display size after a rotation, must not be wrapped.
+ * 生产者/消费者模式：生成线程负责填充事件，monkey主线程只负责注入
+ */
+public class MonkeyEventPipeline implements MonkeyEventSource {
+    /** Marks the end of the wrapped event stream, the queue can't hold null. */
+    private static final MonkeyEvent END_OF_STREAM = new MonkeyNoopEvent();
+
+    private final MonkeyEventSource mSource; //被包装的事件源，只在生成线程中访问
+    private final ArrayBlockingQueue<MonkeyEvent> mReady; //有界的环形队列，存放已生成好的事件
+    private Thread mGenerator;
+    private volatile Throwable mFailure; //生成线程中发生的异常，交给主线程抛出
+    private volatile boolean mStopped;
+    private boolean mEnded;
+
+    /** Down time of the current gesture as generated, and its shift to injection time. */
+    private long mGeneratedDownTime = -1;
+    private long mDownTimeShift;
+
+    /**
+     * @param source the source to generate events from
+     * @param depth the maximum number of events generated ahead of injection
+     */
+    public MonkeyEventPipeline(MonkeyEventSource source, int depth) {
+        mSource = source;
+        mReady = new ArrayBlockingQueue<MonkeyEvent>(depth);
+    }
+
+    private synchronized void startGenerator() {
+        if (mGenerator != null) {
+            return;
+        }
+        mGenerator = new Thread("MonkeyEventGenerator") {
+            @Override
+            public void run() {
+                try {
+                    while (!mStopped) {
+                        MonkeyEvent ev = mSource.getNextEvent();
+                        mReady.put(ev == null ? END_OF_STREAM : ev); //队列满时阻塞等待主线程消费
+                        if (ev == null) {
+                            return;
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    // shutdown() was called
+                } catch (RuntimeException e) {
+                    mFailure = e;
+                    try {
+                        mReady.put(END_OF_STREAM); //队列满时offer()会失败，主线程将永远阻塞在take()上
+                    } catch (InterruptedException ie) {
+                        // shutdown() was called
+                    }
+                }
+            }
+        };
+        mGenerator.setDaemon(true);
+        mGenerator.start();
+    }
+
+    /**
+     * Stops the generator thread. Events generated but not yet injected are discarded.
+     */
+    public void shutdown() {
+        mStopped = true;
+        synchronized (this) {
+            if (mGenerator != null) {
+                mGenerator.interrupt();
+            }
+        }
+        mReady.clear(); //唤醒可能阻塞在put()上的生成线程
+    }
+
+    /**
+     * @return the number of generated events waiting to be injected
+     */
+    public int size() {
+        return mReady.size();
+    }
+
+    @Override
+    public MonkeyEvent getNextEvent() {
+        if (mEnded) {
+            return null;
+        }
+        startGenerator();
+        MonkeyEvent ev;
+        try {
+            ev = mReady.take();
+        } catch (InterruptedException e) {
+            return null;
+        }
+        if (ev == END_OF_STREAM) {
+            mEnded = true;
+            if (mFailure != null) {
+                throw new IllegalStateException("Event generator failed", mFailure);
+            }
+            return null;
+        }
+        if (ev instanceof MonkeyMotionEvent) {
+            rebaseDownTime((MonkeyMotionEvent) ev);
+        }
+        return ev;
+    }
+
+    /**
+     * Motion events get their down time when they are generated, which may be well before
+     * they are injected. Shift each gesture so that its down time is taken when the
+     * ACTION_DOWN is actually injected, otherwise a queued tap can look like a long press.
+     */
+    private void rebaseDownTime(MonkeyMotionEvent ev) {
+        long downTime = ev.getDownTime();
+        if (downTime < 0) {
+            return;
+        }
+        if ((ev.getAction() & MotionEvent.ACTION_MASK) == MotionEvent.ACTION_DOWN
+                || downTime != mGeneratedDownTime) {
+            mGeneratedDownTime = downTime;
+            mDownTimeShift = SystemClock.uptimeMillis() - downTime;
+        }
+        ev.setDownTime(downTime + mDownTimeShift);
+    }
+
+    @Override
+    public void setVerbose(int verbose) {
+        mSource.setVerbose(verbose);
+    }
+
+    @Override
+    public boolean validate() {
+        return mSource.validate();
+    }
+}
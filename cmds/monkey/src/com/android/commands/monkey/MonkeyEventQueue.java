@@ -16,42 +16,67 @@
 
 package com.android.commands.monkey;
 
-import java.util.LinkedList;
+import java.util.NoSuchElementException;
 import java.util.Random;
 
 /**
  * class for keeping a monkey event queue
- * 双向链表，存储的元素对象是MonkeyEvent
- * 自定义的LinkedList
+ * <p>
+ * An array backed ring buffer, so queueing an event does not allocate once the ring has
+ * grown to the largest batch a source generates. The throttle is stored on the event
+ * itself instead of queueing a {@link MonkeyThrottleEvent} after it.
+ * 环形数组实现的队列，添加事件时不再创建链表节点
  */
-@SuppressWarnings("serial")
-public class MonkeyEventQueue extends LinkedList<MonkeyEvent> {
+public class MonkeyEventQueue {
+    private static final int INITIAL_CAPACITY = 64; // must be a power of two
+
+    private MonkeyEvent[] mEvents = new MonkeyEvent[INITIAL_CAPACITY];
+    private int mHead; //队首元素的下标
+    private int mSize; //队列中的事件数量
 
     private Random mRandom; //MonkeyEventQueue对象持有的Random对象，用于生成随机间隔时间
     private long mThrottle; //MonkeyEventQueue对象持有的事件停留间隔时间
     private boolean mRandomizeThrottle; //MonkeyEventQueue对象持有的是否需要随机间隔
 
     /**
-     * 创建双向链表对象的构造方法
+     * 创建事件队列对象的构造方法
      * @param random 指定Random对象
      * @param throttle 指定间隔时间
      * @param randomizeThrottle 指定是否开启随机间隔
      */
     public MonkeyEventQueue(Random random, long throttle, boolean randomizeThrottle) {
-        super();
         mRandom = random;
         mThrottle = throttle;
         mRandomizeThrottle = randomizeThrottle;
     }
 
+    public boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
     /**
-     * 用于将事件添加到双向链表尾部的方法
-     * 不过我们新加了一个功能，要不要在它的尾部立即插入一个MonkeyThrottleEvent事件，它表示间隔时间
+     * Adds an event to the tail of the queue without any throttle.
+     */
+    public void add(MonkeyEvent e) {
+        if (mSize == mEvents.length) {
+            grow();
+        }
+        mEvents[(mHead + mSize) & (mEvents.length - 1)] = e;
+        mSize++;
+    }
+
+    /**
+     * Adds an event to the tail of the queue. Throttlable events get the configured
+     * throttle, which is waited for after the event is injected.
+     * 如果事件支持间隔，直接把间隔时间记录在事件对象上
      * @param e 表示事件对象（具体是由子类对象传递进来的）
      */
-    @Override
     public void addLast(MonkeyEvent e) {
-        super.add(e);
+        add(e);
         if (e.isThrottlable()) { //事件是否支持间隔时间
             long throttle = mThrottle; //固定间隔值
             if (mRandomizeThrottle && (mThrottle > 0)) { //如果支持随机间隔，重新计算间隔时间
@@ -62,7 +87,49 @@ public class MonkeyEventQueue extends LinkedList<MonkeyEvent> {
                 throttle %= mThrottle;
                 ++throttle;
             }
-            super.add(new MonkeyThrottleEvent(throttle));  //向当前事件的后面直接添加一个间隔事件
+            e.setThrottle(throttle);
+        }
+    }
+
+    /**
+     * @return the event at the head of the queue
+     * @throws NoSuchElementException if the queue is empty
+     */
+    public MonkeyEvent getFirst() {
+        if (mSize == 0) {
+            throw new NoSuchElementException();
+        }
+        return mEvents[mHead];
+    }
+
+    /**
+     * Removes and returns the event at the head of the queue.
+     * @throws NoSuchElementException if the queue is empty
+     */
+    public MonkeyEvent removeFirst() {
+        if (mSize == 0) {
+            throw new NoSuchElementException();
+        }
+        MonkeyEvent e = mEvents[mHead];
+        mEvents[mHead] = null;
+        mHead = (mHead + 1) & (mEvents.length - 1);
+        mSize--;
+        return e;
+    }
+
+    public void clear() {
+        while (mSize > 0) {
+            removeFirst();
+        }
+        mHead = 0;
+    }
+
+    private void grow() {
+        MonkeyEvent[] events = new MonkeyEvent[mEvents.length * 2];
+        for (int i = 0; i < mSize; i++) {
+            events[i] = mEvents[(mHead + i) & (mEvents.length - 1)];
         }
+        mEvents = events;
+        mHead = 0;
     }
 }
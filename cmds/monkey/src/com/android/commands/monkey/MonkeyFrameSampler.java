@@ -0,0 +1,429 @@
+/*
+ * Copyright (C) 2008 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.commands.monkey;
+
+import android.os.IBinder;
+import android.os.ParcelFileDescriptor;
+import android.os.RemoteException;
+import android.os.ServiceManager;
+
+import com.android.commands.monkey.MonkeyMetrics.Histogram;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Samples per-frame render times in the background and attributes them to what the
+ * monkey was doing when each frame started.
+ * <p>
+ * Every interval the "gfxinfo" service is dumped with the framestats argument, in
+ * process through the binder, without forking dumpsys. Each frame of the PROFILEDATA
+ * sections takes FrameCompleted - IntendedVsync; frames already seen and frames with
+ * non-zero flags, which the renderer marks as not representative, are skipped.
+ * <p>
+ * The injection thread marks segments in a ring of {@link #TIMELINE_CAPACITY} entries: the
+ * type of the injected event, or a named capture between StartCaptureFramerate and
+ * EndCaptureFramerate script lines. A frame is attributed to the segment active at its
+ * intended vsync. Both clocks are CLOCK_MONOTONIC. Frames of the last
+ * {@link #FRAME_CAPACITY} are kept in a second ring for the recent jank line of
+ * {@link #dump}.
+ * <p>
+ * The renderer keeps only about the last 120 frames of each window for framestats, about
+ * 2 s at 60 Hz, so with longer intervals frames of busy windows are missed.
+ * 后台采集每一帧的耗时，并按当时注入的事件或脚本片段统计卡顿分布
+ */
+public class MonkeyFrameSampler {
+    /** Frames slower than one 60 Hz vsync are counted as janky. */
+    static final long JANK_THRESHOLD_US = 16667;
+
+    private static final long STOP_TIMEOUT_MS = 5000;
+
+    private static final int TIMELINE_CAPACITY = 8192;
+    private static final int FRAME_CAPACITY = 4096;
+
+    private static final String PROFILEDATA = "---PROFILEDATA---";
+    private static final String PROCESS_PREFIX = "** Graphics info for pid";
+
+    private static MonkeyFrameSampler sInstance; //当前运行的采集器，供帧率事件使用
+
+    /** Frames attributed to one label. */
+    private static final class Segment {
+        String mLabel;
+        final Histogram mFrames = new Histogram(); //每一帧的耗时，微秒
+        long mJank;
+
+        Segment(String label) {
+            mLabel = label;
+        }
+    }
+
+    private final long mIntervalMillis;
+    private final String[] mPackages; //为空时采集所有进程
+    private final Thread mThread;
+    private volatile boolean mStopped;
+
+    // everything below is guarded by this
+    private final long[] mTimelineStart = new long[TIMELINE_CAPACITY];
+    private final Segment[] mTimelineSegment = new Segment[TIMELINE_CAPACITY];
+    private long mTimelineHead; //已写入的片段数量
+    private final List<Segment> mSegments = new ArrayList<Segment>();
+    private final HashMap<String, Segment> mEventSegments = new HashMap<String, Segment>();
+    private String mLastEventLabel;
+    private Segment mCapture; //当前打开的命名片段
+
+    private final long[] mFrameDurations = new long[FRAME_CAPACITY];
+    private long mFrameHead;
+
+    // only used by the sampling thread
+    private final HashMap<String, Long> mLastVsync = new HashMap<String, Long>();
+    private long mSampleErrors;
+
+    /**
+     * @param intervalMillis how often the frame stats are dumped
+     * @param packages the packages to sample, empty for every process
+     */
+    public MonkeyFrameSampler(long intervalMillis, String[] packages) {
+        mIntervalMillis = intervalMillis;
+        mPackages = packages;
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                sampleLoop();
+            }
+        }, "MonkeyFrameSampler");
+        mThread.setDaemon(true);
+    }
+
+    /**
+     * Makes this the sampler returned by {@link #getInstance}.
+     */
+    public static void setInstance(MonkeyFrameSampler sampler) {
+        sInstance = sampler;
+    }
+
+    /**
+     * @return the sampler of the current run, or null if frames are not sampled
+     */
+    public static MonkeyFrameSampler getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * Passes a StartCaptureFramerate or EndCaptureFramerate script line to the sampler of
+     * the current run, if there is one. The capture events print their own frame rate
+     * either way.
+     *
+     * @param status "start" or "end"
+     * @param name the name of the capture, used when it ends
+     */
+    public static void markCapture(String status, String name) {
+        MonkeyFrameSampler sampler = sInstance;
+        if (sampler == null) {
+            return;
+        }
+        if ("start".equals(status)) {
+            sampler.beginCapture();
+        } else if ("end".equals(status)) {
+            sampler.endCapture(name);
+        }
+    }
+
+    public void start() {
+        mThread.start();
+    }
+
+    /**
+     * Takes a last sample and stops the sampling thread.
+     */
+    public void stop() {
+        mStopped = true;
+        mThread.interrupt();
+        try {
+            mThread.join(STOP_TIMEOUT_MS);
+        } catch (InterruptedException e) {
+            return; // the last frames are lost
+        }
+        if (!mThread.isAlive()) {
+            sampleOnce(); //采集线程可能卡在某个进程的dump上，这时不再采集
+        }
+    }
+
+    /**
+     * Starts the segment of an injected event type, unless a named capture is open.
+     */
+    public synchronized void noteEvent(String label) {
+        if (mCapture != null || label.equals(mLastEventLabel)) {
+            return;
+        }
+        mLastEventLabel = label;
+        Segment segment = mEventSegments.get(label);
+        if (segment == null) {
+            segment = new Segment("event=" + label);
+            mEventSegments.put(label, segment);
+            mSegments.add(segment);
+        }
+        mark(segment);
+    }
+
+    /**
+     * Opens a named capture. Its name is given when it ends.
+     */
+    public synchronized void beginCapture() {
+        mCapture = new Segment("capture");
+        mSegments.add(mCapture);
+        mark(mCapture);
+    }
+
+    /**
+     * Closes the named capture and goes back to attributing frames to event types.
+     *
+     * @param name the name the frames of the capture are reported under
+     */
+    public synchronized void endCapture(String name) {
+        if (mCapture == null) {
+            return;
+        }
+        if (name != null) {
+            mCapture.mLabel = "capture=" + name;
+        }
+        mCapture = null;
+        String label = mLastEventLabel;
+        mLastEventLabel = null;
+        if (label != null) {
+            noteEvent(label);
+        }
+    }
+
+    private void mark(Segment segment) {
+        int slot = (int) (mTimelineHead % TIMELINE_CAPACITY);
+        mTimelineStart[slot] = System.nanoTime();
+        mTimelineSegment[slot] = segment;
+        mTimelineHead++;
+    }
+
+    private void sampleLoop() {
+        while (!mStopped) {
+            try {
+                Thread.sleep(mIntervalMillis);
+            } catch (InterruptedException e) {
+                return;
+            }
+            sampleOnce();
+        }
+    }
+
+    private void sampleOnce() {
+        IBinder gfxinfo = ServiceManager.getService("gfxinfo");
+        if (gfxinfo == null) {
+            return;
+        }
+        if (mPackages.length == 0) {
+            dump(gfxinfo, new String[] { "framestats" });
+        } else {
+            for (String pkg : mPackages) {
+                dump(gfxinfo, new String[] { pkg, "framestats" });
+            }
+        }
+    }
+
+    private void dump(IBinder gfxinfo, String[] args) {
+        BufferedReader reader = null;
+        try {
+            ParcelFileDescriptor[] pipe = ParcelFileDescriptor.createPipe();
+            try {
+                gfxinfo.dumpAsync(pipe[1].getFileDescriptor(), args); //不阻塞，由服务端写入管道
+            } finally {
+                pipe[1].close();
+            }
+            reader = new BufferedReader(new InputStreamReader(
+                    new ParcelFileDescriptor.AutoCloseInputStream(pipe[0])));
+            parse(reader, args[0]);
+        } catch (IOException e) {
+            sampleFailed(e);
+        } catch (RemoteException e) {
+            sampleFailed(e);
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    // nothing left to do
+                }
+            }
+        }
+    }
+
+    private void sampleFailed(Exception e) {
+        if (mSampleErrors++ == 0) {
+            Logger.err.println("** Failed sampling frame stats: " + e);
+        }
+    }
+
+    private void parse(BufferedReader reader, String key) throws IOException {
+        String process = key;
+        int section = 0;
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (line.startsWith(PROCESS_PREFIX)) {
+                process = line;
+                section = 0;
+            } else if (line.startsWith(PROFILEDATA)) {
+                parseSection(reader, process + "#" + section++); //每个窗口一段数据
+            }
+        }
+    }
+
+    private void parseSection(BufferedReader reader, String window) throws IOException {
+        String header = reader.readLine();
+        if (header == null) {
+            return;
+        }
+        String[] columns = header.split(",");
+        int flags = indexOf(columns, "Flags");
+        int intended = indexOf(columns, "IntendedVsync");
+        int completed = indexOf(columns, "FrameCompleted");
+        if (flags < 0 || intended < 0 || completed < 0) {
+            return;
+        }
+        Long last = mLastVsync.get(window);
+        long lastVsync = last != null ? last : Long.MIN_VALUE;
+        long newest = lastVsync;
+        String line;
+        while ((line = reader.readLine()) != null && !line.startsWith(PROFILEDATA)) {
+            String[] values = line.split(",");
+            if (values.length <= Math.max(intended, completed)) {
+                continue;
+            }
+            try {
+                long vsync = Long.parseLong(values[intended].trim());
+                if (vsync <= lastVsync || Long.parseLong(values[flags].trim()) != 0) {
+                    continue;
+                }
+                long durationUs = (Long.parseLong(values[completed].trim()) - vsync) / 1000;
+                if (durationUs >= 0) {
+                    recordFrame(vsync, durationUs);
+                }
+                if (vsync > newest) {
+                    newest = vsync;
+                }
+            } catch (NumberFormatException e) {
+                // not a frame row
+            }
+        }
+        mLastVsync.put(window, newest);
+    }
+
+    private static int indexOf(String[] columns, String name) {
+        for (int i = 0; i < columns.length; i++) {
+            if (name.equals(columns[i].trim())) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private synchronized void recordFrame(long vsync, long durationUs) {
+        mFrameDurations[(int) (mFrameHead % FRAME_CAPACITY)] = durationUs;
+        mFrameHead++;
+        Segment segment = segmentAt(vsync);
+        if (segment == null) {
+            return; // rendered before the first event
+        }
+        segment.mFrames.record(durationUs);
+        if (durationUs > JANK_THRESHOLD_US) {
+            segment.mJank++;
+        }
+    }
+
+    /**
+     * @return the last segment started at or before the given time, or null
+     */
+    private Segment segmentAt(long nanos) {
+        long oldest = Math.max(0, mTimelineHead - TIMELINE_CAPACITY);
+        long lo = oldest;
+        long hi = mTimelineHead - 1;
+        Segment found = null;
+        while (lo <= hi) {
+            long mid = (lo + hi) >>> 1;
+            int slot = (int) (mid % TIMELINE_CAPACITY);
+            if (mTimelineStart[slot] <= nanos) {
+                found = mTimelineSegment[slot];
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        if (found == null && oldest > 0) {
+            found = mTimelineSegment[(int) (oldest % TIMELINE_CAPACITY)]; //比环中最早的片段还早
+        }
+        return found;
+    }
+
+    /**
+     * Prints the frame time distribution of every segment, then of the most recent frames.
+     */
+    public synchronized void dump() {
+        LinkedHashMap<String, Segment> byLabel = new LinkedHashMap<String, Segment>();
+        for (Segment s : mSegments) {
+            Segment merged = byLabel.get(s.mLabel);
+            if (merged == null) {
+                merged = new Segment(s.mLabel);
+                byLabel.put(s.mLabel, merged);
+            }
+            merged.mFrames.add(s.mFrames);
+            merged.mJank += s.mJank;
+        }
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, Segment> e : byLabel.entrySet()) {
+            Segment s = e.getValue();
+            if (s.mFrames.getCount() == 0) {
+                continue;
+            }
+            sb.setLength(0);
+            sb.append(":Frames: ").append(e.getKey());
+            s.mFrames.append(sb);
+            sb.append(" jank=").append(s.mJank);
+            Logger.out.println(sb.toString());
+        }
+
+        int recent = (int) Math.min(mFrameHead, FRAME_CAPACITY);
+        if (recent > 0) {
+            Histogram h = new Histogram();
+            long jank = 0;
+            for (int i = 0; i < recent; i++) {
+                h.record(mFrameDurations[i]);
+                if (mFrameDurations[i] > JANK_THRESHOLD_US) {
+                    jank++;
+                }
+            }
+            sb.setLength(0);
+            sb.append(":Frames: recent");
+            h.append(sb);
+            sb.append(" jank=").append(jank);
+            Logger.out.println(sb.toString());
+        }
+        if (mSampleErrors > 0) {
+            Logger.err.println("** " + mSampleErrors + " frame stats samples failed");
+        }
+    }
+}
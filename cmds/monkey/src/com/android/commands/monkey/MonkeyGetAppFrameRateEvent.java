@@ -21,12 +21,12 @@ import android.os.Environment;
 import android.util.Log;
 import android.view.IWindowManager;
 
-import java.lang.Process;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.BufferedReader;
-import java.io.InputStreamReader;
+import java.io.StringReader;
 import java.util.regex.Pattern;
 import java.util.regex.Matcher;
 
@@ -145,17 +145,18 @@ public class MonkeyGetAppFrameRateEvent extends MonkeyEvent {
      */
     @Override
     public int injectEvent(IWindowManager iwm, IActivityManager iam, int verbose) {
-        Process p = null; //创建局部变量，Process，Process对象表示子进程
+        MonkeyFrameSampler.markCapture(mStatus, sTestCaseName);
         BufferedReader result = null; //创建局部变量，缓冲字符对象
         String cmd = String.format(GET_APP_FRAMERATE_TMPL, sActivityName); //格式化需要执行的命令，存放在局部变量cmd中
         try {
-            p = Runtime.getRuntime().exec(cmd); //获取Runtime对象，执行它的exec（）方法，用于执行一个程序，返回一个Process对象，表示子进程
-            int status = p.waitFor(); //执行线程等待子进程执行完任务，这是waitFor（）的作用，拿到的status为程序的退出状态码
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            int status = MonkeyShell.getInstance().run(cmd, out,
+                    MonkeyShell.COMMAND_TIMEOUT_MS); //在常驻的shell工作进程中执行命令，拿到的status为命令的退出状态码
             if (status != 0) { //退出状态码不为0，说明执行不成功
                 Logger.err.println(String.format("// Shell command %s status was %s",
                         cmd, status)); //向标准错误流中打印，shell命令，以及退出状态码
             }
-            result = new BufferedReader(new InputStreamReader(p.getInputStream())); //创建BufferedReader对象，从子进程的输出中，获取执行文本
+            result = new BufferedReader(new StringReader(out.toString())); //创建BufferedReader对象，从命令的输出中，获取执行文本
 
             String output = getNumberOfFrames(result);
 
@@ -179,9 +180,6 @@ public class MonkeyGetAppFrameRateEvent extends MonkeyEvent {
                 if (result != null) {
                     result.close();
                 }
-                if (p != null) {
-                    p.destroy();
-                }
             } catch (IOException e) {
                 Logger.err.println(e.toString());
             }
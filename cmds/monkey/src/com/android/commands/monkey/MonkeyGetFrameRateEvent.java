@@ -20,11 +20,11 @@ import android.app.IActivityManager;
 import android.util.Log;
 import android.view.IWindowManager;
 
+import java.io.ByteArrayOutputStream;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.BufferedReader;
-import java.io.InputStreamReader;
+import java.io.StringReader;
 import java.text.DecimalFormat;
 import java.util.regex.Pattern;
 import java.util.regex.Matcher;
@@ -108,16 +108,17 @@ public class MonkeyGetFrameRateEvent extends MonkeyEvent {
 
     @Override
     public int injectEvent(IWindowManager iwm, IActivityManager iam, int verbose) {
-        java.lang.Process p = null;
+        MonkeyFrameSampler.markCapture(mStatus, mTestCaseName);
         BufferedReader result = null;
         try {
-            p = Runtime.getRuntime().exec(GET_FRAMERATE_CMD);
-            int status = p.waitFor();
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            int status = MonkeyShell.getInstance().run(GET_FRAMERATE_CMD, out,
+                    MonkeyShell.COMMAND_TIMEOUT_MS);
             if (status != 0) {
                 Logger.err.println(String.format("// Shell command %s status was %s",
                         GET_FRAMERATE_CMD, status));
             }
-            result = new BufferedReader(new InputStreamReader(p.getInputStream()));
+            result = new BufferedReader(new StringReader(out.toString()));
 
             //Only need the first line of the output
             String output = result.readLine();
@@ -142,9 +143,6 @@ public class MonkeyGetFrameRateEvent extends MonkeyEvent {
                 if (result != null) {
                     result.close();
                 }
-                if (p != null) {
-                    p.destroy();
-                }
             } catch (IOException e) {
                 Logger.err.println(e.toString());
             }
@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2008 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.commands.monkey;
+
+import android.hardware.input.InputManager;
+import android.os.SystemClock;
+import android.view.InputEvent;
+import android.view.KeyEvent;
+
+/**
+ * Injects key and motion events through {@link InputManager} using the mode selected with
+ * {@code --inject-mode}.
+ * <p>
+ * In async mode the input manager only reports events it rejects up front, dispatch
+ * failures are never reported back. To keep the number of events in flight bounded, and to
+ * still notice dispatch failures, every Nth event is injected in wait-for-finish mode. That
+ * event only completes once everything queued ahead of it has been dispatched, and its
+ * result is counted like any other injection.
+ * <p>
+ * Async events rejected up front fail like in the other modes. If the synchronous event
+ * at the end of a window fails, the async events of that window that were accepted are
+ * presumed to have been dropped with it. That is only a guess: a window can fail partly,
+ * or its sync event alone can fail, and both are counted as the whole window. So the guess
+ * is kept apart from the failed injections and reported by {@link #getPresumedDroppedKeys}
+ * and {@link #getPresumedDroppedMotions}; {@link #finish} checks the last partial window.
+ * 异步注入模式下，每隔N个事件使用一次同步注入，限制未完成事件的数量
+ */
+public class MonkeyInputInjector {
+    public static final String MODE_ASYNC = "async";
+    public static final String MODE_WAIT_FINISH = "wait-finish";
+    public static final String MODE_WAIT_RESULT = "wait-result";
+
+    /** Default number of async events between two synchronous ones. */
+    public static final int DEFAULT_WINDOW = 32;
+
+    private static int sMode = InputManager.INJECT_INPUT_EVENT_MODE_WAIT_FOR_RESULT;
+    private static int sWindow = DEFAULT_WINDOW;
+    private static int sInFlight; //上一次同步注入之后，异步注入的事件数量
+    private static int sWindowKeys; //当前窗口中已被接受的异步key事件
+    private static int sWindowMotions;
+    private static long sPresumedKeys; //同步注入失败时，推定随之丢失的窗口内事件，不计入注入失败
+    private static long sPresumedMotions;
+
+    private MonkeyInputInjector() {
+    }
+
+    /**
+     * @param mode one of "async", "wait-finish" or "wait-result"
+     * @return false if the mode is not known
+     */
+    public static boolean setMode(String mode) {
+        if (MODE_ASYNC.equals(mode)) {
+            sMode = InputManager.INJECT_INPUT_EVENT_MODE_ASYNC;
+        } else if (MODE_WAIT_FINISH.equals(mode)) {
+            sMode = InputManager.INJECT_INPUT_EVENT_MODE_WAIT_FOR_FINISH;
+        } else if (MODE_WAIT_RESULT.equals(mode)) {
+            sMode = InputManager.INJECT_INPUT_EVENT_MODE_WAIT_FOR_RESULT;
+        } else {
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * @param window the maximum number of async events injected before waiting for one to
+     *        finish, must be at least 1
+     */
+    public static void setWindow(int window) {
+        sWindow = Math.max(1, window);
+    }
+
+    /**
+     * Injects an input event. Must be called from the injection thread.
+     *
+     * @return false if the input manager rejected the event
+     */
+    public static boolean inject(InputEvent ev) {
+        int mode = sMode;
+        if (mode != InputManager.INJECT_INPUT_EVENT_MODE_ASYNC) {
+            return InputManager.getInstance().injectInputEvent(ev, mode);
+        }
+        if (++sInFlight < sWindow) {
+            boolean accepted = InputManager.getInstance().injectInputEvent(ev, mode);
+            if (accepted) {
+                if (ev instanceof KeyEvent) {
+                    sWindowKeys++;
+                } else {
+                    sWindowMotions++;
+                }
+            }
+            return accepted;
+        }
+        return injectSync(ev);
+    }
+
+    /**
+     * Injects the event that closes a window and waits for it to finish.
+     */
+    private static boolean injectSync(InputEvent ev) {
+        sInFlight = 0;
+        boolean finished = InputManager.getInstance().injectInputEvent(ev,
+                InputManager.INJECT_INPUT_EVENT_MODE_WAIT_FOR_FINISH);
+        if (!finished) {
+            sPresumedKeys += sWindowKeys;
+            sPresumedMotions += sWindowMotions;
+        }
+        sWindowKeys = 0;
+        sWindowMotions = 0;
+        return finished;
+    }
+
+    /**
+     * Waits for the async events of the last, partial window to be dispatched, by closing
+     * it with an unknown key release that no app acts on. Must be called from the
+     * injection thread once no more events are injected.
+     */
+    public static void finish() {
+        if (sMode != InputManager.INJECT_INPUT_EVENT_MODE_ASYNC || sInFlight == 0) {
+            return;
+        }
+        long now = SystemClock.uptimeMillis();
+        injectSync(new KeyEvent(now, now, KeyEvent.ACTION_UP, KeyEvent.KEYCODE_UNKNOWN, 0));
+    }
+
+    /**
+     * @return whether events are injected in async mode
+     */
+    public static boolean isAsync() {
+        return sMode == InputManager.INJECT_INPUT_EVENT_MODE_ASYNC;
+    }
+
+    /**
+     * @return the accepted async key events presumed dropped with a failed window
+     */
+    public static long getPresumedDroppedKeys() {
+        return sPresumedKeys;
+    }
+
+    /**
+     * @return the accepted async motion events presumed dropped with a failed window
+     */
+    public static long getPresumedDroppedMotions() {
+        return sPresumedMotions;
+    }
+}
@@ -17,8 +17,8 @@
 package com.android.commands.monkey;
 
 import android.app.IActivityManager;
-import android.hardware.input.InputManager;
 import android.os.SystemClock;
+import android.util.Pools;
 import android.view.IWindowManager;
 import android.view.InputDevice;
 import android.view.KeyCharacterMap;
@@ -28,6 +28,11 @@ import android.view.KeyEvent;
  * 每个创建的镀锡表示系统事件,3个不同的构造方法，满足不同的需求
  */
 public class MonkeyKeyEvent extends MonkeyEvent {
+    private static final int MAX_POOL_SIZE = 64;
+
+    private static final Pools.SynchronizedPool<MonkeyKeyEvent> sPool =
+            new Pools.SynchronizedPool<MonkeyKeyEvent>(MAX_POOL_SIZE);
+
     private int mDeviceId;  //持有的设备id，描述是硬件设备，比如键盘
     private long mEventTime;
     private long mDownTime;
@@ -82,6 +87,37 @@ public class MonkeyKeyEvent extends MonkeyEvent {
         mKeyEvent = e;
     }
 
+    /**
+     * Returns a key event from the pool, or a new one if the pool is empty. It goes back
+     * to the pool when {@link #recycle()} is called after injection.
+     */
+    public static MonkeyKeyEvent obtain(int action, int keyCode) {
+        MonkeyKeyEvent ev = sPool.acquire();
+        if (ev == null) {
+            ev = new MonkeyKeyEvent(action, keyCode);
+        } else {
+            ev.mDownTime = -1;
+            ev.mEventTime = -1;
+            ev.mAction = action;
+            ev.mKeyCode = keyCode;
+            ev.mRepeatCount = 0;
+            ev.mMetaState = 0;
+            ev.mDeviceId = KeyCharacterMap.VIRTUAL_KEYBOARD;
+            ev.mScanCode = 0;
+            ev.setThrottle(-1);
+        }
+        ev.setRecyclable(true);
+        return ev;
+    }
+
+    @Override
+    public void recycle() {
+        if (isRecyclable()) {
+            setRecyclable(false);
+            sPool.release(this);
+        }
+    }
+
     public int getKeyCode() {
         return mKeyEvent != null ? mKeyEvent.getKeyCode() : mKeyCode;
     }
@@ -98,6 +134,22 @@ public class MonkeyKeyEvent extends MonkeyEvent {
         return mKeyEvent != null ? mKeyEvent.getEventTime() : mEventTime;
     }
 
+    int getRepeatCount() {
+        return mKeyEvent != null ? mKeyEvent.getRepeatCount() : mRepeatCount;
+    }
+
+    int getMetaState() {
+        return mKeyEvent != null ? mKeyEvent.getMetaState() : mMetaState;
+    }
+
+    int getDeviceId() {
+        return mKeyEvent != null ? mKeyEvent.getDeviceId() : mDeviceId;
+    }
+
+    int getScanCode() {
+        return mKeyEvent != null ? mKeyEvent.getScanCode() : mScanCode;
+    }
+
     public void setDownTime(long downTime) {
         if (mKeyEvent != null) {
             throw new IllegalStateException("Cannot modify down time of this key event.");
@@ -130,7 +182,9 @@ public class MonkeyKeyEvent extends MonkeyEvent {
      */
     @Override
     public int injectEvent(IWindowManager iwm, IActivityManager iam, int verbose) {
-        if (verbose > 1) {
+        MonkeyAsyncLogger async = Logger.getAsync();
+        boolean logAsync = async != null && (verbose > 1 || async.logsAllEvents()); //由写线程格式化日志
+        if (verbose > 1 && !logAsync) {
             String note;  //用于存储动作的字符串
             if (mAction == KeyEvent.ACTION_UP) {
                 note = "ACTION_UP"; //存储的是，存储为ACTION_UP
@@ -158,14 +212,23 @@ public class MonkeyKeyEvent extends MonkeyEvent {
             if (downTime <= 0) { //如果按下时间小于事件的发生时间
                 downTime = eventTime; //那么按下时间就用最近的发生时间
             }
-            keyEvent = new KeyEvent(downTime, eventTime, mAction, mKeyCode,
+            keyEvent = KeyEvent.obtain(downTime, eventTime, mAction, mKeyCode,
                     mRepeatCount, mMetaState, mDeviceId, mScanCode,
-                    KeyEvent.FLAG_FROM_SYSTEM, InputDevice.SOURCE_KEYBOARD);
+                    KeyEvent.FLAG_FROM_SYSTEM, InputDevice.SOURCE_KEYBOARD, null); //从KeyEvent的缓存池中获取对象
         }
-        if (!InputManager.getInstance().injectInputEvent(keyEvent,
-                InputManager.INJECT_INPUT_EVENT_MODE_WAIT_FOR_RESULT)) { //如果IMS注入事件失败，则返回INJECT_FAIL，表示注入事件失败
-            return MonkeyEvent.INJECT_FAIL; //key事件，也是通过InputManagerService系统服务注入的……
+        int result = MonkeyEvent.INJECT_FAIL;
+        try {
+            if (MonkeyInputInjector.inject(keyEvent)) { //如果IMS注入事件失败，则返回INJECT_FAIL，表示注入事件失败
+                result = MonkeyEvent.INJECT_SUCCESS; //key事件，也是通过InputManagerService系统服务注入的……
+            }
+        } finally {
+            if (logAsync) {
+                async.logKey(mAction, mKeyCode, keyEvent.getEventTime(), result);
+            }
+            if (keyEvent != mKeyEvent) {
+                keyEvent.recycle();
+            }
         }
-        return MonkeyEvent.INJECT_SUCCESS; //其他情况下返回注入事件成功
+        return result; //其他情况下返回注入事件成功
     }
 }
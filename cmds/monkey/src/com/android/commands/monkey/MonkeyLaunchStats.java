@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2008 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.commands.monkey;
+
+import android.app.WaitResult;
+import android.content.ComponentName;
+
+import com.android.commands.monkey.MonkeyMetrics.Histogram;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Launch latency of every activity started by a {@link MonkeyActivityEvent}, per component
+ * and per launch state (cold, warm, hot, relaunch), as reported by the activity manager
+ * when the activity is started with startActivityAndWait().
+ * <p>
+ * While an instance is installed with {@link #setInstance}, activity events wait for the
+ * launch to complete and report it here. All methods are called from the injection
+ * thread, so nothing here is synchronized.
+ * 记录每个Activity的启动耗时，按组件和冷/温/热启动分类统计
+ */
+public class MonkeyLaunchStats {
+    private static final String[] STATE_NAMES = {
+        "unknown", "cold", "warm", "hot", "relaunch",
+    }; // indexed by WaitResult.LAUNCH_STATE_*, anything newer is counted as unknown
+    private static final int LAUNCH_STATES = STATE_NAMES.length;
+
+    private static MonkeyLaunchStats sInstance; //当前运行的启动统计，为null时不等待启动完成
+
+    /** Launches of one component. */
+    private static final class Launches {
+        final Histogram mTotal = new Histogram(); //所有启动的耗时，与其他直方图一样以微秒记录
+        final Histogram[] mByState = new Histogram[LAUNCH_STATES];
+        long mTimeouts;
+        long mFailed;
+
+        Launches() {
+            for (int i = 0; i < mByState.length; i++) {
+                mByState[i] = new Histogram();
+            }
+        }
+    }
+
+    private final LinkedHashMap<ComponentName, Launches> mLaunches =
+            new LinkedHashMap<ComponentName, Launches>(); //按首次启动的顺序输出
+
+    /**
+     * Makes these the stats activity events report to, null to start activities without
+     * waiting.
+     */
+    public static void setInstance(MonkeyLaunchStats stats) {
+        sInstance = stats;
+    }
+
+    /**
+     * @return the stats of the current run, or null if launches are not measured
+     */
+    public static MonkeyLaunchStats getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * Records the result of one startActivityAndWait().
+     *
+     * @param app the component that was started
+     * @param result what the activity manager returned, may be null
+     */
+    public void record(ComponentName app, WaitResult result) {
+        Launches launches = mLaunches.get(app);
+        if (launches == null) {
+            launches = new Launches();
+            mLaunches.put(app, launches);
+        }
+        if (result == null || result.result < 0) {
+            launches.mFailed++;
+        } else if (result.timeout) {
+            launches.mTimeouts++;
+        } else if (result.totalTime >= 0) {
+            int state = result.launchState;
+            if (state < 0 || state >= LAUNCH_STATES) {
+                state = WaitResult.LAUNCH_STATE_UNKNOWN;
+            }
+            long micros = result.totalTime * 1000; // totalTime is in ms
+            launches.mTotal.record(micros);
+            launches.mByState[state].record(micros);
+        }
+    }
+
+    /**
+     * Prints the latency distribution of every component, overall and per launch state.
+     */
+    public void dump() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<ComponentName, Launches> e : mLaunches.entrySet()) {
+            Launches launches = e.getValue();
+            String name = e.getKey().flattenToShortString();
+            sb.setLength(0);
+            sb.append(":Launch: component=").append(name).append(" state=all");
+            append(sb, launches.mTotal);
+            sb.append(" timeouts=").append(launches.mTimeouts)
+                    .append(" failed=").append(launches.mFailed);
+            Logger.out.println(sb.toString());
+            for (int i = 0; i < LAUNCH_STATES; i++) {
+                if (launches.mByState[i].getCount() > 0) {
+                    sb.setLength(0);
+                    sb.append(":Launch: component=").append(name)
+                            .append(" state=").append(STATE_NAMES[i]);
+                    append(sb, launches.mByState[i]);
+                    Logger.out.println(sb.toString());
+                }
+            }
+        }
+    }
+
+    /**
+     * Appends the distribution in milliseconds; the histogram holds microseconds.
+     */
+    private static void append(StringBuilder sb, Histogram h) {
+        sb.append(" n=").append(h.getCount())
+                .append(" meanMs=").append(h.getMean() / 1000)
+                .append(" p50Ms=").append(h.getPercentile(50) / 1000)
+                .append(" p90Ms=").append(h.getPercentile(90) / 1000)
+                .append(" p99Ms=").append(h.getPercentile(99) / 1000)
+                .append(" maxMs=").append(h.getMax() / 1000);
+    }
+}
@@ -0,0 +1,335 @@
+/*
+ * Copyright (C) 2008 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.commands.monkey;
+
+import android.app.ActivityManager;
+import android.app.IActivityManager;
+import android.os.RemoteException;
+import android.os.SystemClock;
+
+import java.io.BufferedWriter;
+import java.io.FileInputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Samples the memory of the processes of the allowed packages in the background, from
+ * /proc/&lt;pid&gt;/smaps_rollup and /proc/&lt;pid&gt;/status, without a dumpsys.
+ * <p>
+ * Every interval the running app processes are listed, and each one with a package the
+ * {@link MonkeyUtils.PackageFilter} lets the monkey enter is read. One CSV line is written
+ * per process and sample, with the event counter of the monkey at that time, so growth
+ * can be lined up with the events that caused it:
+ *
+ * <pre>
+ * uptime_ms,event,pid,process,pss_kb,rss_kb,swap_pss_kb,vm_rss_kb,vm_swap_kb
+ * </pre>
+ *
+ * The files are read into one reused buffer and scanned for the fields in place. Where
+ * smaps_rollup may not be read, as for other apps on user builds, the smaps columns are
+ * -1 and the status columns are still written. At the end of the run the first, last and
+ * largest PSS of every process is printed, or its VmRSS when PSS was not readable.
+ * 后台定期读取目标包进程的smaps_rollup和status，记录PSS/RSS/swap随事件数的变化，用于发现内存泄漏
+ */
+public class MonkeyMemorySampler {
+    private static final String HEADER =
+            "uptime_ms,event,pid,process,pss_kb,rss_kb,swap_pss_kb,vm_rss_kb,vm_swap_kb\n";
+
+    private static final byte[] PSS = "Pss:".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] RSS = "Rss:".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] SWAP_PSS = "SwapPss:".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] VM_RSS = "VmRSS:".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] VM_SWAP = "VmSwap:".getBytes(StandardCharsets.US_ASCII);
+
+    /** Memory of one process over the run. */
+    private static final class ProcessMemory {
+        final String mName;
+        long mSamples;
+        long mFirstPss = -1; //-1表示smaps_rollup不可读
+        long mLastPss = -1;
+        long mMaxPss = -1;
+        long mFirstVmRss = -1;
+        long mLastVmRss = -1;
+        long mMaxVmRss = -1;
+
+        ProcessMemory(String name) {
+            mName = name;
+        }
+    }
+
+    private final IActivityManager mAm;
+    private final long mIntervalMillis;
+    private final String mFile;
+    private final Writer mOut;
+    private final Thread mThread;
+    private volatile boolean mStopped;
+    private volatile long mEventCounter; //由注入线程更新
+
+    // only used by the sampling thread, then by dump() after it stopped
+    private final byte[] mBuffer = new byte[4096];
+    private final LinkedHashMap<Integer, ProcessMemory> mProcesses =
+            new LinkedHashMap<Integer, ProcessMemory>();
+    private final StringBuilder mLine = new StringBuilder();
+    private long mReadErrors;
+    private long mSmapsErrors;
+
+    /**
+     * Creates the time series file and writes its header.
+     *
+     * @param am the activity manager, to list the running processes
+     * @param intervalMillis how often the processes are sampled
+     * @param file the CSV file to write
+     */
+    public MonkeyMemorySampler(IActivityManager am, long intervalMillis, String file)
+            throws IOException {
+        mAm = am;
+        mIntervalMillis = intervalMillis;
+        mFile = file;
+        mOut = new BufferedWriter(new FileWriter(file));
+        mOut.write(HEADER);
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                sampleLoop();
+            }
+        }, "MonkeyMemorySampler");
+        mThread.setDaemon(true);
+    }
+
+    public void start() {
+        mThread.start();
+    }
+
+    /**
+     * Tells the sampler how many events have been injected so far.
+     */
+    public void setEventCounter(long eventCounter) {
+        mEventCounter = eventCounter;
+    }
+
+    /**
+     * Takes a last sample, stops the sampling thread and closes the file.
+     */
+    public void stop() {
+        mStopped = true;
+        mThread.interrupt();
+        try {
+            mThread.join();
+        } catch (InterruptedException e) {
+            // the file is closed anyway
+        }
+        sampleOnce();
+        try {
+            mOut.close();
+        } catch (IOException e) {
+            Logger.err.println("** Error: Failed writing " + mFile + ": " + e);
+        }
+    }
+
+    private void sampleLoop() {
+        while (!mStopped) {
+            try {
+                Thread.sleep(mIntervalMillis);
+            } catch (InterruptedException e) {
+                return;
+            }
+            sampleOnce();
+        }
+    }
+
+    private void sampleOnce() {
+        List<ActivityManager.RunningAppProcessInfo> running;
+        try {
+            running = mAm.getRunningAppProcesses();
+        } catch (RemoteException e) {
+            return;
+        }
+        if (running == null) {
+            return;
+        }
+        long uptime = SystemClock.uptimeMillis();
+        long event = mEventCounter;
+        try {
+            for (ActivityManager.RunningAppProcessInfo info : running) {
+                if (isAllowed(info.pkgList)) {
+                    sampleProcess(info.pid, info.processName, uptime, event);
+                }
+            }
+            mOut.flush(); //每轮采样后写入文件，monkey被杀掉时也能保留数据
+        } catch (IOException e) {
+            Logger.err.println("** Error: Failed writing " + mFile + ": " + e);
+            mStopped = true;
+        }
+    }
+
+    private static boolean isAllowed(String[] packages) {
+        if (packages == null) {
+            return false;
+        }
+        for (String pkg : packages) {
+            if (MonkeyUtils.getPackageFilter().checkEnteringPackage(pkg)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void sampleProcess(int pid, String name, long uptime, long event)
+            throws IOException {
+        // on user builds smaps_rollup of other apps is usually not readable, status is
+        int n = read("/proc/" + pid + "/smaps_rollup");
+        if (n < 0 && mSmapsErrors++ == 0) {
+            Logger.err.println("** Warning: Failed reading /proc/" + pid + "/smaps_rollup,"
+                    + " PSS is written as -1 where it cannot be read");
+        }
+        long pss = n < 0 ? -1 : field(n, PSS);
+        long rss = n < 0 ? -1 : field(n, RSS);
+        long swapPss = n < 0 ? -1 : field(n, SWAP_PSS);
+        int m = read("/proc/" + pid + "/status");
+        if (m < 0 && n < 0) {
+            return; // the process died
+        }
+        long vmRss = m < 0 ? -1 : field(m, VM_RSS);
+        long vmSwap = m < 0 ? -1 : field(m, VM_SWAP);
+
+        mLine.setLength(0);
+        mLine.append(uptime).append(',').append(event).append(',').append(pid)
+                .append(',').append(name).append(',').append(pss).append(',').append(rss)
+                .append(',').append(swapPss).append(',').append(vmRss)
+                .append(',').append(vmSwap).append('\n');
+        mOut.append(mLine);
+
+        ProcessMemory p = mProcesses.get(pid);
+        if (p == null) {
+            p = new ProcessMemory(name); //进程重启后pid不同，单独统计
+            mProcesses.put(pid, p);
+        }
+        p.mSamples++;
+        if (pss >= 0) {
+            if (p.mFirstPss < 0) {
+                p.mFirstPss = pss;
+            }
+            p.mLastPss = pss;
+            p.mMaxPss = Math.max(p.mMaxPss, pss);
+        }
+        if (vmRss >= 0) {
+            if (p.mFirstVmRss < 0) {
+                p.mFirstVmRss = vmRss;
+            }
+            p.mLastVmRss = vmRss;
+            p.mMaxVmRss = Math.max(p.mMaxVmRss, vmRss);
+        }
+    }
+
+    /**
+     * Reads the start of a file into the buffer.
+     *
+     * @return the number of bytes read, or -1 if the file could not be read
+     */
+    private int read(String file) {
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            int total = 0;
+            int n;
+            while (total < mBuffer.length
+                    && (n = in.read(mBuffer, total, mBuffer.length - total)) > 0) {
+                total += n;
+            }
+            return total;
+        } catch (IOException e) {
+            mReadErrors++;
+            return -1;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // nothing left to do
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the number after a "Key:" at the start of a line of the buffer, in kB,
+     *         or -1 if there is no such line
+     */
+    private long field(int length, byte[] key) {
+        int i = 0;
+        while (i < length) {
+            if (startsWith(i, length, key)) {
+                int j = i + key.length;
+                while (j < length && (mBuffer[j] == ' ' || mBuffer[j] == '\t')) {
+                    j++;
+                }
+                long value = 0;
+                while (j < length && mBuffer[j] >= '0' && mBuffer[j] <= '9') {
+                    value = value * 10 + (mBuffer[j++] - '0');
+                }
+                return value;
+            }
+            while (i < length && mBuffer[i] != '\n') {
+                i++;
+            }
+            i++; // start of the next line
+        }
+        return -1;
+    }
+
+    private boolean startsWith(int offset, int length, byte[] key) {
+        if (offset + key.length > length) {
+            return false;
+        }
+        for (int k = 0; k < key.length; k++) {
+            if (mBuffer[offset + k] != key[k]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Prints the PSS growth of every sampled process, or its VmRSS growth where PSS could
+     * not be read.
+     */
+    public void dump() {
+        for (Map.Entry<Integer, ProcessMemory> e : mProcesses.entrySet()) {
+            ProcessMemory p = e.getValue();
+            if (p.mFirstPss >= 0) {
+                Logger.out.println(":Memory: " + p.mName + " pid=" + e.getKey()
+                        + " samples=" + p.mSamples + " firstPssKb=" + p.mFirstPss
+                        + " lastPssKb=" + p.mLastPss + " maxPssKb=" + p.mMaxPss
+                        + " growthKb=" + (p.mLastPss - p.mFirstPss));
+            } else {
+                Logger.out.println(":Memory: " + p.mName + " pid=" + e.getKey()
+                        + " samples=" + p.mSamples + " firstVmRssKb=" + p.mFirstVmRss
+                        + " lastVmRssKb=" + p.mLastVmRss + " maxVmRssKb=" + p.mMaxVmRss
+                        + " growthKb=" + (p.mLastVmRss - p.mFirstVmRss));
+            }
+        }
+        if (mReadErrors > 0) {
+            Logger.err.println("** " + mReadErrors + " /proc reads failed, " + mSmapsErrors
+                    + " of them smaps_rollup");
+        }
+    }
+}
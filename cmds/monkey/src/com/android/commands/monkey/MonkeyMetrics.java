@@ -0,0 +1,373 @@
+/*
+ * Copyright (C) 2008 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.commands.monkey;
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Injection metrics of a monkey run: latency histograms per event class and per event
+ * type, event rate, depth of the pipeline queue and time the injection loop spent blocked
+ * on the crash/ANR handling. For the random source the time it takes to hand out each
+ * event is kept as well, so an on-device run with --dbg-no-inject measures random event
+ * generation on its own. Script, network and pipeline sources block in getNextEvent() on
+ * sleeps, sockets or the generator thread, so they are not timed.
+ * <p>
+ * All methods are called from the injection thread, including the network "getvar"
+ * queries, so nothing here is synchronized. Recording does not allocate, except for the
+ * histogram of an event class seen for the first time.
+ * 记录每种事件的注入耗时直方图、事件速率、队列深度等指标
+ */
+public class MonkeyMetrics {
+    private static final String[] TYPE_NAMES = {
+        "key", "touch", "trackball", "rotation", "activity", "flip", "throttle",
+        "permission", "noop",
+    }; // indexed by MonkeyEvent.EVENT_TYPE_*
+
+    private static MonkeyMetrics sInstance; //当前运行的指标，供getvar查询
+
+    /**
+     * Log-linear histogram of microsecond values: every power of two is split into
+     * {@link #SUB_BUCKETS} buckets, so a value is known within 12.5%.
+     */
+    static final class Histogram {
+        private static final int SUB_BUCKET_BITS = 3;
+        private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+        private static final int BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+        private final long[] mCounts = new long[BUCKETS];
+        private long mCount;
+        private long mTotal;
+        private long mMax;
+
+        void record(long value) {
+            if (value < 0) {
+                value = 0;
+            }
+            mCounts[bucketOf(value)]++;
+            mCount++;
+            mTotal += value;
+            if (value > mMax) {
+                mMax = value;
+            }
+        }
+
+        long getCount() {
+            return mCount;
+        }
+
+        long getMean() {
+            return mCount == 0 ? 0 : mTotal / mCount;
+        }
+
+        long getMax() {
+            return mMax;
+        }
+
+        /**
+         * Adds the values recorded by another histogram to this one.
+         */
+        void add(Histogram other) {
+            for (int i = 0; i < BUCKETS; i++) {
+                mCounts[i] += other.mCounts[i];
+            }
+            mCount += other.mCount;
+            mTotal += other.mTotal;
+            if (other.mMax > mMax) {
+                mMax = other.mMax;
+            }
+        }
+
+        /**
+         * @return the highest value of the bucket holding the given percentile
+         */
+        long getPercentile(double percentile) {
+            if (mCount == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(mCount * percentile / 100.0);
+            if (rank < 1) {
+                rank = 1;
+            }
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += mCounts[i];
+                if (seen >= rank) {
+                    return Math.min(upperBoundOf(i), mMax);
+                }
+            }
+            return mMax;
+        }
+
+        void append(StringBuilder sb) {
+            sb.append(" n=").append(mCount)
+                    .append(" meanUs=").append(getMean())
+                    .append(" p50Us=").append(getPercentile(50))
+                    .append(" p90Us=").append(getPercentile(90))
+                    .append(" p99Us=").append(getPercentile(99))
+                    .append(" maxUs=").append(mMax);
+        }
+
+        static int bucketOf(long value) {
+            if (value < SUB_BUCKETS) {
+                return (int) value;
+            }
+            int magnitude = 63 - Long.numberOfLeadingZeros(value); // >= SUB_BUCKET_BITS
+            int shift = magnitude - SUB_BUCKET_BITS;
+            return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+        }
+
+        static long upperBoundOf(int bucket) {
+            if (bucket < SUB_BUCKETS) {
+                return bucket;
+            }
+            int shift = bucket / SUB_BUCKETS - 1;
+            long lower = ((long) (SUB_BUCKETS + bucket % SUB_BUCKETS)) << shift;
+            return lower + (1L << shift) - 1;
+        }
+    }
+
+    /** Name of the event generation histogram in {@link #getTypeLatency}. */
+    private static final String GENERATE = "generate";
+
+    private final Histogram mGenerate = new Histogram(); //getNextEvent()的耗时
+    private final Histogram[] mByType = new Histogram[TYPE_NAMES.length];
+    private final LinkedHashMap<Class<?>, Histogram> mByClass =
+            new LinkedHashMap<Class<?>, Histogram>(); //按首次出现的顺序输出
+
+    private final long mIntervalMillis;
+    private final MonkeyDiagnostics mDiagnostics;
+
+    private final long mStartNanos;
+    private long mEvents;
+    private long mFailed;
+    private long mLastReportNanos;
+    private long mLastReportEvents;
+    private double mLastRate; //上一个统计周期内每秒注入的事件数
+
+    private long mQueueSamples;
+    private long mQueueTotal;
+    private int mQueueMax;
+
+    private long mBlockedNanos;
+
+    /**
+     * @param intervalMillis how often {@link #maybeReport} prints the metrics, 0 for never
+     * @param diagnostics the executor whose busy time is reported, may be null
+     */
+    public MonkeyMetrics(long intervalMillis, MonkeyDiagnostics diagnostics) {
+        mIntervalMillis = intervalMillis;
+        mDiagnostics = diagnostics;
+        for (int i = 0; i < mByType.length; i++) {
+            mByType[i] = new Histogram();
+        }
+        mStartNanos = System.nanoTime();
+        mLastReportNanos = mStartNanos;
+    }
+
+    /**
+     * Makes these the metrics returned by {@link #getInstance}.
+     */
+    public static void setInstance(MonkeyMetrics metrics) {
+        sInstance = metrics;
+    }
+
+    /**
+     * @return the metrics of the current run, or null if none is running
+     */
+    public static MonkeyMetrics getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * Records one injection.
+     *
+     * @param ev the injected event
+     * @param nanos how long injectEvent() took
+     * @param result the result of injectEvent()
+     */
+    public void recordInjection(MonkeyEvent ev, long nanos, int result) {
+        long us = nanos / 1000;
+        int type = ev.getEventType();
+        if (type >= 0 && type < mByType.length) {
+            mByType[type].record(us);
+        }
+        Class<?> cls = ev.getClass();
+        Histogram h = mByClass.get(cls);
+        if (h == null) {
+            h = new Histogram();
+            mByClass.put(cls, h);
+        }
+        h.record(us);
+        mEvents++;
+        if (result != MonkeyEvent.INJECT_SUCCESS) {
+            mFailed++;
+        }
+    }
+
+    /**
+     * Records how long the event source took to return an event.
+     */
+    public void recordGeneration(long nanos) {
+        mGenerate.record(nanos / 1000);
+    }
+
+    /**
+     * Records how many events were waiting to be injected.
+     */
+    public void recordQueueDepth(int depth) {
+        mQueueSamples++;
+        mQueueTotal += depth;
+        if (depth > mQueueMax) {
+            mQueueMax = depth;
+        }
+    }
+
+    /**
+     * Records time the injection loop spent waiting for the crash/ANR handling.
+     */
+    public void addBlockedNanos(long nanos) {
+        mBlockedNanos += nanos;
+    }
+
+    /**
+     * Prints the metrics if the report interval has passed since the last report.
+     */
+    public void maybeReport() {
+        if (mIntervalMillis > 0
+                && System.nanoTime() - mLastReportNanos >= mIntervalMillis * 1000000) {
+            dump();
+        }
+    }
+
+    /**
+     * Prints the metrics and starts a new rate interval.
+     */
+    public void dump() {
+        updateRate();
+        Logger.out.println(":Metrics:" + getSummary());
+        StringBuilder sb = new StringBuilder();
+        if (mGenerate.getCount() > 0) {
+            sb.append(":Metrics: ").append(GENERATE);
+            mGenerate.append(sb);
+            Logger.out.println(sb.toString());
+        }
+        for (int i = 0; i < mByType.length; i++) {
+            if (mByType[i].getCount() > 0) {
+                sb.setLength(0);
+                sb.append(":Metrics: type=").append(TYPE_NAMES[i]);
+                mByType[i].append(sb);
+                Logger.out.println(sb.toString());
+            }
+        }
+        for (Map.Entry<Class<?>, Histogram> e : mByClass.entrySet()) {
+            sb.setLength(0);
+            sb.append(":Metrics: class=").append(e.getKey().getSimpleName());
+            e.getValue().append(sb);
+            Logger.out.println(sb.toString());
+        }
+    }
+
+    /**
+     * @return the counters, as printed on the first line of {@link #dump}
+     */
+    public String getSummary() {
+        long elapsedNanos = System.nanoTime() - mStartNanos;
+        StringBuilder sb = new StringBuilder();
+        sb.append(" events=").append(mEvents)
+                .append(" failed=").append(mFailed)
+                .append(" generated=").append(mGenerate.getCount())
+                .append(" eps=").append(formatRate(getAverageRate()))
+                .append(" recentEps=").append(formatRate(mLastRate))
+                .append(" elapsedMs=").append(elapsedNanos / 1000000);
+        if (mQueueSamples > 0) {
+            sb.append(" queueAvg=").append(mQueueTotal / mQueueSamples)
+                    .append(" queueMax=").append(mQueueMax);
+        }
+        sb.append(" blockedMs=").append(mBlockedNanos / 1000000);
+        if (mDiagnostics != null) {
+            sb.append(" diagnosticsMs=").append(mDiagnostics.getBusyMillis());
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return the events injected per second since the start of the run
+     */
+    public double getAverageRate() {
+        long elapsedNanos = System.nanoTime() - mStartNanos;
+        return elapsedNanos <= 0 ? 0 : mEvents * 1e9 / elapsedNanos;
+    }
+
+    public long getEvents() {
+        return mEvents;
+    }
+
+    /**
+     * @param typeName one of the event type names, like "touch", or "generate" for the
+     *        time taken by the event source
+     * @return the latency histogram of that type, printed as in {@link #dump}, or null if
+     *         there is no such type
+     */
+    public String getTypeLatency(String typeName) {
+        if (GENERATE.equals(typeName)) {
+            StringBuilder sb = new StringBuilder();
+            mGenerate.append(sb);
+            return sb.toString().trim();
+        }
+        for (int i = 0; i < TYPE_NAMES.length; i++) {
+            if (TYPE_NAMES[i].equals(typeName)) {
+                StringBuilder sb = new StringBuilder();
+                mByType[i].append(sb);
+                return sb.toString().trim();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the name of a MonkeyEvent.EVENT_TYPE_* value, as used in {@link #dump}
+     */
+    static String getTypeName(int type) {
+        return type >= 0 && type < TYPE_NAMES.length ? TYPE_NAMES[type] : "unknown";
+    }
+
+    /**
+     * @return the names accepted by {@link #getTypeLatency}
+     */
+    public static String[] getTypeNames() {
+        String[] names = new String[TYPE_NAMES.length + 1];
+        System.arraycopy(TYPE_NAMES, 0, names, 0, TYPE_NAMES.length);
+        names[TYPE_NAMES.length] = GENERATE;
+        return names;
+    }
+
+    private void updateRate() {
+        long now = System.nanoTime();
+        long elapsed = now - mLastReportNanos;
+        if (elapsed > 0) {
+            mLastRate = (mEvents - mLastReportEvents) * 1e9 / elapsed;
+        }
+        mLastReportNanos = now;
+        mLastReportEvents = mEvents;
+    }
+
+    private static String formatRate(double rate) {
+        return String.format(Locale.US, "%.1f", rate);
+    }
+}
@@ -0,0 +1,291 @@
+/*
+ * Copyright (C) 2008 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.commands.monkey;
+
+import android.view.KeyEvent;
+import android.view.MotionEvent;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Shrinks a script that reproduces a crash to a small subset that still reproduces it,
+ * with the ddmin delta debugging algorithm.
+ * <p>
+ * The script is split into units that can be dropped on their own: a whole gesture from
+ * its ACTION_DOWN to its ACTION_UP, a key from down to up, or any other command line. A
+ * Throttle line stays with the unit that follows it. ddmin first tries to keep only one
+ * of n chunks of the units, then to drop one chunk, and splits finer when neither
+ * reproduces the crash. Every reduction is written to the output right away, so an
+ * interrupted run still leaves the smallest script found so far.
+ * 使用ddmin算法，将可复现崩溃的脚本缩减为仍能复现的最小子集
+ */
+public class MonkeyMinimizer {
+    /**
+     * Runs one trial.
+     */
+    public interface Trial {
+        /**
+         * Replays a script and reports whether the crash happened.
+         *
+         * @param script the script file to replay
+         * @return true if the crash was reproduced
+         */
+        boolean reproduces(String script);
+    }
+
+    private final String mInput;
+    private final String mOutput;
+    private final String mTrialPrefix; //每次尝试写入不同的文件
+
+    private final List<String> mHeader = new ArrayList<String>();
+    private final List<String[]> mUnits = new ArrayList<String[]>(); //每个单元由若干行组成
+    private int mTrials;
+
+    /**
+     * @param input the script that reproduces the crash
+     * @param output where the minimal script is written
+     */
+    public MonkeyMinimizer(String input, String output) {
+        mInput = input;
+        mOutput = output;
+        mTrialPrefix = output + ".trial";
+    }
+
+    /**
+     * Reads the script into units.
+     *
+     * @return false if the script could not be read or has no events
+     */
+    public boolean load() {
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new FileReader(mInput));
+            String line;
+            boolean inHeader = true;
+            while (inHeader && (line = reader.readLine()) != null) {
+                mHeader.add(line);
+                inHeader = line.indexOf(MonkeySourceScript.STARTING_DATA_LINE) < 0;
+            }
+            if (inHeader) {
+                Logger.err.println("** Error: No \"" + MonkeySourceScript.STARTING_DATA_LINE
+                        + "\" line in " + mInput);
+                return false;
+            }
+
+            List<String> unit = new ArrayList<String>();
+            boolean motionOpen = false;
+            int keysDown = 0;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                int open = line.indexOf('(');
+                if (open < 0) {
+                    continue; // comments such as the "# event N" marks
+                }
+                unit.add(line);
+                String verb = line.substring(0, open).trim();
+                if (verb.startsWith("capture")) {
+                    verb = verb.substring("capture".length());
+                }
+                if ("Throttle".equals(verb)) {
+                    continue; // belongs to the next line
+                }
+                int action = getAction(line, open);
+                if (verb.equals("DispatchKey")) {
+                    if (action == KeyEvent.ACTION_DOWN) {
+                        keysDown++;
+                    } else if (action == KeyEvent.ACTION_UP && keysDown > 0) {
+                        keysDown--;
+                    }
+                } else if (verb.equals("DispatchMotion") || verb.equals("DispatchPointer")
+                        || verb.equals("DispatchTrackball")) {
+                    int masked = action & MotionEvent.ACTION_MASK;
+                    if (masked == MotionEvent.ACTION_DOWN) {
+                        motionOpen = true;
+                    } else if (masked == MotionEvent.ACTION_UP
+                            || masked == MotionEvent.ACTION_CANCEL) {
+                        motionOpen = false;
+                    }
+                }
+                if (!motionOpen && keysDown == 0) {
+                    mUnits.add(unit.toArray(new String[unit.size()]));
+                    unit.clear();
+                }
+            }
+            if (!unit.isEmpty()) {
+                mUnits.add(unit.toArray(new String[unit.size()]));
+            }
+        } catch (IOException e) {
+            Logger.err.println("** Error: Failed reading " + mInput + ": " + e);
+            return false;
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    // nothing left to do
+                }
+            }
+        }
+        if (mUnits.isEmpty()) {
+            Logger.err.println("** Error: No events in " + mInput);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return the third argument of a line, the action of the event commands, or -1
+     */
+    private static int getAction(String line, int open) {
+        int start = open + 1;
+        for (int i = 0; i < 2; i++) {
+            start = line.indexOf(',', start) + 1;
+            if (start == 0) {
+                return -1;
+            }
+        }
+        int end = line.indexOf(',', start);
+        if (end < 0) {
+            end = line.indexOf(')', start);
+        }
+        try {
+            return Integer.parseInt(line.substring(start, end < 0 ? line.length() : end).trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Runs ddmin and writes the smallest reproducing script found.
+     *
+     * @param trial replays the candidate scripts
+     * @return false if the whole script does not reproduce the crash or writing failed
+     */
+    public boolean minimize(Trial trial) {
+        Logger.out.println(":Minimize: " + mUnits.size() + " units in " + mInput);
+        List<String[]> current = new ArrayList<String[]>(mUnits);
+        if (!test(trial, current)) {
+            Logger.err.println("** Error: The crash does not reproduce with the whole script");
+            return false;
+        }
+        if (!write(mOutput, current)) {
+            return false;
+        }
+
+        int n = 2;
+        while (current.size() >= 2) {
+            List<List<String[]>> chunks = split(current, n);
+            boolean reduced = false;
+            // keep a single chunk
+            for (int i = 0; i < chunks.size() && !reduced; i++) {
+                if (test(trial, chunks.get(i))) {
+                    current = chunks.get(i);
+                    n = 2;
+                    reduced = true;
+                }
+            }
+            // drop a single chunk
+            for (int i = 0; i < chunks.size() && !reduced && n > 2; i++) {
+                List<String[]> complement = new ArrayList<String[]>(current.size());
+                for (int j = 0; j < chunks.size(); j++) {
+                    if (j != i) {
+                        complement.addAll(chunks.get(j));
+                    }
+                }
+                if (test(trial, complement)) {
+                    current = complement;
+                    n = Math.max(n - 1, 2);
+                    reduced = true;
+                }
+            }
+            if (reduced) {
+                if (!write(mOutput, current)) {
+                    return false;
+                }
+            } else if (n >= current.size()) {
+                break; // every unit is needed
+            } else {
+                n = Math.min(current.size(), n * 2);
+            }
+        }
+        Logger.out.println(":Minimize: " + current.size() + " of " + mUnits.size()
+                + " units reproduce the crash, " + mTrials + " trials, written to " + mOutput);
+        return true;
+    }
+
+    private boolean test(Trial trial, List<String[]> units) {
+        String script = mTrialPrefix + (mTrials + 1);
+        if (!write(script, units)) {
+            return false;
+        }
+        mTrials++;
+        boolean reproduced = trial.reproduces(script);
+        MonkeyScriptProgram.evict(script);
+        new File(script).delete();
+        Logger.out.println(":Minimize: trial " + mTrials + ": " + units.size() + " units, "
+                + (reproduced ? "reproduced" : "not reproduced"));
+        return reproduced;
+    }
+
+    private static List<List<String[]>> split(List<String[]> units, int n) {
+        List<List<String[]>> chunks = new ArrayList<List<String[]>>(n);
+        int start = 0;
+        for (int i = 0; i < n; i++) {
+            int end = start + (units.size() - start) / (n - i);
+            chunks.add(new ArrayList<String[]>(units.subList(start, end)));
+            start = end;
+        }
+        return chunks;
+    }
+
+    private boolean write(String file, List<String[]> units) {
+        Writer out = null;
+        try {
+            out = new BufferedWriter(new FileWriter(file));
+            for (String line : mHeader) {
+                out.write(line);
+                out.write('\n');
+            }
+            for (String[] unit : units) {
+                for (String line : unit) {
+                    out.write(line);
+                    out.write('\n');
+                }
+            }
+            return true;
+        } catch (IOException e) {
+            Logger.err.println("** Error: Failed writing " + file + ": " + e);
+            return false;
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    Logger.err.println("** Error: Failed writing " + file + ": " + e);
+                }
+            }
+        }
+    }
+}
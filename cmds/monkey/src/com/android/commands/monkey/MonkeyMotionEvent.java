@@ -17,12 +17,13 @@
 package com.android.commands.monkey;
 
 import android.app.IActivityManager;
-import android.hardware.input.InputManager;
 import android.os.SystemClock;
-import android.util.SparseArray;
+import android.view.Display;
 import android.view.IWindowManager;
 import android.view.MotionEvent;
 
+import java.util.Arrays;
+
 
 /**
  * monkey motion event
@@ -31,7 +32,9 @@ public abstract class MonkeyMotionEvent extends MonkeyEvent {
     private long mDownTime; //MonkeyMotionEvent对象持有的记录按下的时间点
     private long mEventTime; //MonkeyMotionEvent对象持有的记录事件发生时的时间点
     private int mAction; //持有的动作
-    private SparseArray<MotionEvent.PointerCoords> mPointers; //MonkeyMotionEvent持有一个集合对象（SparseArray对象），key只能为整型、value则为MotionEvent.PointerCoords对象，草，想在内存中干嘛？
+    private int mPointerCount; //触摸点的数量
+    private int[] mPointerIds; //按id升序保存的触摸点id，与mPointerCoords一一对应
+    private MotionEvent.PointerCoords[] mPointerCoords; //触摸点坐标，对象会在事件回收后复用
     private int mMetaState; //对应于MotionEvent中的obtain（）方法中metaState，任何元/修饰符键在何时生效的状态，卧槽
     private float mXPrecision; //正在报告的X坐标的精度（也对应于MonkeyEvent的obtain（）方法
     private float mYPrecision; //正在报告的Y坐标的精度
@@ -39,6 +42,7 @@ public abstract class MonkeyMotionEvent extends MonkeyEvent {
                            //这个事件来自设备的id。 一个id的
                            //0表示事件不是来自物理设备; 其他
                            //数字是任意的，你不应该依赖于数值。
+    private int mDisplayId = Display.DEFAULT_DISPLAY; //事件发送到哪个屏幕
     private int mSource; // The source of this event.  同样是MotionEvent的obtain（）方法要求的参数
     private int mFlags;
     private int mEdgeFlags; //A bitfield indicating which edges, if any, were touched by this MotionEvent.
@@ -47,6 +51,9 @@ public abstract class MonkeyMotionEvent extends MonkeyEvent {
     //If true, this is an intermediate step (more verbose logging, only)
     private boolean mIntermediateNote; //标志位，用于标记是否为过渡事件，过渡事件主要是为了控制日志打印
 
+    // If true, the down and event times were recorded and are replayed at their pace
+    private boolean mRecorded;
+
     /**
      * 用于子类调用的构造方法，创建对象，必备
      * @param type 表示事件类型
@@ -59,9 +66,31 @@ public abstract class MonkeyMotionEvent extends MonkeyEvent {
         mDownTime = -1;
         mEventTime = -1;
         mAction = action;
-        mPointers = new SparseArray<MotionEvent.PointerCoords>();
+        mPointerIds = new int[2];
+        mPointerCoords = new MotionEvent.PointerCoords[2];
+        mXPrecision = 1;
+        mYPrecision = 1;
+    }
+
+    /**
+     * Resets this event to the state of a newly constructed one so that it can be reused.
+     * The pointer coordinate objects are kept and overwritten by the next addPointer().
+     */
+    protected void reset(int action) {
+        mDownTime = -1;
+        mEventTime = -1;
+        mAction = action;
+        mPointerCount = 0;
+        mMetaState = 0;
         mXPrecision = 1;
         mYPrecision = 1;
+        mDeviceId = 0;
+        mFlags = 0;
+        mEdgeFlags = 0;
+        mDisplayId = Display.DEFAULT_DISPLAY;
+        mIntermediateNote = false;
+        mRecorded = false;
+        setThrottle(-1);
     }
 
     /**
@@ -86,12 +115,36 @@ public abstract class MonkeyMotionEvent extends MonkeyEvent {
      */
     public MonkeyMotionEvent addPointer(int id, float x, float y,
             float pressure, float size) {
-        MotionEvent.PointerCoords c = new MotionEvent.PointerCoords(); //创建PointerCoords对象，PointerCoords是MotionEvent中的静态内部类
+        // Keep the pointers sorted by id and replace an existing id, as SparseArray did.
+        int index = 0;
+        while (index < mPointerCount && mPointerIds[index] < id) {
+            index++;
+        }
+        if (index == mPointerCount || mPointerIds[index] != id) {
+            if (mPointerCount == mPointerIds.length) {
+                mPointerIds = Arrays.copyOf(mPointerIds, mPointerCount * 2);
+                mPointerCoords = Arrays.copyOf(mPointerCoords, mPointerCount * 2);
+            }
+            MotionEvent.PointerCoords spare = mPointerCoords[mPointerCount]; //复用已有的对象
+            for (int i = mPointerCount; i > index; i--) {
+                mPointerIds[i] = mPointerIds[i - 1];
+                mPointerCoords[i] = mPointerCoords[i - 1];
+            }
+            mPointerCoords[index] = spare;
+            mPointerIds[index] = id;
+            mPointerCount++;
+        }
+        MotionEvent.PointerCoords c = mPointerCoords[index];
+        if (c == null) {
+            c = new MotionEvent.PointerCoords(); //PointerCoords是MotionEvent中的静态内部类
+            mPointerCoords[index] = c;
+        } else {
+            c.clear();
+        }
         c.x = x; //PointerCoords对象持有x
         c.y = y;
         c.pressure = pressure;
         c.size = size;
-        mPointers.append(id, c); //原来这个id，是作为key的，value则是PointerCoords对象
         return this; //继续返回当前对象,即MonkeyMotionEvent对象
     }
 
@@ -142,6 +195,39 @@ public abstract class MonkeyMotionEvent extends MonkeyEvent {
         return this;
     }
 
+    public int getDisplayId() {
+        return mDisplayId;
+    }
+
+    int getPointerCount() {
+        return mPointerCount;
+    }
+
+    /**
+     * @param index the index of the pointer, pointers are sorted by id
+     */
+    int getPointerId(int index) {
+        return mPointerIds[index];
+    }
+
+    MotionEvent.PointerCoords getPointerCoords(int index) {
+        return mPointerCoords[index];
+    }
+
+    boolean isRecorded() {
+        return mRecorded;
+    }
+
+    MonkeyMotionEvent setRecorded(boolean recorded) {
+        mRecorded = recorded;
+        return this;
+    }
+
+    public MonkeyMotionEvent setDisplayId(int displayId) {
+        mDisplayId = displayId;
+        return this;
+    }
+
     public MonkeyMotionEvent setEdgeFlags(int edgeFlags) {
         mEdgeFlags = edgeFlags;
         return this;
@@ -152,19 +238,15 @@ public abstract class MonkeyMotionEvent extends MonkeyEvent {
      * @return instance of a motion event 返回一个MotionEvent对象
      */
     private MotionEvent getEvent() {
-        int pointerCount = mPointers.size(); //检查触摸点的数量，如果是点事件，这里其实值为1
-        int[] pointerIds = new int[pointerCount]; //创建数组对象，数组容量为触摸点的数量，用于存储每个触摸点的key
-        MotionEvent.PointerCoords[] pointerCoords = new MotionEvent.PointerCoords[pointerCount]; //创建PointerCoords数组对象，容量也是触摸点的数量，用于分离value
-        for (int i = 0; i < pointerCount; i++) { //遍历所有触摸点
-            pointerIds[i] = mPointers.keyAt(i); //把SparseArray中的保存的key，取出来，存放到临时数组中（典型的将所有key转化为一个list）
-            pointerCoords[i] = mPointers.valueAt(i); //把SparseArray中的value，取出来，存放到临时数组中（典型的将所有value转化为一个list）
-        }
-
+        // obtain() only reads the first pointerCount entries, so the arrays are passed as is.
         MotionEvent ev = MotionEvent.obtain(mDownTime,
                 mEventTime < 0 ? SystemClock.uptimeMillis() : mEventTime,
-                mAction, pointerCount, pointerIds, pointerCoords,
+                mAction, mPointerCount, mPointerIds, mPointerCoords,
                 mMetaState, mXPrecision, mYPrecision, mDeviceId, mEdgeFlags, mSource, mFlags); //通过MotionEvent的静态方法obtain()，获取到在内存中缓存的一个MotionEvent对象，它不一定是一个点哦
-        //传入参数为按下时间、触发时间（做了保护，如果小于0，则直接使用当前系统开机至今的时间）、需要做的动作、触摸点数量、所有触摸点在SparseArray中的key，所有触摸在SarpseArray中保存的Value对象、
+        //传入参数为按下时间、触发时间（做了保护，如果小于0，则直接使用当前系统开机至今的时间）、需要做的动作、触摸点数量、所有触摸点的id数组、所有触摸点的坐标数组、
+        if (mDisplayId != Display.DEFAULT_DISPLAY) {
+            ev.setDisplayId(mDisplayId);
+        }
         return ev; //使用的是MotionEvent对象
     }
 
@@ -183,7 +265,24 @@ public abstract class MonkeyMotionEvent extends MonkeyEvent {
     @Override
     public int injectEvent(IWindowManager iwm, IActivityManager iam, int verbose) {
         MotionEvent me = getEvent(); //获取到封装好的MotionEvent对象（可能是一个点，也可能是多个点）
-        if ((verbose > 0 && !mIntermediateNote) || verbose > 1) { //这个verbose这牛逼？原来这里只是为了向标准输出流输出日志，如果verbose大于0，且不是过渡事件，或者verbose大于1
+        boolean note = (verbose > 0 && !mIntermediateNote) || verbose > 1;
+        MonkeyAsyncLogger async = Logger.getAsync();
+        if (async != null && (note || async.logsAllEvents())) {
+            // copy the fields for the writer thread instead of formatting the line here
+            long eventTime = me.getEventTime();
+            int result = MonkeyEvent.INJECT_FAIL;
+            try {
+                if (MonkeyInputInjector.inject(me)) {
+                    result = MonkeyEvent.INJECT_SUCCESS;
+                }
+            } finally {
+                me.recycle();
+                async.logMotion(MonkeyEventLogDecoder.motionEvent(getTypeLabel()), mAction,
+                        mPointerCount, mPointerIds, mPointerCoords, eventTime, result);
+            }
+            return result;
+        }
+        if (note) { //这个verbose这牛逼？原来这里只是为了向标准输出流输出日志，如果verbose大于0，且不是过渡事件，或者verbose大于1
             StringBuilder msg = new StringBuilder(":Sending "); //用于保存日志的StringBuilder对象
             msg.append(getTypeLabel()).append(" ("); //添加事件标签和一个（
             switch (me.getActionMasked()) {
@@ -219,8 +318,7 @@ public abstract class MonkeyMotionEvent extends MonkeyEvent {
             Logger.out.println(msg.toString());
         }
         try {
-            if (!InputManager.getInstance().injectInputEvent(me,  //走到这里才是真的向手机注入事件，通过InputManager的injectInputEvent注入事件，传入MotionEvent对象
-                    InputManager.INJECT_INPUT_EVENT_MODE_WAIT_FOR_RESULT)) { //依赖InputManagerService系统服务注入事件,看来还得死磕Android的系统服务
+            if (!MonkeyInputInjector.inject(me)) { //走到这里才是真的向手机注入事件，依赖InputManagerService系统服务注入事件，注入模式由--inject-mode决定
                 return MonkeyEvent.INJECT_FAIL; //只要IMS返回的是失败，则证明注入失败，看来这里也是同步方法，Monkey主线程会等待执行完……
             }
         } finally {
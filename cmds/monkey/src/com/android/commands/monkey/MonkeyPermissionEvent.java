@@ -39,6 +39,14 @@ public class MonkeyPermissionEvent extends MonkeyEvent {
         mPermissionInfo = permissionInfo;
     }
 
+    String getPackageName() {
+        return mPkg;
+    }
+
+    String getPermissionName() {
+        return mPermissionInfo.name;
+    }
+
     /**
      *
      * @param iwm wires to current window manager WMS系统服务 未使用
@@ -81,6 +81,12 @@ public class MonkeyPermissionUtil {
     /** keep track of runtime permissions requested for each package targeted */
     private Map<String, List<PermissionInfo>> mPermissionMap; //持有的Map，Key为String，Value为List对象，list的每个元素PermissionInfo对象
 
+    /** permission infos by name, shared by every package requesting the permission */
+    private final HashMap<String, PermissionInfo> mPermissionInfoCache = new HashMap<>(); //同一个权限只查询一次，值为null表示权限不存在
+
+    /** saved discovery results of a previous run, may be null */
+    private MonkeyStartupSnapshot mSnapshot;
+
     /**
      * 创建MonkeyPermissionUtil对象
      */
@@ -98,6 +104,14 @@ public class MonkeyPermissionUtil {
         mTargetSystemPackages = targetSystemPackages;
     }
 
+    /**
+     * Uses the permissions of a startup snapshot if it has them, and saves them into it
+     * otherwise.
+     */
+    public void setStartupSnapshot(MonkeyStartupSnapshot snapshot) {
+        mSnapshot = snapshot;
+    }
+
     /**
      * Decide if a package should be targeted by permission monkey
      * @param info 包信息对象
@@ -119,12 +133,26 @@ public class MonkeyPermissionUtil {
     }
 
     private boolean shouldTargetPermission(String pkg, PermissionInfo pi) throws RemoteException {
+        if (pi.group == null || pi.protectionLevel != PermissionInfo.PROTECTION_DANGEROUS
+                || !isModernPermissionGroup(pi.group)) {
+            return false; //先做不需要跨进程调用的检查
+        }
         int flags = mPermManager.getPermissionFlags(pi.name, pkg, UserHandle.myUserId());
         int fixedPermFlags = PackageManager.FLAG_PERMISSION_SYSTEM_FIXED
                 | PackageManager.FLAG_PERMISSION_POLICY_FIXED;
-        return pi.group != null && pi.protectionLevel == PermissionInfo.PROTECTION_DANGEROUS
-                && ((flags & fixedPermFlags) == 0)
-                && isModernPermissionGroup(pi.group);
+        return (flags & fixedPermFlags) == 0;
+    }
+
+    /**
+     * @return the info of a permission, looked up once per run
+     */
+    private PermissionInfo getPermissionInfo(String perm) throws RemoteException {
+        if (mPermissionInfoCache.containsKey(perm)) {
+            return mPermissionInfoCache.get(perm);
+        }
+        PermissionInfo pi = mPermManager.getPermissionInfo(perm, "shell", 0);
+        mPermissionInfoCache.put(perm, pi);
+        return pi;
     }
 
     /**
@@ -132,6 +160,13 @@ public class MonkeyPermissionUtil {
      * @return
      */
     public boolean populatePermissionsMapping() {
+        if (mSnapshot != null && mSnapshot.getPermissions() != null) {
+            mPermissionMap = mSnapshot.getPermissions(); //使用上次运行保存的结果
+            if (!mPermissionMap.isEmpty()) {
+                mTargetedPackages = new ArrayList<>(mPermissionMap.keySet());
+            }
+            return true;
+        }
         mPermissionMap = new HashMap<>(); //创建HashMap对象
         try {
             List<?> pkgInfos = mPm.getInstalledPackages(
@@ -150,7 +185,7 @@ public class MonkeyPermissionUtil {
                     continue;
                 }
                 for (String perm : info.requestedPermissions) {
-                    PermissionInfo pi = mPermManager.getPermissionInfo(perm, "shell", 0);
+                    PermissionInfo pi = getPermissionInfo(perm);
                     if (pi != null && shouldTargetPermission(info.packageName, pi)) {
                         permissions.add(pi);
                     }
@@ -166,6 +201,9 @@ public class MonkeyPermissionUtil {
         if (!mPermissionMap.isEmpty()) {
             mTargetedPackages = new ArrayList<>(mPermissionMap.keySet());
         }
+        if (mSnapshot != null) {
+            mSnapshot.setPermissions(mPermissionMap);
+        }
         return true;
     }
 
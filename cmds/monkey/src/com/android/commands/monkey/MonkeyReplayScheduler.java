@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2008 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.commands.monkey;
+
+import android.os.SystemClock;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Paces recorded events so that they are injected at their recorded times.
+ * <p>
+ * The first recorded event sets an anchor, the pair of its recorded time and the current
+ * {@link System#nanoTime}. Every following event gets an absolute deadline computed from
+ * the anchor, so the error of one wait does not carry over to the next. Waiting parks the
+ * thread until shortly before the deadline and spins for the rest.
+ * <p>
+ * The anchor is dropped when something other than a recorded event was injected, when the
+ * recorded time goes backwards, and when an event is more than {@link #MAX_LATENESS_MS}
+ * late. In all three cases the next event starts a new anchor instead of the monkey
+ * injecting a burst of events to catch up.
+ * 使用绝对时间点回放录制的事件，误差不会累积
+ */
+public class MonkeyReplayScheduler {
+    /** Time before a deadline at which parking stops and spinning starts. */
+    private static final long SPIN_NANOS = 1000000;
+
+    /** Events later than this start a new anchor. */
+    private static final long MAX_LATENESS_MS = 100;
+
+    /** Upper bounds of the lateness buckets, in microseconds. */
+    private static final long[] BUCKET_LIMITS_US = {100, 500, 1000, 2000, 5000, 16000};
+
+    private final double mSpeed; //与脚本中的speed=相同，录制的时间间隔乘以该值
+
+    private boolean mAnchored;
+    private long mAnchorRecordedTime; //锚点的录制时间，毫秒
+    private long mAnchorNanos; //锚点的System.nanoTime()
+    private long mAnchorUptime; //锚点的SystemClock.uptimeMillis()
+    private long mLastRecordedTime;
+
+    private long mLastLatenessNanos;
+
+    // lateness statistics
+    private int mCount;
+    private int mAnchors;
+    private long mTotalLatenessNanos;
+    private long mMaxLatenessNanos;
+    private final int[] mBuckets = new int[BUCKET_LIMITS_US.length + 1];
+
+    /**
+     * @param speed the factor applied to recorded intervals, 2.0 replays at half speed
+     */
+    public MonkeyReplayScheduler(double speed) {
+        mSpeed = speed;
+    }
+
+    /**
+     * Drops the anchor, the next recorded event is injected right away and starts a new one.
+     */
+    public void reset() {
+        mAnchored = false;
+    }
+
+    /**
+     * Waits until a recorded event is due.
+     *
+     * @param recordedTime the time at which the event was recorded, in milliseconds
+     * @return the uptime at which the event is due, to be used as its event time
+     */
+    public long await(long recordedTime) {
+        if (!mAnchored || recordedTime < mLastRecordedTime) {
+            anchor(recordedTime);
+            return mAnchorUptime;
+        }
+        mLastRecordedTime = recordedTime;
+
+        long offsetNanos = (long) ((recordedTime - mAnchorRecordedTime) * mSpeed * 1000000);
+        long deadline = mAnchorNanos + offsetNanos;
+        long remaining = deadline - System.nanoTime();
+        while (remaining > SPIN_NANOS) {
+            LockSupport.parkNanos(remaining - SPIN_NANOS);
+            remaining = deadline - System.nanoTime();
+        }
+        while (remaining > 0) {
+            remaining = deadline - System.nanoTime(); //最后1毫秒忙等，避免park的调度误差
+        }
+
+        record(-remaining);
+        long eventTime = mAnchorUptime + offsetNanos / 1000000;
+        if (-remaining > MAX_LATENESS_MS * 1000000) {
+            anchor(recordedTime); //落后太多，不再追赶
+            return mAnchorUptime;
+        }
+        return eventTime;
+    }
+
+    /**
+     * Maps a recorded time, like the down time of a gesture, to uptime using the current
+     * anchor.
+     */
+    public long toUptime(long recordedTime) {
+        return mAnchorUptime + (long) ((recordedTime - mAnchorRecordedTime) * mSpeed);
+    }
+
+    /**
+     * @return how late the last event was, in nanoseconds
+     */
+    public long getLastLateness() {
+        return mLastLatenessNanos;
+    }
+
+    private void anchor(long recordedTime) {
+        mAnchored = true;
+        mAnchors++;
+        mAnchorRecordedTime = recordedTime;
+        mLastRecordedTime = recordedTime;
+        mAnchorNanos = System.nanoTime();
+        mAnchorUptime = SystemClock.uptimeMillis();
+    }
+
+    private void record(long latenessNanos) {
+        mLastLatenessNanos = latenessNanos;
+        mCount++;
+        mTotalLatenessNanos += latenessNanos;
+        if (latenessNanos > mMaxLatenessNanos) {
+            mMaxLatenessNanos = latenessNanos;
+        }
+        long us = latenessNanos / 1000;
+        int i = 0;
+        while (i < BUCKET_LIMITS_US.length && us >= BUCKET_LIMITS_US[i]) {
+            i++;
+        }
+        mBuckets[i]++;
+    }
+
+    /**
+     * Prints the lateness statistics.
+     */
+    public void dump() {
+        if (mCount == 0) {
+            return;
+        }
+        StringBuilder sb = new StringBuilder();
+        sb.append(":Replay timing: events=").append(mCount)
+                .append(" anchors=").append(mAnchors)
+                .append(" meanLateUs=").append(mTotalLatenessNanos / mCount / 1000)
+                .append(" maxLateUs=").append(mMaxLatenessNanos / 1000);
+        for (int i = 0; i < mBuckets.length; i++) {
+            sb.append(i < BUCKET_LIMITS_US.length ? " <" + BUCKET_LIMITS_US[i] + "us="
+                    : " >=" + BUCKET_LIMITS_US[i - 1] + "us=").append(mBuckets[i]);
+        }
+        Logger.out.println(sb.toString());
+    }
+}
@@ -43,6 +43,14 @@ public class MonkeyRotationEvent extends MonkeyEvent {
         mPersist = persist; //记录是否锁定
     }
 
+    int getRotationDegree() {
+        return mRotationDegree;
+    }
+
+    boolean isPersist() {
+        return mPersist;
+    }
+
     /**
      * 改变屏幕角度的事件
      * @param iwm wires to current window manager WMS服务对象
@@ -60,8 +68,10 @@ public class MonkeyRotationEvent extends MonkeyEvent {
         // inject rotation event
         try {
             iwm.freezeRotation(mRotationDegree); //通过WMS系统服务改变屏幕角度，这个方法是同步的？还是异步的呢？显然肯定是同步方法
+            MonkeyDisplayCache.invalidate(); //屏幕宽高可能已经改变
             if (!mPersist) { //如果不需要锁定屏幕，走这里
                 iwm.thawRotation();
+                MonkeyDisplayCache.invalidate();
             }
             return MonkeyEvent.INJECT_SUCCESS; //没有抛出远程服务的异常，代表注入事件成功，向调用者返回车弄个
         } catch (RemoteException ex) {
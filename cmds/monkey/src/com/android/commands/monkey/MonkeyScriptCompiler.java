@@ -0,0 +1,283 @@
+/*
+ * Copyright (C) 2008 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.commands.monkey;
+
+import com.android.commands.monkey.MonkeySourceScript.ScriptCommandHandler;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Compiles a text script for {@link MonkeySourceScript} into a binary file that can be
+ * replayed without parsing.
+ * <p>
+ * The file starts with a {@link #HEADER_SIZE} byte header, followed by records of
+ * {@link #RECORD_SIZE} bytes each and a string table. All values are big endian.
+ *
+ * <pre>
+ * header:  int magic, short version, short flags, int count=, int records,
+ *          double speed=, int string table offset
+ * record:  byte opcode, byte argc, short unused, int action,
+ *          long downTime, long eventTime, int[10] slots
+ * strings: int count, count * (int length, UTF-8 bytes)
+ * </pre>
+ * Key, pointer and trackball lines are stored as numbers, floats by their raw bits, so
+ * they replay exactly as parsed. Every other line is stored once in the string table and
+ * referenced from an {@link #OP_LINE} record that replays it through the text parser.
+ * 将文本脚本编译为定长记录的二进制文件，回放时不需要再解析字符串
+ */
+public class MonkeyScriptCompiler {
+    static final int MAGIC = 0x4d4b5331; // "MKS1"
+    static final short VERSION = 1;
+
+    static final short FLAG_LINE_BY_LINE = 0x1;
+
+    static final int HEADER_SIZE = 32;
+    static final int RECORD_SIZE = 64;
+
+    // header field offsets
+    static final int HEADER_OFFSET_FLAGS = 6;
+    static final int HEADER_OFFSET_COUNT = 8;
+    static final int HEADER_OFFSET_RECORDS = 12;
+    static final int HEADER_OFFSET_SPEED = 16;
+    static final int HEADER_OFFSET_STRINGS = 24;
+
+    // record field offsets
+    static final int RECORD_OFFSET_ARGC = 1;
+    static final int RECORD_OFFSET_ACTION = 4;
+    static final int RECORD_OFFSET_DOWN_TIME = 8;
+    static final int RECORD_OFFSET_EVENT_TIME = 16;
+    static final int RECORD_OFFSET_SLOTS = 24;
+    static final int RECORD_SLOTS = 10;
+
+    static final byte OP_LINE = 1; //action为字符串表中的下标
+    static final byte OP_KEY = 2;
+    static final byte OP_POINTER = 3;
+    static final byte OP_TRACKBALL = 4;
+
+    private MonkeyScriptCompiler() {
+    }
+
+    /**
+     * Compiles a text script.
+     *
+     * @param inFile the text script to read
+     * @param outFile the binary script to write
+     * @return false if the script could not be read or written
+     */
+    public static boolean compile(String inFile, String outFile) {
+        ByteBuffer program = compileToBuffer(inFile);
+        if (program == null) {
+            return false;
+        }
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(outFile);
+            out.write(program.array(), 0, program.limit());
+        } catch (IOException e) {
+            Logger.err.println("** Error: Failed writing " + outFile + ": " + e);
+            return false;
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    // nothing left to do
+                }
+            }
+        }
+        Logger.out.println(":Compiled " + program.getInt(HEADER_OFFSET_RECORDS) + " records, "
+                + program.getInt(program.getInt(HEADER_OFFSET_STRINGS)) + " strings into "
+                + outFile);
+        return true;
+    }
+
+    /**
+     * Compiles a text script in memory, into the same bytes {@link #compile} writes.
+     *
+     * @param inFile the text script to read
+     * @return the compiled script, or null if it could not be read
+     */
+    static ByteBuffer compileToBuffer(String inFile) {
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new FileReader(inFile));
+            int count = 0;
+            double speed = 1.0;
+            short flags = 0;
+            boolean started = false;
+            String line;
+            while (!started && (line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.indexOf(MonkeySourceScript.HEADER_COUNT) >= 0) {
+                    count = Integer.parseInt(
+                            line.substring(MonkeySourceScript.HEADER_COUNT.length() + 1).trim());
+                } else if (line.indexOf(MonkeySourceScript.HEADER_SPEED) >= 0) {
+                    speed = Double.parseDouble(
+                            line.substring(MonkeySourceScript.HEADER_SPEED.length() + 1).trim());
+                } else if (line.indexOf(MonkeySourceScript.HEADER_LINE_BY_LINE) >= 0) {
+                    flags |= FLAG_LINE_BY_LINE;
+                } else if (line.indexOf(MonkeySourceScript.STARTING_DATA_LINE) >= 0) {
+                    started = true;
+                }
+            }
+            if (!started) {
+                Logger.err.println("** Error: No \"" + MonkeySourceScript.STARTING_DATA_LINE
+                        + "\" line in " + inFile);
+                return null;
+            }
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.write(new byte[HEADER_SIZE]); // filled in once the sizes are known
+
+            ArrayList<String> strings = new ArrayList<String>();
+            HashMap<String, Integer> stringIndex = new HashMap<String, Integer>(); //字符串去重
+            int records = 0;
+            while ((line = reader.readLine()) != null) {
+                if (writeRecord(out, line, strings, stringIndex)) {
+                    records++;
+                }
+            }
+
+            out.writeInt(strings.size());
+            for (String s : strings) {
+                byte[] b = s.getBytes(StandardCharsets.UTF_8);
+                out.writeInt(b.length);
+                out.write(b);
+            }
+            out.close();
+
+            ByteBuffer program = ByteBuffer.wrap(bytes.toByteArray()); // big endian, as written
+            program.putInt(0, MAGIC);
+            program.putShort(4, VERSION);
+            program.putShort(HEADER_OFFSET_FLAGS, flags);
+            program.putInt(HEADER_OFFSET_COUNT, count);
+            program.putInt(HEADER_OFFSET_RECORDS, records);
+            program.putDouble(HEADER_OFFSET_SPEED, speed);
+            program.putInt(HEADER_OFFSET_STRINGS, HEADER_SIZE + records * RECORD_SIZE);
+            return program;
+        } catch (IOException e) {
+            Logger.err.println("** Error: Failed compiling " + inFile + ": " + e);
+            return null;
+        } catch (NumberFormatException e) {
+            Logger.err.println("** Error: Bad header in " + inFile + ": " + e);
+            return null;
+        } finally {
+            try {
+                if (reader != null) {
+                    reader.close();
+                }
+            } catch (IOException e) {
+                // nothing left to do
+            }
+        }
+    }
+
+    /**
+     * Writes the record for one script line. Lines of the built-in key and motion commands
+     * are stored as numbers, lines of any other known command as strings. Lines the text
+     * parser would drop are dropped here as well.
+     *
+     * @return true if a record was written
+     */
+    private static boolean writeRecord(DataOutputStream out, String line,
+            ArrayList<String> strings, HashMap<String, Integer> stringIndex) throws IOException {
+        String[] args = MonkeySourceScript.parseArgs(line);
+        if (args == null) {
+            return false;
+        }
+
+        ScriptCommandHandler handler = MonkeySourceScript.getHandler(line);
+        if (handler == null) {
+            return false; // not a command, the text path ignores it too
+        }
+
+        byte op = OP_LINE;
+        if (handler instanceof MonkeySourceScript.KeyCommand && args.length == 8) {
+            op = OP_KEY;
+        } else if (handler instanceof MonkeySourceScript.MotionCommand
+                && (args.length == 12 || args.length == 13)) {
+            op = ((MonkeySourceScript.MotionCommand) handler).isTouch() ? OP_POINTER
+                    : OP_TRACKBALL;
+        }
+
+        if (op == OP_LINE) {
+            Integer index = stringIndex.get(line);
+            if (index == null) {
+                index = strings.size();
+                strings.add(line);
+                stringIndex.put(line, index);
+            }
+            out.writeByte(op);
+            out.writeByte(args.length);
+            out.writeShort(0);
+            out.writeInt(index);
+            out.write(new byte[RECORD_SIZE - RECORD_OFFSET_DOWN_TIME]);
+            return true;
+        }
+
+        int[] slots = new int[RECORD_SLOTS];
+        int action;
+        long downTime;
+        long eventTime;
+        try {
+            downTime = Long.parseLong(args[0]);
+            eventTime = Long.parseLong(args[1]);
+            action = Integer.parseInt(args[2]);
+            if (op == OP_KEY) {
+                for (int i = 3; i < 8; i++) {
+                    slots[i - 3] = Integer.parseInt(args[i]); // code, repeat, meta, device, scan
+                }
+            } else {
+                slots[0] = Float.floatToRawIntBits(Float.parseFloat(args[3])); // x
+                slots[1] = Float.floatToRawIntBits(Float.parseFloat(args[4])); // y
+                slots[2] = Float.floatToRawIntBits(Float.parseFloat(args[5])); // pressure
+                slots[3] = Float.floatToRawIntBits(Float.parseFloat(args[6])); // size
+                slots[4] = Integer.parseInt(args[7]); // meta state
+                slots[5] = Float.floatToRawIntBits(Float.parseFloat(args[8])); // x precision
+                slots[6] = Float.floatToRawIntBits(Float.parseFloat(args[9])); // y precision
+                slots[7] = Integer.parseInt(args[10]); // device
+                slots[8] = Integer.parseInt(args[11]); // edge flags
+                if (args.length == 13) {
+                    slots[9] = Integer.parseInt(args[12]); // pointer id
+                }
+            }
+        } catch (NumberFormatException e) {
+            return false;
+        }
+
+        out.writeByte(op);
+        out.writeByte(args.length);
+        out.writeShort(0);
+        out.writeInt(action);
+        out.writeLong(downTime);
+        out.writeLong(eventTime);
+        for (int slot : slots) {
+            out.writeInt(slot);
+        }
+        return true;
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2008 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.commands.monkey;
+
+import com.android.commands.monkey.MonkeySourceScript.ScriptCommandHandler;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+
+/**
+ * A script in the {@link MonkeyScriptCompiler} format, loaded once and shared by every
+ * {@link MonkeySourceScript} that replays the same file.
+ * <p>
+ * Compiled scripts are mapped, text scripts are compiled in memory the first time they
+ * are opened. The string table is decoded and its lines parsed into arguments and
+ * handlers up front, so a pass through the script only moves a record index and reads
+ * the records with absolute gets. Nothing here changes after loading.
+ * <p>
+ * Text scripts larger than {@link #MAX_TEXT_BYTES} are not kept in memory; they are read
+ * line by line on every pass, as before.
+ * <p>
+ * A cached program is reused only while the size and modification time of its file are
+ * unchanged, so a script rewritten during the run is loaded again.
+ * 脚本只解析一次，多次回放共享同一份只读的事件程序
+ */
+public class MonkeyScriptProgram {
+    /** Largest text script compiled into memory. */
+    static final long MAX_TEXT_BYTES = 16 * 1024 * 1024;
+
+    /** A loaded file and the state it was loaded in. */
+    private static final class Entry {
+        final long mLastModified;
+        final long mLength;
+        final MonkeyScriptProgram mProgram; //为null表示按行读取的文本脚本
+
+        Entry(long lastModified, long length, MonkeyScriptProgram program) {
+            mLastModified = lastModified;
+            mLength = length;
+            mProgram = program;
+        }
+    }
+
+    // file name to the program loaded from it
+    private static final HashMap<String, Entry> sPrograms = new HashMap<String, Entry>();
+
+    private final ByteBuffer mBuffer; //只使用绝对位置读取，多个回放可以共享
+    private final boolean mLineByLine;
+    private final int mEventCount;
+    private final int mRecordCount;
+    private final double mSpeed;
+    private final String[] mStrings;
+    private final String[][] mArgs;
+    private final ScriptCommandHandler[] mHandlers;
+
+    private MonkeyScriptProgram(ByteBuffer buffer, String file) throws IOException {
+        if (buffer.getShort(4) != MonkeyScriptCompiler.VERSION) {
+            throw new IOException("Unsupported compiled script version in " + file);
+        }
+        mBuffer = buffer;
+        mLineByLine = (buffer.getShort(MonkeyScriptCompiler.HEADER_OFFSET_FLAGS)
+                & MonkeyScriptCompiler.FLAG_LINE_BY_LINE) != 0;
+        mEventCount = buffer.getInt(MonkeyScriptCompiler.HEADER_OFFSET_COUNT);
+        mRecordCount = buffer.getInt(MonkeyScriptCompiler.HEADER_OFFSET_RECORDS);
+        mSpeed = buffer.getDouble(MonkeyScriptCompiler.HEADER_OFFSET_SPEED);
+
+        ByteBuffer strings = buffer.duplicate(); // leaves the shared position alone
+        strings.position(buffer.getInt(MonkeyScriptCompiler.HEADER_OFFSET_STRINGS));
+        mStrings = new String[strings.getInt()];
+        mArgs = new String[mStrings.length][];
+        mHandlers = new ScriptCommandHandler[mStrings.length];
+        for (int i = 0; i < mStrings.length; i++) {
+            byte[] bytes = new byte[strings.getInt()];
+            strings.get(bytes);
+            mStrings[i] = new String(bytes, StandardCharsets.UTF_8);
+            mArgs[i] = MonkeySourceScript.parseArgs(mStrings[i]);
+            mHandlers[i] = MonkeySourceScript.getHandler(mStrings[i]);
+        }
+    }
+
+    /**
+     * Returns the program of a script, loading it on first use or when the file changed.
+     *
+     * @param file the script file
+     * @return the program, or null if the file is a text script too large to keep in memory
+     * @throws IOException if the script could not be read or compiled
+     */
+    public static MonkeyScriptProgram get(String file) throws IOException {
+        File f = new File(file);
+        long lastModified = f.lastModified();
+        long length = f.length();
+        synchronized (sPrograms) {
+            Entry entry = sPrograms.get(file);
+            if (entry != null && entry.mLastModified == lastModified
+                    && entry.mLength == length) {
+                return entry.mProgram;
+            }
+            MonkeyScriptProgram program = load(file);
+            sPrograms.put(file, new Entry(lastModified, length, program));
+            return program;
+        }
+    }
+
+    /**
+     * Drops the cached program of a file that will not be replayed again.
+     */
+    public static void evict(String file) {
+        synchronized (sPrograms) {
+            sPrograms.remove(file);
+        }
+    }
+
+    private static MonkeyScriptProgram load(String file) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            ByteBuffer magic = ByteBuffer.allocate(4);
+            if (channel.read(magic, 0) == 4 && magic.getInt(0) == MonkeyScriptCompiler.MAGIC) {
+                return new MonkeyScriptProgram(
+                        channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), file);
+            }
+        } finally {
+            in.close();
+        }
+
+        if (new File(file).length() > MAX_TEXT_BYTES) {
+            return null;
+        }
+        ByteBuffer buffer = MonkeyScriptCompiler.compileToBuffer(file);
+        if (buffer == null) {
+            throw new IOException("Failed loading " + file);
+        }
+        return new MonkeyScriptProgram(buffer, file);
+    }
+
+    boolean isLineByLine() {
+        return mLineByLine;
+    }
+
+    /**
+     * @return the count= value of the header
+     */
+    int getEventCount() {
+        return mEventCount;
+    }
+
+    int getRecordCount() {
+        return mRecordCount;
+    }
+
+    double getSpeed() {
+        return mSpeed;
+    }
+
+    /**
+     * @return the records; only absolute gets may be used on the returned buffer
+     */
+    ByteBuffer getBuffer() {
+        return mBuffer;
+    }
+
+    /**
+     * @return the arguments of a string table line, null if the line has none
+     */
+    String[] getArgs(int index) {
+        return mArgs[index];
+    }
+
+    /**
+     * @return the handler of a string table line, null if there is none
+     */
+    ScriptCommandHandler getHandler(int index) {
+        return mHandlers[index];
+    }
+}
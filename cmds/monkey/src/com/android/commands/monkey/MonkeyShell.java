@@ -0,0 +1,429 @@
+/*
+ * Copyright (C) 2008 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.commands.monkey;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.StringTokenizer;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A long-lived /system/bin/sh worker that runs shell commands for the monkey, so that
+ * each command does not fork the monkey's own, much larger, process.
+ * <p>
+ * Every calling thread gets its own worker, so a bugreport on the diagnostics thread
+ * does not hold up a RunCmd on the injection thread. A request is one line on the
+ * worker's stdin: the command is split on whitespace like Runtime.exec(String), each
+ * argument is quoted so that the worker takes it literally, and the program is started
+ * with setsid in its own session and process group, with stdin from /dev/null and stderr
+ * discarded as Runtime.exec() callers did before. The worker prints the pid of the group
+ * on its own stderr, waits for the command and prints the response frame end on stdout.
+ * The frame end is an ASCII record separator, a nonce chosen when the worker starts, the
+ * request id and the exit status. Everything before it is the stdout of the command and
+ * is copied to the caller's sink as raw bytes.
+ * <p>
+ * A command that runs past its timeout gets its whole process group killed and the
+ * worker is kept. If the frame end still does not arrive, because some process left
+ * the group with the output pipe open, the worker is destroyed and its pipes closed;
+ * the next request starts a new one.
+ * 每个线程一个常驻的shell工作进程，命令在独立的进程组中执行，超时后杀掉整个进程组
+ */
+public class MonkeyShell {
+    /** Status of a command that ran past its timeout. */
+    public static final int STATUS_TIMEOUT = -1;
+    /** Status of a command that could not be run. */
+    public static final int STATUS_ERROR = -2;
+
+    /** Timeout for short commands, such as RunCmd script lines. */
+    public static final long COMMAND_TIMEOUT_MS = 60 * 1000;
+
+    /** How long after killing a timed out group the worker is given up on. */
+    private static final long KILL_GRACE_MS = 5 * 1000;
+
+    private static final String SHELL = "/system/bin/sh";
+    private static final String KILL = "/system/bin/kill";
+    private static final byte FRAME_END = 0x1e; // ASCII record separator
+
+    private static final ArrayList<MonkeyShell> sShells = new ArrayList<MonkeyShell>();
+    private static final ThreadLocal<MonkeyShell> sThreadShell = new ThreadLocal<MonkeyShell>();
+    private static ScheduledExecutorService sTimer;
+
+    private final Object mLock = new Object(); //工作进程只被所属线程使用，锁用于与shutdown()互斥
+    private final byte[] mBuffer = new byte[8192];
+    private final Random mRandom = new Random();
+
+    // guarded by mLock
+    private Process mWorker;
+    private OutputStream mStdin;
+    private InputStream mStdout;
+    private InputStream mStderr; //工作进程的stderr只用于传回进程组id
+    private String mNonce;
+    private long mNextId;
+    private IOException mSinkError;
+
+    private MonkeyShell() {
+    }
+
+    /**
+     * @return the shell worker of the calling thread, created on first use
+     */
+    public static MonkeyShell getInstance() {
+        MonkeyShell shell = sThreadShell.get();
+        if (shell == null) {
+            shell = new MonkeyShell();
+            synchronized (MonkeyShell.class) {
+                sShells.add(shell);
+            }
+            sThreadShell.set(shell);
+        }
+        return shell;
+    }
+
+    private static synchronized ScheduledExecutorService getTimer() {
+        if (sTimer == null) {
+            sTimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "MonkeyShellTimeout");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return sTimer;
+    }
+
+    /**
+     * Stops the workers of every thread. A thread running a command is waited for.
+     */
+    public static synchronized void shutdown() {
+        for (MonkeyShell shell : sShells) {
+            synchronized (shell.mLock) {
+                shell.stopWorker();
+            }
+        }
+        if (sTimer != null) {
+            sTimer.shutdownNow();
+            sTimer = null;
+        }
+    }
+
+    /** Kills the process group of a command when it runs past its timeout. */
+    private final class Timeout implements Runnable {
+        private final int mGroup;
+        private final Process mTarget;
+        private ScheduledFuture<?> mFuture;
+        private boolean mDone;
+        private boolean mFired;
+        private boolean mAbandoned; //杀掉进程组后仍然没有结束，放弃工作进程
+
+        Timeout(int group, Process worker) {
+            mGroup = group;
+            mTarget = worker;
+        }
+
+        synchronized void schedule(long delayMillis) {
+            mFuture = getTimer().schedule(this, delayMillis, TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public void run() {
+            synchronized (this) {
+                if (mDone) {
+                    return;
+                }
+                if (mFired) {
+                    mAbandoned = true;
+                } else {
+                    mFired = true;
+                    killGroup(mGroup);
+                    mFuture = getTimer().schedule(this, KILL_GRACE_MS, TimeUnit.MILLISECONDS);
+                    return;
+                }
+            }
+            mTarget.destroy();
+            closeQuietly(mTarget.getInputStream()); //唤醒阻塞在读取上的调用线程
+        }
+
+        synchronized void finish() {
+            mDone = true;
+            if (mFuture != null) {
+                mFuture.cancel(false);
+            }
+        }
+
+        synchronized boolean fired() {
+            return mFired;
+        }
+
+        synchronized boolean abandoned() {
+            return mAbandoned;
+        }
+    }
+
+    /**
+     * Runs a shell command and waits for it.
+     *
+     * @param command the program and its arguments, split on whitespace like
+     *        Runtime.exec(String); no shell syntax is interpreted
+     * @param sink receives stdout of the command; write errors are reported once and the
+     *        rest of the output is dropped
+     * @param timeoutMillis how long the command may run, 0 for no limit
+     * @return the exit status, {@link #STATUS_TIMEOUT} or {@link #STATUS_ERROR}
+     */
+    public int run(String command, OutputStream sink, long timeoutMillis) {
+        synchronized (mLock) {
+            try {
+                ensureWorker();
+            } catch (IOException e) {
+                Logger.err.println("** Failed starting " + SHELL + ": " + e);
+                return STATUS_ERROR;
+            }
+            StringBuilder args = new StringBuilder();
+            StringTokenizer tok = new StringTokenizer(command); //与Runtime.exec(String)相同的拆分方式
+            while (tok.hasMoreTokens()) {
+                args.append(' ').append(quote(tok.nextToken()));
+            }
+            if (args.length() == 0) {
+                Logger.err.println("** Empty shell command");
+                return STATUS_ERROR;
+            }
+            long id = ++mNextId;
+            String frame = mNonce + ":" + id;
+            byte[] marker = ((char) FRAME_END + frame + " ").getBytes(StandardCharsets.US_ASCII);
+            String request = "setsid" + args
+                    + " </dev/null 2>/dev/null & echo $! >&2; wait $!; "
+                    + "printf '\\036%s %d\\n' " + frame + " $?\n";
+
+            Timeout timeout = null;
+            int status;
+            mSinkError = null;
+            try {
+                mStdin.write(request.getBytes(StandardCharsets.UTF_8));
+                mStdin.flush();
+                int group = readGroup();
+                if (timeoutMillis > 0) {
+                    timeout = new Timeout(group, mWorker);
+                    timeout.schedule(timeoutMillis);
+                }
+                status = readResponse(marker, sink);
+            } catch (IOException e) {
+                status = STATUS_ERROR;
+            }
+            if (timeout != null) {
+                timeout.finish();
+                if (timeout.fired()) {
+                    status = STATUS_TIMEOUT;
+                }
+                if (timeout.abandoned()) {
+                    status = STATUS_TIMEOUT;
+                    stopWorker();
+                }
+            }
+            if (status == STATUS_ERROR) {
+                stopWorker(); //下一个请求会重新启动工作进程
+            }
+            if (mSinkError != null) {
+                Logger.err.println("** Failed writing output of " + command + ": " + mSinkError);
+            }
+            return status;
+        }
+    }
+
+    /**
+     * Reads the pid the worker echoed for the command just started. With setsid the
+     * command is the leader of its own process group, so this is also the group id.
+     * Lines that are not a number, such as shell errors, are skipped.
+     */
+    private int readGroup() throws IOException {
+        while (true) {
+            int value = 0;
+            boolean digits = false;
+            boolean other = false;
+            int b;
+            while ((b = mStderr.read()) != '\n') {
+                if (b < 0) {
+                    throw new IOException(SHELL + " exited");
+                } else if (b >= '0' && b <= '9') {
+                    value = value * 10 + (b - '0');
+                    digits = true;
+                } else {
+                    other = true;
+                }
+            }
+            if (digits && !other) {
+                return value;
+            }
+        }
+    }
+
+    private static void killGroup(int group) {
+        try {
+            Process kill = new ProcessBuilder(KILL, "-9", "--", "-" + group).start();
+            kill.waitFor();
+        } catch (IOException e) {
+            Logger.err.println("** Failed killing process group " + group + ": " + e);
+        } catch (InterruptedException e) {
+            // the grace period still applies
+        }
+    }
+
+    /**
+     * Copies the output to the sink up to the frame end and parses the status after it.
+     * The bytes of a possible frame end are held back until it is matched or not.
+     */
+    private int readResponse(byte[] marker, OutputStream sink) throws IOException {
+        int matched = 0; //已匹配的帧结束标记字节数
+        boolean negative = false;
+        int status = 0;
+        int n;
+        while ((n = mStdout.read(mBuffer)) > 0) {
+            int from = 0; // first byte not yet written to the sink
+            for (int i = 0; i < n; i++) {
+                byte b = mBuffer[i];
+                if (matched == marker.length) {
+                    if (b == '\n') {
+                        return negative ? -status : status;
+                    } else if (b == '-') {
+                        negative = true;
+                    } else if (b >= '0' && b <= '9') {
+                        status = status * 10 + (b - '0');
+                    }
+                    continue;
+                }
+                if (b == marker[matched]) {
+                    if (matched == 0) {
+                        writeSink(sink, mBuffer, from, i - from);
+                    }
+                    matched++;
+                    from = i + 1;
+                } else if (matched > 0) {
+                    writeSink(sink, marker, 0, matched); // not the frame end after all
+                    matched = 0;
+                    from = i;
+                    if (b == marker[0]) {
+                        matched = 1;
+                        from = i + 1;
+                    }
+                }
+            }
+            if (matched == 0) {
+                writeSink(sink, mBuffer, from, n - from);
+            }
+        }
+        throw new IOException(SHELL + " exited");
+    }
+
+    private void writeSink(OutputStream sink, byte[] b, int off, int len) {
+        if (len <= 0 || sink == null || mSinkError != null) {
+            return;
+        }
+        try {
+            sink.write(b, off, len);
+        } catch (IOException e) {
+            mSinkError = e; //例如磁盘已满，剩余的输出读取后丢弃
+        }
+    }
+
+    private void ensureWorker() throws IOException {
+        if (mWorker != null) {
+            return;
+        }
+        mWorker = new ProcessBuilder(SHELL).start();
+        mStdin = mWorker.getOutputStream();
+        mStdout = mWorker.getInputStream();
+        mStderr = mWorker.getErrorStream();
+        mNonce = Long.toHexString(mRandom.nextLong() | Long.MIN_VALUE);
+    }
+
+    private void stopWorker() {
+        if (mWorker == null) {
+            return;
+        }
+        closeQuietly(mStdin);
+        mWorker.destroy();
+        closeQuietly(mStdout);
+        closeQuietly(mStderr);
+        mWorker = null;
+        mStdin = null;
+        mStdout = null;
+        mStderr = null;
+    }
+
+    private static void closeQuietly(Closeable c) {
+        try {
+            c.close();
+        } catch (IOException e) {
+            // the worker is destroyed anyway
+        }
+    }
+
+    private static String quote(String s) {
+        return "'" + s.replace("'", "'\\''") + "'";
+    }
+
+    /**
+     * Prints each line written to it to Logger.err. The bytes are collected in one
+     * reused buffer, so the only allocation is the String of each printed line.
+     */
+    public static class LoggerSink extends OutputStream {
+        private byte[] mLine = new byte[256];
+        private int mLength;
+
+        @Override
+        public void write(int b) {
+            if (b == '\n') {
+                flushLine();
+                return;
+            }
+            if (mLength == mLine.length) {
+                byte[] grown = new byte[mLine.length * 2];
+                System.arraycopy(mLine, 0, grown, 0, mLength);
+                mLine = grown;
+            }
+            mLine[mLength++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            for (int i = off; i < off + len; i++) {
+                write(b[i]);
+            }
+        }
+
+        @Override
+        public void close() {
+            if (mLength > 0) {
+                flushLine();
+            }
+        }
+
+        private void flushLine() {
+            Logger.err.println(new String(mLine, 0, mLength, StandardCharsets.UTF_8));
+            mLength = 0;
+        }
+    }
+}
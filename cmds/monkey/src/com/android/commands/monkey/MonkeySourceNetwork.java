@@ -26,17 +26,20 @@ import android.view.KeyCharacterMap;
 import android.view.KeyEvent;
 import android.view.MotionEvent;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
 import java.lang.Integer;
 import java.lang.NumberFormatException;
 import java.net.InetAddress;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Map;
 import java.util.LinkedList;
 import java.util.List;
@@ -510,6 +513,10 @@ public class MonkeySourceNetwork implements MonkeyEventSource {
     private static final String QUIT = "quit";
     // DONE command
     private static final String DONE = "done";
+    // BATCH command, followed by the number of commands in the batch
+    private static final String BATCH = "batch";
+    // DEFERRETURN command, its reply waits for an event
+    private static final String DEFERRETURN = "deferreturn";
 
     // command response strings
     private static final String OK_STR = "OK";
@@ -587,12 +594,42 @@ public class MonkeySourceNetwork implements MonkeyEventSource {
 
     private final CommandQueueImpl commandQueue = new CommandQueueImpl(); //MonkeySourceNetwork持有的CommandQueueImpl对象，用于在队列中保存作为事件的MonkeyEvent对象
 
-    private BufferedReader input; //MonkeySourceNetwork对象持有的BufferedReader对象，用于从磁盘或者键盘读取二进制字节流
-    private PrintWriter output;
-    private boolean started = false; //表示监听端口是否开始，默认值为没有开始
+    // size of the per-client buffers, they grow when a line or the pending replies don't fit
+    private static final int CLIENT_BUFFER_SIZE = 8 * 1024;
 
-    private ServerSocket serverSocket; //持有的ServerSocket
-    private Socket clientSocket; //Socket对象，表示客户端进程
+    // a client with this much unsent output is not served until the client reads some of it
+    private static final int MAX_PENDING_OUTPUT = 1024 * 1024;
+
+    // how long the last replies to a client that is leaving may take to be written
+    private static final long DRAIN_TIMEOUT_MS = 10 * 1000;
+
+    /**
+     * A connected client. Lines are read into {@code in} as they arrive and split into
+     * {@code lines}, replies are collected in {@code out} and written when the client has
+     * no complete command left, so pipelined commands get their replies in one write.
+     * 每个客户端连接各自的输入、输出缓冲区
+     */
+    private static class Client {
+        final SocketChannel channel;
+        final SelectionKey key;
+        ByteBuffer in = ByteBuffer.allocate(CLIENT_BUFFER_SIZE); //未读完的行
+        ByteBuffer out = ByteBuffer.allocate(CLIENT_BUFFER_SIZE); //还没有写出的回复
+        final Queue<String> lines = new LinkedList<String>(); //已读取、尚未处理的命令
+        boolean eof; //客户端已经关闭了连接
+        int batchSize; //正在等待的批量命令的数量，0表示没有
+
+        Client(SocketChannel channel, SelectionKey key) {
+            this.channel = channel;
+            this.key = key;
+        }
+    }
+
+    private final Selector selector; //监听所有连接的Selector
+    private final ServerSocketChannel serverChannel;
+    private final ArrayList<Client> clients = new ArrayList<Client>();
+    private int nextClient; //轮流处理每个客户端的命令
+    private Client currentClient; //正在处理的命令来自哪个客户端，回复写给它
+    private Client deferredClient; //延迟返回的命令来自哪个客户端
 
     /**
      *
@@ -602,44 +639,227 @@ public class MonkeySourceNetwork implements MonkeyEventSource {
     public MonkeySourceNetwork(int port) throws IOException {
         // Only bind this to local host.  This means that you can only
         // talk to the monkey locally, or though adb port forwarding. //只能绑定本地主机的某个端口，两种使用方法，monkey在本地，或者通过adb的端口转发
-        serverSocket = new ServerSocket(port,
-                                        0, // default backlog
-                                        InetAddress.getLocalHost()); //创建ServerSocket对象，监听在本地主机的某个端口上，作为服务端，正常情况下，监听的线程，会再创建一个新的线程与客户端进程通信，服务端当前主进程则继续监听端口，当然这些都是内核的能力
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.socket().bind(new InetSocketAddress(InetAddress.getLocalHost(), port));
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
     }
 
-
     /**
-     * Start a network server listening on the specified port.  The
-     * network protocol is a line oriented protocol, where each line
-     * is a different command that can be run. //开始监听在指定的端口中，这个网络协议是命令行中的规定的协议，每行内容代表不同的命令，然后就可以运行了
-     *
-     * @param port the port to listen on 表示需要进程监听的端口
+     * Accepts a pending connection. The network protocol is a line oriented protocol,
+     * where each line is a different command that can be run. Any number of clients can
+     * be connected, their commands are run in turn.
      */
-    private void startServer() throws IOException {
-        clientSocket = serverSocket.accept(); //调用ServerSocket的accept（）方法，可以获得一个Socket对象，注意此处为线程会被阻塞，直到获得一个客户端的连接
+    private void acceptClient() throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
         // At this point, we have a client connected.
         // Attach the accessibility listeners so that we can start receiving
         // view events. Do this before wake so we can catch the wake event
         // if possible.
-        MonkeySourceNetworkViews.setup(); //初始化AccessibilityManagerService服务，只有在客户端连接成功后，才会去再去做AccessibilityManagerService的连接
+        if (clients.isEmpty()) {
+            MonkeySourceNetworkViews.setup(); //第一个客户端连接后，才会去做AccessibilityManagerService的连接
+        }
         // Wake the device up in preparation for doing some commands.
         wake(); //唤醒手机
 
-        input = new BufferedReader(new InputStreamReader(clientSocket.getInputStream())); //从Socket的客户端获取二进制字节流，再将二进制字节流转化为字符流，在内存中即可读取
-        // auto-flush
-        output = new PrintWriter(clientSocket.getOutputStream(), true); //将clientSocket的输出字节流全部添加到打印输出流
+        SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+        Client client = new Client(channel, key);
+        key.attach(client);
+        clients.add(client);
+    }
+
+    /**
+     * Disconnects a client after writing its pending replies. The accessibility listeners are
+     * removed once the last client is gone.
+     */
+    private void closeClient(Client client) throws IOException {
+        drainClient(client);
+        client.key.cancel();
+        client.channel.close();
+        clients.remove(client);
+        if (deferredClient == client) {
+            deferredClient = null;
+        }
+        if (clients.isEmpty()) {
+            MonkeySourceNetworkViews.teardown();
+        }
+    }
+
+    /**
+     * Reads whatever the client has sent and splits it into lines. A client whose
+     * connection fails is disconnected, the other clients are not affected.
+     */
+    private void readClient(Client client) throws IOException {
+        while (true) {
+            if (!client.in.hasRemaining()) {
+                client.in = grow(client.in, client.in.capacity() * 2); //一行比缓冲区还长
+            }
+            int read;
+            try {
+                read = client.channel.read(client.in);
+            } catch (IOException e) {
+                // e.g. reset by the peer, nothing can reach it any more
+                Log.d(TAG, "Connection dropped: " + e.getMessage());
+                client.lines.clear();
+                client.out.clear();
+                closeClient(client);
+                return;
+            }
+            if (read < 0) {
+                client.eof = true;
+                client.key.interestOps(client.key.interestOps() & ~SelectionKey.OP_READ);
+                break;
+            }
+            if (read == 0) {
+                break;
+            }
+        }
+
+        ByteBuffer in = client.in;
+        byte[] data = in.array();
+        int end = in.position();
+        int start = 0;
+        for (int i = 0; i < end; i++) {
+            if (data[i] == '\n') {
+                int len = i - start;
+                if (len > 0 && data[i - 1] == '\r') {
+                    len--;
+                }
+                client.lines.offer(new String(data, start, len, StandardCharsets.UTF_8));
+                start = i + 1;
+            }
+        }
+        if (client.eof && start < end) {
+            // the last line wasn't terminated
+            client.lines.offer(new String(data, start, end - start, StandardCharsets.UTF_8));
+            start = end;
+        }
+        in.flip();
+        in.position(start);
+        in.compact();
     }
 
     /**
-     * Stop the server from running so it can reconnect a new client.
-     * 如果需要新的客户端重新链接，则需要停止服务端
+     * Writes as much of the pending replies of a client as the socket takes without
+     * blocking, and waits for the socket to become writable if anything is left.
      */
-    private void stopServer() throws IOException {
-        clientSocket.close();
-        MonkeySourceNetworkViews.teardown();
-        input.close();
-        output.close();
-        started = false;
+    private void flushClient(Client client) throws IOException {
+        ByteBuffer out = client.out;
+        if (out.position() == 0 || !client.channel.isOpen()) {
+            return;
+        }
+        out.flip();
+        try {
+            client.channel.write(out);
+        } catch (IOException e) {
+            Log.d(TAG, "Dropping replies: " + e.getMessage());
+            out.position(out.limit());
+        }
+        out.compact();
+        if (client.key.isValid()) {
+            int ops = client.key.interestOps();
+            client.key.interestOps(out.position() > 0 ? ops | SelectionKey.OP_WRITE
+                    : ops & ~SelectionKey.OP_WRITE);
+        }
+    }
+
+    private void flushClients() throws IOException {
+        for (int i = 0; i < clients.size(); i++) {
+            flushClient(clients.get(i));
+        }
+    }
+
+    /**
+     * Writes all pending replies of a client, waiting for the socket to take them, before
+     * the client is disconnected or the monkey quits. Gives up after
+     * {@link #DRAIN_TIMEOUT_MS} if the client stops reading.
+     * 断开连接或退出之前，把待发送的回复全部写出
+     */
+    private void drainClient(Client client) throws IOException {
+        ByteBuffer out = client.out;
+        if (out.position() == 0 || !client.channel.isOpen()) {
+            return;
+        }
+        out.flip();
+        Selector writable = Selector.open(); //通道仍注册在主Selector上，不能切换为阻塞模式
+        try {
+            client.channel.register(writable, SelectionKey.OP_WRITE);
+            long deadline = SystemClock.uptimeMillis() + DRAIN_TIMEOUT_MS;
+            while (out.hasRemaining()) {
+                if (client.channel.write(out) > 0) {
+                    continue;
+                }
+                long left = deadline - SystemClock.uptimeMillis();
+                if (left <= 0) {
+                    Log.d(TAG, "Dropping replies: client is not reading");
+                    break;
+                }
+                writable.select(left);
+                writable.selectedKeys().clear();
+            }
+        } catch (IOException e) {
+            Log.d(TAG, "Dropping replies: " + e.getMessage());
+        } finally {
+            writable.close();
+            out.clear();
+        }
+    }
+
+    private static ByteBuffer grow(ByteBuffer buffer, int capacity) {
+        ByteBuffer grown = ByteBuffer.allocate(capacity);
+        buffer.flip();
+        grown.put(buffer);
+        return grown;
+    }
+
+    /**
+     * Picks the next client with a command to run, going around all clients in turn.
+     */
+    private Client nextClientWithCommand() {
+        for (int i = 0; i < clients.size(); i++) {
+            Client client = clients.get((nextClient + i) % clients.size());
+            boolean ready = client.batchSize > 0
+                    ? client.lines.size() >= client.batchSize || client.eof //整批命令都收到后再处理
+                    : !client.lines.isEmpty() || client.eof;
+            if (ready && (client.out.position() < MAX_PENDING_OUTPUT || client.eof)) {
+                nextClient = (nextClient + i + 1) % clients.size();
+                return client;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Waits for connections, commands or writable sockets and handles them.
+     */
+    private void waitForClients() throws IOException {
+        flushClients();
+        selector.select();
+        Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+        while (it.hasNext()) {
+            SelectionKey key = it.next();
+            it.remove();
+            if (!key.isValid()) {
+                continue;
+            }
+            if (key.isAcceptable()) {
+                acceptClient();
+                continue;
+            }
+            Client client = (Client) key.attachment();
+            if (key.isReadable()) {
+                readClient(client);
+            }
+            if (key.isValid() && key.isWritable()) {
+                flushClient(client);
+            }
+        }
     }
 
     /**
@@ -700,15 +920,68 @@ public class MonkeySourceNetwork implements MonkeyEventSource {
      * @param commandLine the full command line given. 完整的由Socket Client传过来的一整行
      */
     private void translateCommand(String commandLine) {
+        MonkeyCommandReturn ret = runCommand(commandLine);
+        if (ret != null) {
+            handleReturn(ret); //命令解析结果对象传入到handleReturn（）方法中，主要是在控制台输出，别的没干啥……
+        }
+    }
+
+    /**
+     * Translates a command line into events in the command queue without replying.
+     *
+     * @param commandLine the full command line given.
+     * @return what happened, or null if the command is not known
+     */
+    private MonkeyCommandReturn runCommand(String commandLine) {
         Log.d(TAG, "translateCommand: " + commandLine); //向控制台打印即将要的解析命令
         List<String> parts = commandLineSplit(commandLine); //调用commandLineSplit（）方法，将一行命令分隔到一个线性表中
         if (parts.size() > 0) { //如果取得的命令行，有多个元素组成
             MonkeyCommand command = COMMAND_MAP.get(parts.get(0)); //取出来命令行中的第一个命令，然后去Map查找到对应的MonkeyCommand对象
             if (command != null) { //找到，说明支持该命令
-                MonkeyCommandReturn ret = command.translateCommand(parts, commandQueue); //调用对应命令的translateCommand，并将表示整行命令行参数的list，和一个保存命令的队列对象传入
-                handleReturn(ret); //命令解析结果对象传入到handleReturn（）方法中，主要是在控制台输出，别的没干啥……
+                return command.translateCommand(parts, commandQueue); //调用对应命令的translateCommand，并将表示整行命令行参数的list，和一个保存命令的队列对象传入
             }
         }
+        return null;
+    }
+
+    /**
+     * Runs the commands of a batch. All of them are translated before any of their events
+     * is injected, and the client gets a single reply: OK with the number of commands, or
+     * ERROR with the number of failed commands and the first failure.
+     * 批量命令：一次性解析N条命令，只回复一行结果
+     */
+    private void runBatch(Client client) {
+        int count = Math.min(client.batchSize, client.lines.size());
+        client.batchSize = 0;
+        int failed = 0;
+        String firstFailure = null;
+        for (int i = 1; i <= count; i++) {
+            String command = client.lines.poll();
+            if (command.startsWith("#")) {
+                continue;
+            }
+            MonkeyCommandReturn ret;
+            if (DONE.equals(command) || QUIT.equals(command) || command.startsWith(BATCH)
+                    || command.startsWith(DEFERRETURN)) { //批量命令只有一行回复，不能延迟返回
+                ret = new MonkeyCommandReturn(false, "not allowed in a batch");
+            } else {
+                ret = runCommand(command);
+                if (ret == null) {
+                    ret = new MonkeyCommandReturn(false, "unknown command");
+                }
+            }
+            if (!ret.wasSuccessful()) {
+                if (failed++ == 0) {
+                    firstFailure = i + " (" + command + ")"
+                            + (ret.hasMessage() ? ": " + ret.getMessage() : "");
+                }
+            }
+        }
+        if (failed == 0) {
+            returnOk(Integer.toString(count));
+        } else {
+            returnError(failed + "/" + count + " failed, first " + firstFailure);
+        }
     }
 
     /**
@@ -733,16 +1006,6 @@ public class MonkeySourceNetwork implements MonkeyEventSource {
 
 
     public MonkeyEvent getNextEvent() {
-        if (!started) { //第一次获取事件时，才会做等待一个客户端的连接
-            try {
-                startServer(); //开始进入等待客户端的连接，注意里面有阻塞方法的调用
-            } catch (IOException e) {
-                Log.e(TAG, "Got IOException from server", e);
-                return null;
-            }
-            started = true; //标志位标注只有第一次会进入等待客户端连接，看来只能连接一个客户端进程
-        }
-
         // Now, get the next command.  This call may block, but that's OK
         try {
             while (true) { //进入循环获取事件（只有在获取到事件、
@@ -765,11 +1028,30 @@ public class MonkeySourceNetwork implements MonkeyEventSource {
                     Log.d(TAG, "Waiting for event");
                     MonkeyCommandReturn ret = deferredReturn.waitForEvent();
                     deferredReturn = null;
-                    handleReturn(ret);
+                    currentClient = deferredClient;
+                    deferredClient = null;
+                    if (currentClient != null) {
+                        handleReturn(ret);
+                    }
+                }
+
+                Client client = nextClientWithCommand();
+                if (client == null) {
+                    waitForClients(); //没有可以处理的命令，等待客户端连接或者发送命令
+                    continue;
+                }
+                currentClient = client;
+
+                if (client.batchSize > 0) {
+                    runBatch(client);
+                    if (client.lines.isEmpty()) {
+                        flushClient(client);
+                    }
+                    continue;
                 }
 
-                String command = input.readLine(); //从输入字符流中读取一行（这行命令是从Socket 客户端发过来的）
-                if (command == null) { //如果没有从输入字节流中获取到任何的命令，理论上客户端不发送命令的话，这里是不是应该是空的字符串?难道为null的时候真的是客户端断开了吗？
+                String command = client.lines.poll(); //取出客户端发过来的下一行命令
+                if (command == null) { //客户端已经断开，且命令都已处理完毕
                     Log.d(TAG, "Connection dropped."); //说明连接断开了
                     // Treat this exactly the same as if the user had
                     // ended the session cleanly with a done commant.
@@ -778,9 +1060,9 @@ public class MonkeySourceNetwork implements MonkeyEventSource {
 
                 //如果命令中，包含done
                 if (DONE.equals(command)) {
-                    // stop the server so it can accept new connections
+                    // disconnect this client, others can keep sending commands
                     try {
-                        stopServer(); //停止客户端的连接，这样就能和一个新的客户端建立Socket连接了……
+                        closeClient(client); //断开这个客户端的连接，其它客户端不受影响
                     } catch (IOException e) {
                         Log.e(TAG, "Got IOException shutting down!", e);
                         return null; //针对发生IO异常的情况，这里返回null……整个方法返回null，说明没有获取到事件
@@ -796,6 +1078,9 @@ public class MonkeySourceNetwork implements MonkeyEventSource {
                     Log.d(TAG, "Quit requested");
                     // let the host know the command ran OK
                     returnOk(); //向控制输出一行
+                    for (int i = 0; i < clients.size(); i++) {
+                        drainClient(clients.get(i)); //退出前把所有客户端的回复写完
+                    }
                     return null; //返回值为null，说明没有获取到事件
                 }
 
@@ -808,9 +1093,29 @@ public class MonkeySourceNetwork implements MonkeyEventSource {
                     continue;
                 }
 
+                if (command.startsWith(BATCH + " ")) {
+                    try {
+                        client.batchSize = Integer.parseInt(command.substring(BATCH.length() + 1)
+                                .trim());
+                    } catch (NumberFormatException e) {
+                        client.batchSize = -1;
+                    }
+                    if (client.batchSize <= 0) {
+                        client.batchSize = 0;
+                        returnError("Invalid batch size");
+                    }
+                    continue;
+                }
+
                 // Translate the command line.  This will handle returning error/ok to the user
                 // 解析socket client传过来的一行指令，除了其他已经处理过的done、quit指令
                 translateCommand(command);
+                if (deferredReturn != null && deferredClient == null) {
+                    deferredClient = client; //延迟的结果要回复给发送命令的客户端
+                }
+                if (client.lines.isEmpty()) {
+                    flushClient(client); //客户端在等待回复，批量发送的命令则一起回复
+                }
             }
         } catch (IOException e) {
             Log.e(TAG, "Exception: ", e);
@@ -823,7 +1128,7 @@ public class MonkeySourceNetwork implements MonkeyEventSource {
      * 向用户返回错误（标准输出流）
      */
     private void returnError() {
-        output.println(ERROR_STR);
+        reply(ERROR_STR);
     }
 
     /**
@@ -832,16 +1137,14 @@ public class MonkeySourceNetwork implements MonkeyEventSource {
      * @param msg the error message to include
      */
     private void returnError(String msg) {
-        output.print(ERROR_STR);
-        output.print(":");
-        output.println(msg);
+        reply(ERROR_STR + ":" + msg);
     }
 
     /**
      * Returns OK to the user.
      */
     private void returnOk() {
-        output.println(OK_STR);
+        reply(OK_STR);
     }
 
     /**
@@ -850,9 +1153,21 @@ public class MonkeySourceNetwork implements MonkeyEventSource {
      * @param returnValue the value to return from this command.
      */
     private void returnOk(String returnValue) {
-        output.print(OK_STR); //打印OK_STR
-        output.print(":"); //打印：
-        output.println(returnValue); //打印指定的信息
+        reply(OK_STR + ":" + returnValue);
+    }
+
+    /**
+     * Queues a reply line to the client whose command is being run. It is written when
+     * the client has no more commands to run, or before the monkey waits for clients.
+     */
+    private void reply(String line) {
+        Client client = currentClient;
+        byte[] bytes = (line + "\n").getBytes(StandardCharsets.UTF_8);
+        if (client.out.remaining() < bytes.length) {
+            client.out = grow(client.out,
+                    Math.max(client.out.capacity() * 2, client.out.position() + bytes.length));
+        }
+        client.out.put(bytes);
     }
 
     public void setVerbose(int verbose) {
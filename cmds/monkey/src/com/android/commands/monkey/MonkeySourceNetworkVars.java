@@ -168,6 +168,28 @@ public class MonkeySourceNetworkVars {
                     return Integer.toString(MonkeySourceNetwork.MONKEY_NETWORK_VERSION); //还存储着当前MonkeySourceNetwork的版本
                 }
             });
+
+        // injection metrics
+        VAR_MAP.put("monkey.metrics", new VarGetter() {
+                public String get() {
+                    MonkeyMetrics metrics = MonkeyMetrics.getInstance();
+                    return metrics == null ? "" : metrics.getSummary().trim();
+                }
+            });
+        VAR_MAP.put("monkey.metrics.eps", new VarGetter() {
+                public String get() {
+                    MonkeyMetrics metrics = MonkeyMetrics.getInstance();
+                    return metrics == null ? "0" : Double.toString(metrics.getAverageRate());
+                }
+            });
+        for (final String type : MonkeyMetrics.getTypeNames()) {
+            VAR_MAP.put("monkey.metrics.latency." + type, new VarGetter() {
+                    public String get() {
+                        MonkeyMetrics metrics = MonkeyMetrics.getInstance();
+                        return metrics == null ? "" : metrics.getTypeLatency(type);
+                    }
+                });
+        }
     }
 
     /**
@@ -17,8 +17,8 @@
 package com.android.commands.monkey;
 
 import android.content.ComponentName;
+import android.graphics.Point;
 import android.graphics.PointF;
-import android.hardware.display.DisplayManagerGlobal;
 import android.os.SystemClock;
 import android.view.Display;
 import android.view.KeyCharacterMap;
@@ -26,6 +26,7 @@ import android.view.KeyEvent;
 import android.view.MotionEvent;
 import android.view.Surface;
 
+import java.util.Arrays;
 import java.util.List;
 import java.util.Random;
 
@@ -121,9 +122,18 @@ public class MonkeySourceRandom implements MonkeyEventSource {
      * values after we read any optional values.
      **/
     private float[] mFactors = new float[FACTORZ_COUNT]; //MonkeySourceRandom对象持有一个数组对象，用于保存每个事件的事件比例，不同的事件比例存储在数组不同的下标中
+    /** Running sums of the normalized factors, used when no sampler is set. */
+    private float[] mCumulativeFactors = new float[FACTORZ_COUNT];
+    /** Picks event categories, or null to walk mCumulativeFactors. */
+    private EventTypeSampler mSampler;
+
+    /** Picks the categories and app switch targets from coverage feedback, may be null. */
+    private MonkeyAdaptiveWeights mAdaptive;
+    /** Allowed keys per key category, only built when a sampler is set. */
+    private int[][] mKeyTables;
     private List<ComponentName> mMainApps; //MonkeySourceRandom对象持有的List对象，用于保存需要操作的App信息
     private int mEventCount = 0;  //total number of events generated so far //MonkeySourceRandom对象持有的事件数量，但是没有使用
-    private MonkeyEventQueue mQ; //MonkeySourceRandom对象持有的双向链表，用于存储每个事件对象（MonkeyEvent对象）
+    private MonkeyEventQueue mQ; //MonkeySourceRandom对象持有的事件队列，用于存储每个事件对象（MonkeyEvent对象）
     private Random mRandom; //MonkeySourceRandom对象持有的Random对象
     private int mVerbose = 0; //MonkeySourceRandom对象持有的日志等级
     private long mThrottle = 0; //MonkeySourceRandom对象持有的事件延迟时间，但是没有使用……大牛也会犯错……
@@ -131,6 +141,34 @@ public class MonkeySourceRandom implements MonkeyEventSource {
 
     private boolean mKeyboardOpen = false; //持有的键盘是否打开的标志位
 
+    /** Scratch points for generatePointerEvent(), reused across gestures. */
+    private final PointF mPoint1 = new PointF();
+    private final PointF mVector1 = new PointF();
+    private final PointF mPoint2 = new PointF();
+    private final PointF mVector2 = new PointF();
+
+    /** Displays that touch gestures are sent to. */
+    private int[] mDisplayIds = { Display.DEFAULT_DISPLAY };
+
+    /**
+     * Chooses the category of the next generated event.
+     * <p>
+     * Weights are the normalized FACTOR_* percentages. When a sampler is set, key events are
+     * also picked from precomputed tables of allowed keys instead of drawing again until an
+     * allowed key comes up. Either way the stream for a seed depends on the sampler in use.
+     */
+    public interface EventTypeSampler {
+        /**
+         * @param weights the weight of each category, indexed by FACTOR_*
+         */
+        void setWeights(float[] weights);
+
+        /**
+         * @return the FACTOR_* index of the next event category
+         */
+        int nextCategory(Random random);
+    }
+
     /**
      * 一个工具方法，用于返回keycode值对应的字符串
      * @param keycode keyCode值，int
@@ -182,7 +220,7 @@ public class MonkeySourceRandom implements MonkeyEventSource {
 
         mRandom = random;
         mMainApps = MainApps; //将获取到主Activity的List赋值给mMainApps
-        mQ = new MonkeyEventQueue(random, throttle, randomizeThrottle);//创建MonkeyEventQueue对象，双向链表，用于存储事件对象
+        mQ = new MonkeyEventQueue(random, throttle, randomizeThrottle);//创建MonkeyEventQueue对象，事件队列，用于存储事件对象
         mPermissionUtil = new MonkeyPermissionUtil(); //创建MonkeyPermissionUtil对象
         mPermissionUtil.setTargetSystemPackages(permissionTargetSystem); //将permissionTargetSystem值设置到MonkeyPermissionUtil对象中
     }
@@ -247,11 +285,17 @@ public class MonkeySourceRandom implements MonkeyEventSource {
             return false;
         }
 
+        if (mSampler != null) {
+            mSampler.setWeights(mFactors);
+            mKeyTables = buildKeyTables();
+            return true;
+        }
+
         // finally, normalize and convert to running sum
         float sum = 0.0f;  //这里没看懂^^^，比如touch是20，motion是10
         for (int i = 0; i < FACTORZ_COUNT; ++i) {
             sum += mFactors[i] / 100.0f; //调整为百分比值
-            mFactors[i] = sum; //这里赋值时，touch为0.2，motion则是0.3……我也是醉了，这个事件比例是不是bug？不是bug，刻意如此
+            mCumulativeFactors[i] = sum; //这里赋值时，touch为0.2，motion则是0.3……我也是醉了，这个事件比例是不是bug？不是bug，刻意如此
         }
         return true;
     }
@@ -307,6 +351,48 @@ public class MonkeySourceRandom implements MonkeyEventSource {
         mFactors[index] = v;
     }
 
+    /**
+     * Sets the displays that touch gestures are sent to. With more than one display each
+     * gesture picks one at random.
+     */
+    public void setDisplayIds(int[] displayIds) {
+        mDisplayIds = displayIds;
+    }
+
+    /**
+     * Takes the permissions to toggle from a startup snapshot, or saves them into it.
+     */
+    public void setStartupSnapshot(MonkeyStartupSnapshot snapshot) {
+        mPermissionUtil.setStartupSnapshot(snapshot);
+    }
+
+    /**
+     * Sets the sampler for event categories. Must be called before validate(). Without a
+     * sampler the original cumulative walk is used, which keeps old seeds reproducible.
+     */
+    public void setEventTypeSampler(EventTypeSampler sampler) {
+        mSampler = sampler;
+    }
+
+    /**
+     * Weights the categories and the app switch targets by the new activities they reach.
+     * Replaces any other sampler; must be called before generateActivity() and validate().
+     */
+    public void setAdaptiveWeights(MonkeyAdaptiveWeights adaptive) {
+        mAdaptive = adaptive;
+        mSampler = adaptive;
+    }
+
+    /**
+     * @return the main app for an app switch to start
+     */
+    private ComponentName nextApp() {
+        if (mAdaptive != null) {
+            return mMainApps.get(mAdaptive.nextApp(mRandom));
+        }
+        return mMainApps.get(mRandom.nextInt(mMainApps.size()));
+    }
+
     /**
      * Generates a random motion event. This method counts a down, move, and up as multiple events.
      *
@@ -323,18 +409,27 @@ public class MonkeySourceRandom implements MonkeyEventSource {
      *
      */
     private void generatePointerEvent(Random random, int gesture) {
-        Display display = DisplayManagerGlobal.getInstance().getRealDisplay(Display.DEFAULT_DISPLAY); //Display对象
+        int displayId = Display.DEFAULT_DISPLAY;
+        if (mDisplayIds.length > 1) { //只有指定了多个屏幕时才随机选择，保证单屏幕时随机序列不变
+            displayId = mDisplayIds[random.nextInt(mDisplayIds.length)];
+        }
+        Point display = MonkeyDisplayCache.getSize(displayId); //屏幕的宽和高，旋转之前一直使用缓存
+        if (display == null) {
+            displayId = Display.DEFAULT_DISPLAY; // the display went away
+            display = MonkeyDisplayCache.getSize(displayId);
+        }
 
-        PointF p1 = randomPoint(random, display); //有个randomPint()方法，进去看看
-        PointF v1 = randomVector(random);
+        PointF p1 = randomPoint(random, display, mPoint1); //有个randomPint()方法，进去看看
+        PointF v1 = randomVector(random, mVector1);
 
         long downAt = SystemClock.uptimeMillis(); //自开机以来的时间戳
 
-        mQ.addLast(new MonkeyTouchEvent(MotionEvent.ACTION_DOWN) //此处传入的按下的动作
+        mQ.addLast(MonkeyTouchEvent.obtain(MotionEvent.ACTION_DOWN) //此处传入的按下的动作
                 .setDownTime(downAt) //记录按下的时间戳
+                .setDisplayId(displayId)
                 .addPointer(0, p1.x, p1.y) //id都传0……，把获取到的x坐标与y坐标也传进去
                 .setIntermediateNote(false)); //false表示这不是一个过渡事件
-        //向双向链表中添加事件，添加一个元素，即MonkeyTouchEvent对象
+        //向事件队列中添加事件，添加一个元素，即MonkeyTouchEvent对象
 
         // sometimes we'll move during the touch
         if (gesture == GESTURE_DRAG) { //判断手势为拖拽，会走之类
@@ -342,19 +437,21 @@ public class MonkeySourceRandom implements MonkeyEventSource {
             for (int i = 0; i < count; i++) {
                 randomWalk(random, display, p1, v1);
 
-                mQ.addLast(new MonkeyTouchEvent(MotionEvent.ACTION_MOVE)
+                mQ.addLast(MonkeyTouchEvent.obtain(MotionEvent.ACTION_MOVE)
                         .setDownTime(downAt)
+                        .setDisplayId(displayId)
                         .addPointer(0, p1.x, p1.y)
                         .setIntermediateNote(true));
             }
         } else if (gesture == GESTURE_PINCH_OR_ZOOM) { //缩放手势会走这里
-            PointF p2 = randomPoint(random, display);
-            PointF v2 = randomVector(random);
+            PointF p2 = randomPoint(random, display, mPoint2);
+            PointF v2 = randomVector(random, mVector2);
 
             randomWalk(random, display, p1, v1);
-            mQ.addLast(new MonkeyTouchEvent(MotionEvent.ACTION_POINTER_DOWN
+            mQ.addLast(MonkeyTouchEvent.obtain(MotionEvent.ACTION_POINTER_DOWN
                             | (1 << MotionEvent.ACTION_POINTER_INDEX_SHIFT))
                     .setDownTime(downAt)
+                    .setDisplayId(displayId)
                     .addPointer(0, p1.x, p1.y).addPointer(1, p2.x, p2.y)
                     .setIntermediateNote(true));
 
@@ -363,24 +460,27 @@ public class MonkeySourceRandom implements MonkeyEventSource {
                 randomWalk(random, display, p1, v1);
                 randomWalk(random, display, p2, v2);
 
-                mQ.addLast(new MonkeyTouchEvent(MotionEvent.ACTION_MOVE)
+                mQ.addLast(MonkeyTouchEvent.obtain(MotionEvent.ACTION_MOVE)
                         .setDownTime(downAt)
+                        .setDisplayId(displayId)
                         .addPointer(0, p1.x, p1.y).addPointer(1, p2.x, p2.y)
                         .setIntermediateNote(true));
             }
 
             randomWalk(random, display, p1, v1);
             randomWalk(random, display, p2, v2);
-            mQ.addLast(new MonkeyTouchEvent(MotionEvent.ACTION_POINTER_UP
+            mQ.addLast(MonkeyTouchEvent.obtain(MotionEvent.ACTION_POINTER_UP
                             | (1 << MotionEvent.ACTION_POINTER_INDEX_SHIFT))
                     .setDownTime(downAt)
+                    .setDisplayId(displayId)
                     .addPointer(0, p1.x, p1.y).addPointer(1, p2.x, p2.y)
                     .setIntermediateNote(true));
         }
 
         randomWalk(random, display, p1, v1);
-        mQ.addLast(new MonkeyTouchEvent(MotionEvent.ACTION_UP)
+        mQ.addLast(MonkeyTouchEvent.obtain(MotionEvent.ACTION_UP)
                 .setDownTime(downAt) //为啥还记录的按下的时间？
+                .setDisplayId(displayId)
                 .addPointer(0, p1.x, p1.y)
                 .setIntermediateNote(false)); //最后再添加一个ACTION_UP事件，如果是点事件，则至少添加了两个元素对象到mQ中，一个ACTION_DOWN、一个ACTION_UP、并且不是过渡事件
     }
@@ -388,28 +488,33 @@ public class MonkeySourceRandom implements MonkeyEventSource {
     /**
      *
      * @param random
-     * @param display 显示对象，知道屏幕的宽和高
-     * @return 返回一个PointF对象，表示一个点？坐标在显示屏幕的坐标范围内
+     * @param display 屏幕的宽和高
+     * @param out 用于保存结果的PointF对象，会被复用
+     * @return 返回out，表示一个点，坐标在显示屏幕的坐标范围内
      */
-    private PointF randomPoint(Random random, Display display) {
-        return new PointF(random.nextInt(display.getWidth()), random.nextInt(display.getHeight())); //获取屏幕宽度与屏幕高度，在此范围随机获取各自一个值，并创建PointF对象
-
+    private PointF randomPoint(Random random, Point display, PointF out) {
+        out.x = random.nextInt(display.x); //获取屏幕宽度与屏幕高度，在此范围随机获取各自一个值
+        out.y = random.nextInt(display.y);
+        return out;
     }
 
     /**
      *
      * @param random Random对象
-     * @return 再次返回一个PointF，这次获得的点，貌似坐标比较大？都乘了50，没有使用屏幕的相关信息
+     * @param out 用于保存结果的PointF对象，会被复用
+     * @return 返回out，坐标都乘了50，没有使用屏幕的相关信息
      */
-    private PointF randomVector(Random random) {
-        return new PointF((random.nextFloat() - 0.5f) * 50, (random.nextFloat() - 0.5f) * 50);
+    private PointF randomVector(Random random, PointF out) {
+        out.x = (random.nextFloat() - 0.5f) * 50;
+        out.y = (random.nextFloat() - 0.5f) * 50;
+        return out;
     }
 
-    private void randomWalk(Random random, Display display, PointF point, PointF vector) {
+    private void randomWalk(Random random, Point display, PointF point, PointF vector) {
         point.x = (float) Math.max(Math.min(point.x + random.nextFloat() * vector.x,
-                display.getWidth()), 0);
+                display.x), 0);
         point.y = (float) Math.max(Math.min(point.y + random.nextFloat() * vector.y,
-                display.getHeight()), 0);
+                display.y), 0);
     }
 
     /**
@@ -432,7 +537,7 @@ public class MonkeySourceRandom implements MonkeyEventSource {
             int dX = random.nextInt(10) - 5; //随机范围非常克制
             int dY = random.nextInt(10) - 5;
 
-            mQ.addLast(new MonkeyTrackballEvent(MotionEvent.ACTION_MOVE) //ACTION_MOVE代表轨迹球的移动事件
+            mQ.addLast(MonkeyTrackballEvent.obtain(MotionEvent.ACTION_MOVE) //ACTION_MOVE代表轨迹球的移动事件
                     .addPointer(0, dX, dY)
                     .setIntermediateNote(i > 0));
         }
@@ -441,12 +546,12 @@ public class MonkeySourceRandom implements MonkeyEventSource {
         if (0 == random.nextInt(10)) { //只有随机到0的时候，才会构造轨迹球的点击事件
             long downAt = SystemClock.uptimeMillis(); //记录按下的时间戳
 
-            mQ.addLast(new MonkeyTrackballEvent(MotionEvent.ACTION_DOWN) //ACTION_DOWN代表轨迹球的事件下
+            mQ.addLast(MonkeyTrackballEvent.obtain(MotionEvent.ACTION_DOWN) //ACTION_DOWN代表轨迹球的事件下
                     .setDownTime(downAt)
                     .addPointer(0, 0, 0)
                     .setIntermediateNote(true));
 
-            mQ.addLast(new MonkeyTrackballEvent(MotionEvent.ACTION_UP) //ACTION_UP代表轨迹球的事件上
+            mQ.addLast(MonkeyTrackballEvent.obtain(MotionEvent.ACTION_UP) //ACTION_UP代表轨迹球的事件上
                     .setDownTime(downAt)
                     .addPointer(0, 0, 0)
                     .setIntermediateNote(false));
@@ -470,65 +575,138 @@ public class MonkeySourceRandom implements MonkeyEventSource {
      * 按照基础比例去构造不同的事件
      */
     private void generateEvents() {
-        float cls = mRandom.nextFloat(); //先通过Random对象创建一个随机的float数
-        int lastKey = 0; //用于记录最后一次的key，默认值为0
-
-        if (cls < mFactors[FACTOR_TOUCH]) { //如果随机值小于TOUCH的比例值，比如比例值是30，那么此时会走这里
-            generatePointerEvent(mRandom, GESTURE_TAP); //构造Pointer事件（点击事件）
-            return; //方法结束…说明构造事件结束…如果TOUCH比例大于MOTION的话，岂不是MOTION一辈子没有机会了？
-        } else if (cls < mFactors[FACTOR_MOTION]) { //比如这里是20，这里一辈子也没机会执行了（待定，觉得作者会对比例值做二次更新）
-            generatePointerEvent(mRandom, GESTURE_DRAG); //构建拖拽事件
-            return; //构建完毕
-        } else if (cls < mFactors[FACTOR_PINCHZOOM]) { //构建缩放事件
-            generatePointerEvent(mRandom, GESTURE_PINCH_OR_ZOOM);
-            return; //构建完毕
-        } else if (cls < mFactors[FACTOR_TRACKBALL]) { //构建轨迹球事件
-            generateTrackballEvent(mRandom);
-            return; //构建完毕
-        } else if (cls < mFactors[FACTOR_ROTATION]) { //构建旋转事件
-            generateRotationEvent(mRandom);
-            return; //构建完毕
-        } else if (cls < mFactors[FACTOR_PERMISSION]) { //构建权限事件
-            mQ.add(mPermissionUtil.generateRandomPermissionEvent(mRandom));
-            return; //构建完毕
+        int category;
+        if (mSampler != null) {
+            category = mSampler.nextCategory(mRandom);
+        } else {
+            category = cumulativeCategory(mRandom.nextFloat()); //先通过Random对象创建一个随机的float数
+        }
+
+        switch (category) {
+            case FACTOR_TOUCH:
+                generatePointerEvent(mRandom, GESTURE_TAP); //构造Pointer事件（点击事件）
+                return;
+            case FACTOR_MOTION:
+                generatePointerEvent(mRandom, GESTURE_DRAG); //构建拖拽事件
+                return;
+            case FACTOR_PINCHZOOM:
+                generatePointerEvent(mRandom, GESTURE_PINCH_OR_ZOOM); //构建缩放事件
+                return;
+            case FACTOR_TRACKBALL:
+                generateTrackballEvent(mRandom); //构建轨迹球事件
+                return;
+            case FACTOR_ROTATION:
+                generateRotationEvent(mRandom); //构建旋转事件
+                return;
+            case FACTOR_PERMISSION:
+                mQ.add(mPermissionUtil.generateRandomPermissionEvent(mRandom)); //构建权限事件
+                return;
+            case FACTOR_APPSWITCH: { //构建某个根Activity事件，注意这里不是切换单个应用哪个Activity的事件……
+                MonkeyActivityEvent e = new MonkeyActivityEvent(nextApp());
+                mQ.addLast(e);
+                return;
+            }
+            case FACTOR_FLIP: { //构建键盘事件
+                MonkeyFlipEvent e = new MonkeyFlipEvent(mKeyboardOpen);
+                mKeyboardOpen = !mKeyboardOpen;
+                mQ.addLast(e);
+                return;
+            }
         }
 
         // The remaining event categories are injected as key events
+        int lastKey = mKeyTables != null ? nextAllowedKey(category) : nextRetriedKey(category);
+
+        MonkeyKeyEvent e = MonkeyKeyEvent.obtain(KeyEvent.ACTION_DOWN, lastKey);
+        mQ.addLast(e);
+
+        e = MonkeyKeyEvent.obtain(KeyEvent.ACTION_UP, lastKey);
+        mQ.addLast(e);
+    }
+
+    /**
+     * Maps a uniform value in [0, 1) to a category by walking the running sums of the
+     * factors. Values past the last sum (rounding) fall through to FACTOR_ANYTHING.
+     */
+    private int cumulativeCategory(float cls) {
+        for (int i = 0; i < FACTORZ_COUNT; ++i) {
+            if (cls < mCumulativeFactors[i]) {
+                return i;
+            }
+        }
+        return FACTOR_ANYTHING;
+    }
+
+    /**
+     * Picks a key for a key category, drawing again until the key is allowed. This is the
+     * original behavior and is kept so that existing seeds replay the same keys.
+     */
+    private int nextRetriedKey(int category) {
         for (;;) { //一直重试是为了防止出现POWER事件、
-            if (cls < mFactors[FACTOR_NAV]) { //构建导航键事件
+            int lastKey;
+            if (category == FACTOR_NAV) { //构建导航键事件
                 lastKey = NAV_KEYS[mRandom.nextInt(NAV_KEYS.length)];
-            } else if (cls < mFactors[FACTOR_MAJORNAV]) {  //构建主要导航键事件
+            } else if (category == FACTOR_MAJORNAV) {  //构建主要导航键事件
                 lastKey = MAJOR_NAV_KEYS[mRandom.nextInt(MAJOR_NAV_KEYS.length)];
-            } else if (cls < mFactors[FACTOR_SYSOPS]) {
+            } else if (category == FACTOR_SYSOPS) {
                 lastKey = SYS_KEYS[mRandom.nextInt(SYS_KEYS.length)];
-            } else if (cls < mFactors[FACTOR_APPSWITCH]) { //构建某个根Activity事件，注意这里不是切换单个应用哪个Activity的事件……
-                MonkeyActivityEvent e = new MonkeyActivityEvent(mMainApps.get(
-                        mRandom.nextInt(mMainApps.size())));
-                mQ.addLast(e);
-                return; //构建完毕
-            } else if (cls < mFactors[FACTOR_FLIP]) { //构建键盘事件
-                MonkeyFlipEvent e = new MonkeyFlipEvent(mKeyboardOpen);
-                mKeyboardOpen = !mKeyboardOpen;
-                mQ.addLast(e);
-                return; //构建完毕
             } else {
                 lastKey = 1 + mRandom.nextInt(KeyEvent.getMaxKeyCode() - 1); //使用一个随机的KeyCode值，赋值给表示最后一个实体按键事件
             }
-
-            if (lastKey != KeyEvent.KEYCODE_POWER //如果生成的按键不是POWER、ENDCALL、SLEEP、SOFT_SLEEP，且keycode值在PHYSICAL_KEY_EXISTS标记为true，才会停止构造事件
-                    && lastKey != KeyEvent.KEYCODE_ENDCALL
-                    && lastKey != KeyEvent.KEYCODE_SLEEP
-                    && lastKey != KeyEvent.KEYCODE_SOFT_SLEEP
-                    && PHYSICAL_KEY_EXISTS[lastKey]) {
-                break;
+            if (isKeyAllowed(lastKey)) {
+                return lastKey;
             }
         }
+    }
 
-        MonkeyKeyEvent e = new MonkeyKeyEvent(KeyEvent.ACTION_DOWN, lastKey);
-        mQ.addLast(e);
+    /**
+     * Picks a key for a key category from the precomputed tables of allowed keys, so it
+     * never has to draw again.
+     */
+    private int nextAllowedKey(int category) {
+        int[] keys = mKeyTables[category];
+        if (keys == null || keys.length == 0) {
+            keys = mKeyTables[FACTOR_ANYTHING];
+        }
+        return keys[mRandom.nextInt(keys.length)];
+    }
 
-        e = new MonkeyKeyEvent(KeyEvent.ACTION_UP, lastKey);
-        mQ.addLast(e);
+    /**
+     * 如果按键不是POWER、ENDCALL、SLEEP、SOFT_SLEEP，且keycode值在PHYSICAL_KEY_EXISTS标记为true，才可以使用
+     */
+    private static boolean isKeyAllowed(int keyCode) {
+        return keyCode != KeyEvent.KEYCODE_POWER
+                && keyCode != KeyEvent.KEYCODE_ENDCALL
+                && keyCode != KeyEvent.KEYCODE_SLEEP
+                && keyCode != KeyEvent.KEYCODE_SOFT_SLEEP
+                && PHYSICAL_KEY_EXISTS[keyCode];
+    }
+
+    private static int[] allowedKeys(int[] keys) {
+        int count = 0;
+        int[] allowed = new int[keys.length];
+        for (int key : keys) {
+            if (isKeyAllowed(key)) {
+                allowed[count++] = key;
+            }
+        }
+        return Arrays.copyOf(allowed, count);
+    }
+
+    /**
+     * Builds the tables of allowed keys for each key category, indexed by FACTOR_*.
+     */
+    private static int[][] buildKeyTables() {
+        int[] anything = new int[KeyEvent.getMaxKeyCode() - 1];
+        for (int i = 0; i < anything.length; i++) {
+            anything[i] = i + 1; // same range as the retrying picker: 1 .. max - 1
+        }
+        int[][] tables = new int[FACTORZ_COUNT][];
+        tables[FACTOR_NAV] = allowedKeys(NAV_KEYS);
+        tables[FACTOR_MAJORNAV] = allowedKeys(MAJOR_NAV_KEYS);
+        tables[FACTOR_SYSOPS] = allowedKeys(SYS_KEYS);
+        tables[FACTOR_ANYTHING] = allowedKeys(anything);
+        return tables;
     }
 
     /**
@@ -537,6 +715,12 @@ public class MonkeySourceRandom implements MonkeyEventSource {
      */
     public boolean validate() {
         boolean ret = true;
+        for (int displayId : mDisplayIds) {
+            if (MonkeyDisplayCache.getSize(displayId) == null) {
+                Logger.err.println("** Error: Display " + displayId + " does not exist");
+                return false;
+            }
+        }
         // only populate & dump permissions if enabled
         if (mFactors[FACTOR_PERMISSION] != 0.0f) { //如果设置了PERMISSION事件才会走这里，注意这个FACTOR_PERMISSION，在MonkeySourceRandom中默认值为0
             ret &= mPermissionUtil.populatePermissionsMapping();
@@ -555,23 +739,37 @@ public class MonkeySourceRandom implements MonkeyEventSource {
      * generate an activity event 生成activity事件
      */
     public void generateActivity() {
-        MonkeyActivityEvent e = new MonkeyActivityEvent(mMainApps.get(
-                mRandom.nextInt(mMainApps.size()))); //MonkeySourceRandom对象持有的可用Activity的List对象中，随机选择一个ComponentName，创建一个MonkeyActivityEvent对象，随机范围是主Activity的数量，要是1个，那就是1个……
-        mQ.addLast(e); //将事件添加到双向链表的尾部
+        MonkeyActivityEvent e = new MonkeyActivityEvent(nextApp()); //MonkeySourceRandom对象持有的可用Activity的List对象中，随机选择一个ComponentName，创建一个MonkeyActivityEvent对象，随机范围是主Activity的数量，要是1个，那就是1个……
+        mQ.addLast(e); //将事件添加到事件队列的尾部
+    }
+
+    /**
+     * @return true if no generated events are queued, so that a checkpoint taken now
+     *         resumes with the next generated event
+     */
+    boolean canCheckpoint() {
+        return mQ.isEmpty();
+    }
+
+    void saveState(MonkeyCheckpoint cp) {
+        cp.mSource = MonkeyCheckpoint.SOURCE_RANDOM;
+        cp.mKeyboardOpen = mKeyboardOpen;
+    }
+
+    void restoreState(MonkeyCheckpoint cp) {
+        mKeyboardOpen = cp.mKeyboardOpen; //恢复键盘开关状态，下一个翻转事件与原来的事件流一致
     }
 
     /**
      * monkey主线程会一直调用该方法,获取MonkeyEvent对象
      * if the queue is empty, we generate events first 如果双联链表表示的队列是空的，就构造一个事件……
-     * @return the first event in the queue 返回双向链表中的第一个事件
+     * @return the first event in the queue 返回事件队列中的第一个事件
      */
     public MonkeyEvent getNextEvent() {
-        if (mQ.isEmpty()) { //当双向链表中没有元素时，说明没有可用的事件
+        if (mQ.isEmpty()) { //当事件队列中没有元素时，说明没有可用的事件
             generateEvents(); //构造事件，可能构造一个，也可能构造多个，构造的事件对象会添加到mQ中
         }
         mEventCount++; //MonkeySourceRandom对象持有的事件数量增加1，表示已经提取出的事件数量
-        MonkeyEvent e = mQ.getFirst(); //获取双向链表中的第一个元素，赋值给局部变量e保存
-        mQ.removeFirst(); //删除掉该事件（第一个元素）
-        return e; //向调用者返回MonkeyEvent对象
+        return mQ.removeFirst(); //删除并返回队列中的第一个事件
     }
 }
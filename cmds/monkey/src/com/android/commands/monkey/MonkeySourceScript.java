@@ -17,6 +17,7 @@
 package com.android.commands.monkey;
 
 import android.content.ComponentName;
+import android.content.pm.PermissionInfo;
 import android.os.SystemClock;
 import android.view.KeyEvent;
 import android.view.MotionEvent;
@@ -27,8 +28,11 @@ import java.io.DataInputStream;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * monkey event queue. It takes a script to produce events sample script format:
@@ -43,6 +47,8 @@ import java.util.Random;
  * captureDispatchFlip(true)
  * ...
  * </pre>
+ * The script may also be a binary file written by {@link MonkeyScriptCompiler}, which is
+ * memory mapped and replayed without parsing key and motion lines.
  * MonkeySourceScript is a MonkeyEventSource
  * 从脚本文件中获取事件，写的很好
  */
@@ -55,11 +61,11 @@ public class MonkeySourceScript implements MonkeyEventSource {
 
     private String mScriptFileName; //脚本文件的名称
 
-    private MonkeyEventQueue mQ; //双向链表对象
+    private MonkeyEventQueue mQ; //事件队列对象
 
-    private static final String HEADER_COUNT = "count=";
+    static final String HEADER_COUNT = "count=";
 
-    private static final String HEADER_SPEED = "speed=";
+    static final String HEADER_SPEED = "speed=";
 
     private long mLastRecordedDownTimeKey = 0;
 
@@ -69,30 +75,40 @@ public class MonkeySourceScript implements MonkeyEventSource {
 
     private long mLastExportDownTimeMotion = 0;
 
-    private long mLastExportEventTime = -1;
+    // throttle for the next queued event, set by a Throttle line, -1 for none
+    private long mPendingThrottle = -1;
 
-    private long mLastRecordedEventTime = -1;
+    // lines read after the header in this pass through a text script
+    private int mLinesRead = 0;
+
+    // where to continue when the script is next opened, set by restoreState()
+    private MonkeyCheckpoint mResumeState;
 
     // process scripts in line-by-line mode (true) or batch processing mode (false)
     private boolean mReadScriptLineByLine = false;
 
     private static final boolean THIS_DEBUG = false;
 
-    // a parameter that compensates the difference of real elapsed time and
-    // time in theory
-    private static final long SLEEP_COMPENSATE_DIFF = 16;
-
     // if this header is present, scripts are read and processed in line-by-line mode
-    private static final String HEADER_LINE_BY_LINE = "linebyline";
+    static final String HEADER_LINE_BY_LINE = "linebyline";
 
     // maximum number of events that we read at one time
     private static final int MAX_ONE_TIME_READS = 100;
 
     // event key word in the capture log
+    // prefix of the command names written by the capture tool, optional
+    private static final String CAPTURE_PREFIX = "capture";
+
     private static final String EVENT_KEYWORD_POINTER = "DispatchPointer"; //规定的事件名
 
     private static final String EVENT_KEYWORD_TRACKBALL = "DispatchTrackball";
 
+    private static final String EVENT_KEYWORD_MOTION = "DispatchMotion";
+
+    private static final String EVENT_KEYWORD_THROTTLE = "Throttle";
+
+    private static final String EVENT_KEYWORD_PERMISSION = "TogglePermission";
+
     private static final String EVENT_KEYWORD_ROTATION = "RotateScreen";
 
     private static final String EVENT_KEYWORD_KEY = "DispatchKey";
@@ -139,7 +155,7 @@ public class MonkeySourceScript implements MonkeyEventSource {
     private static final String EVENT_KEYWORD_END_APP_FRAMERATE_CAPTURE = "EndCaptureAppFramerate";
 
     // a line at the end of the header
-    private static final String STARTING_DATA_LINE = "start data >>";
+    static final String STARTING_DATA_LINE = "start data >>";
 
     private boolean mFileOpened = false;
 
@@ -160,9 +176,13 @@ public class MonkeySourceScript implements MonkeyEventSource {
 
     private float mLastY[] = new float[2];
 
-    private long mScriptStartTime = -1;
+    // paces recorded key and motion events, created once the speed is known
+    private MonkeyReplayScheduler mScheduler;
+
+    // set while replaying a script from its shared program, null when streaming the text
+    private MonkeyScriptProgram mProgram;
 
-    private long mMonkeyStartTime = -1;
+    private int mCompiledRecordIndex; //下一个要读取的记录
 
     /**
      * Creates a MonkeySourceScript instance.
@@ -174,7 +194,7 @@ public class MonkeySourceScript implements MonkeyEventSource {
     public MonkeySourceScript(Random random, String filename, long throttle,
                               boolean randomizeThrottle, long profileWaitTime, long deviceSleepTime) {
         mScriptFileName = filename; //由持有的mScriptFileName保存脚本文件名
-        mQ = new MonkeyEventQueue(random, throttle, randomizeThrottle); //创建双向链表对象
+        mQ = new MonkeyEventQueue(random, throttle, randomizeThrottle); //创建事件队列对象
         mProfileWaitTime = profileWaitTime; //加载文件时的等待时间
         mDeviceSleepTime = deviceSleepTime; //设备的休眠时间
     }
@@ -186,10 +206,8 @@ public class MonkeySourceScript implements MonkeyEventSource {
     private void resetValue() {
         mLastRecordedDownTimeKey = 0;
         mLastRecordedDownTimeMotion = 0;
-        mLastRecordedEventTime = -1;
         mLastExportDownTimeKey = 0;
         mLastExportDownTimeMotion = 0;
-        mLastExportEventTime = -1;
     }
 
     /**
@@ -201,6 +219,15 @@ public class MonkeySourceScript implements MonkeyEventSource {
     private boolean readHeader() throws IOException {
         mFileOpened = true; //标记文件已经被打开
 
+        mLinesRead = 0;
+        mProgram = MonkeyScriptProgram.get(mScriptFileName); //只在第一次打开时解析脚本
+        if (mProgram != null) {
+            mReadScriptLineByLine = mProgram.isLineByLine();
+            mEventCountInScript = mProgram.getEventCount();
+            mSpeed = mProgram.getSpeed();
+            mCompiledRecordIndex = 0;
+            return true;
+        }
         mFStream = new FileInputStream(mScriptFileName); //创建文件输入流对象（读入到内存中操作）
         mInputStream = new DataInputStream(mFStream); //二进制输入字节流与文件输入流结合！
         mBufferedReader = new BufferedReader(new InputStreamReader(mInputStream)); //内存缓冲区，需要传入一个二进制字节流转化为字符流（使用编码）
@@ -237,6 +264,66 @@ public class MonkeySourceScript implements MonkeyEventSource {
         return false; //找遍整个脚本文件，都没有匹配的内容，最后返回false，说明文件的头部几行不符合要求
     }
 
+    /**
+     * Reads up to a number of records of the program and queues their events. Key and
+     * motion records are read straight from the program buffer, other records go to the
+     * handler parsed when the program was loaded.
+     * 直接从共享的程序中读取定长记录，不需要再解析字符串
+     *
+     * @return The number of records read.
+     */
+    private int readCompiledRecords(int max) {
+        final ByteBuffer buffer = mProgram.getBuffer();
+        final int count = mProgram.getRecordCount();
+        int read = 0;
+        while (read < max && mCompiledRecordIndex < count) {
+            int base = MonkeyScriptCompiler.HEADER_SIZE
+                    + mCompiledRecordIndex * MonkeyScriptCompiler.RECORD_SIZE;
+            mCompiledRecordIndex++;
+            read++;
+
+            byte op = buffer.get(base);
+            int action = buffer.getInt(base + MonkeyScriptCompiler.RECORD_OFFSET_ACTION);
+            if (op == MonkeyScriptCompiler.OP_LINE) {
+                ScriptCommandHandler handler = mProgram.getHandler(action);
+                if (handler != null) {
+                    handler.handle(this, mProgram.getArgs(action));
+                }
+                continue;
+            }
+
+            long downTime = buffer.getLong(base + MonkeyScriptCompiler.RECORD_OFFSET_DOWN_TIME);
+            long eventTime = buffer.getLong(base + MonkeyScriptCompiler.RECORD_OFFSET_EVENT_TIME);
+            int slots = base + MonkeyScriptCompiler.RECORD_OFFSET_SLOTS;
+            if (op == MonkeyScriptCompiler.OP_KEY) {
+                addKeyEvent(downTime, eventTime, action, buffer.getInt(slots),
+                        buffer.getInt(slots + 4), buffer.getInt(slots + 8),
+                        buffer.getInt(slots + 12), buffer.getInt(slots + 16));
+                continue;
+            }
+
+            boolean touch = op == MonkeyScriptCompiler.OP_POINTER;
+            float x = Float.intBitsToFloat(buffer.getInt(slots));
+            float y = Float.intBitsToFloat(buffer.getInt(slots + 4));
+            float pressure = Float.intBitsToFloat(buffer.getInt(slots + 8));
+            float size = Float.intBitsToFloat(buffer.getInt(slots + 12));
+            int metaState = buffer.getInt(slots + 16);
+            float xPrecision = Float.intBitsToFloat(buffer.getInt(slots + 20));
+            float yPrecision = Float.intBitsToFloat(buffer.getInt(slots + 24));
+            int device = buffer.getInt(slots + 28);
+            int edgeFlags = buffer.getInt(slots + 32);
+            if (buffer.get(base + MonkeyScriptCompiler.RECORD_OFFSET_ARGC) == 12) {
+                addMotionEvent(touch, downTime, eventTime, action, x, y, pressure, size,
+                        metaState, xPrecision, yPrecision, device, edgeFlags);
+            } else {
+                addMultiTouchEvent(touch, downTime, eventTime, action, x, y, pressure, size,
+                        metaState, xPrecision, yPrecision, device, edgeFlags,
+                        buffer.getInt(slots + 36));
+            }
+        }
+        return read;
+    }
+
     /**
      * Reads a number of lines and passes the lines to be processed.
      * 一次性将所有行解析完毕，
@@ -250,8 +337,8 @@ public class MonkeySourceScript implements MonkeyEventSource {
             if (line == null) {
                 return i;
             }
-            line.trim();
-            processLine(line);
+            mLinesRead++;
+            processLine(line.trim());
         }
         return MAX_ONE_TIME_READS;
     }
@@ -267,24 +354,123 @@ public class MonkeySourceScript implements MonkeyEventSource {
         if (line == null) { //如果没有内容
             return 0; //直接返回0
         }
-        line.trim(); //去除空格
-        processLine(line); //解析行内容
+        mLinesRead++;
+        processLine(line.trim()); //去除空格后解析行内容
         return 1;
     }
 
 
     /**
-     * Creates an event and adds it to the event queue. If the parameters are
-     * not understood, they are ignored and no events are added.
-     *
-     * @param s    The entire string from the script file. 从脚本文件中读取的一整行字符串
-     * @param args An array of arguments extracted from the script file line. 从括号中提取的内容
+     * Queues a key event read from a {@code DispatchKey} line or a compiled record.
      */
-    private void handleEvent(String s, String[] args) {
-        // Handle key event
-        if (s.indexOf(EVENT_KEYWORD_KEY) >= 0 && args.length == 8) { //如果在一整行中包括DispatchKey，且（）括号中正好是8个字符串
+    private void addKeyEvent(long downTime, long eventTime, int action, int code, int repeat,
+            int metaState, int device, int scancode) {
+        MonkeyKeyEvent e = new MonkeyKeyEvent(downTime, eventTime, action, code, repeat,
+                metaState, device, scancode); //创建MonkeyKeyEvent对象，牛逼
+        queue(e); //将事件对象，添加到双向队列的尾部
+    }
+
+    /**
+     * Queues a single pointer touch or trackball event, the 12 argument form of
+     * {@code DispatchPointer} and {@code DispatchTrackball}.
+     */
+    private void addMotionEvent(boolean touch, long downTime, long eventTime, int action,
+            float x, float y, float pressure, float size, int metaState, float xPrecision,
+            float yPrecision, int device, int edgeFlags) {
+        MonkeyMotionEvent e;
+        if (touch) {
+            e = new MonkeyTouchEvent(action); //创建MonkeyTouchEvent对象
+        } else {
+            e = new MonkeyTrackballEvent(action); //创建MonkeyTrackballEvent对象
+        }
+
+        e.setRecorded(true)
+                .setDownTime(downTime)
+                .setEventTime(eventTime)
+                .setMetaState(metaState)
+                .setPrecision(xPrecision, yPrecision)
+                .setDeviceId(device)
+                .setEdgeFlags(edgeFlags)
+                .addPointer(0, x, y, pressure, size);
+        queue(e); //添加到双向链表中
+    }
+
+    /**
+     * Queues a two pointer touch or trackball event, the 13 argument form of
+     * {@code DispatchPointer} and {@code DispatchTrackball} whose last argument is the
+     * pointer id.
+     */
+    private void addMultiTouchEvent(boolean touch, long downTime, long eventTime, int action,
+            float x, float y, float pressure, float size, int metaState, float xPrecision,
+            float yPrecision, int device, int edgeFlags, int pointerId) {
+        MonkeyMotionEvent e;
+        if (touch) {
+            if (action == MotionEvent.ACTION_POINTER_DOWN) {
+                e = new MonkeyTouchEvent(MotionEvent.ACTION_POINTER_DOWN
+                        | (pointerId << MotionEvent.ACTION_POINTER_INDEX_SHIFT))
+                        .setIntermediateNote(true);
+            } else {
+                e = new MonkeyTouchEvent(action);
+            }
+        } else {
+            e = new MonkeyTrackballEvent(action);
+        }
+        e.setRecorded(true);
+
+        if (pointerId == 1) {
+            e.setDownTime(downTime)
+                    .setEventTime(eventTime)
+                    .setMetaState(metaState)
+                    .setPrecision(xPrecision, yPrecision)
+                    .setDeviceId(device)
+                    .setEdgeFlags(edgeFlags)
+                    .addPointer(0, mLastX[0], mLastY[0], pressure, size)
+                    .addPointer(1, x, y, pressure, size);
+            mLastX[1] = x;
+            mLastY[1] = y;
+        } else if (pointerId == 0) {
+            e.setDownTime(downTime)
+                    .setEventTime(eventTime)
+                    .setMetaState(metaState)
+                    .setPrecision(xPrecision, yPrecision)
+                    .setDeviceId(device)
+                    .setEdgeFlags(edgeFlags)
+                    .addPointer(0, x, y, pressure, size);
+            if (action == MotionEvent.ACTION_POINTER_UP) {
+                e.addPointer(1, mLastX[1], mLastY[1]);
+            }
+            mLastX[0] = x;
+            mLastY[0] = y;
+        }
+        queue(e);
+    }
+
+    /**
+     * Interface that script commands must implement.
+     * 脚本中每一种命令对应一个实现类，按命令名查表分发
+     */
+    public interface ScriptCommandHandler {
+        /**
+         * Translates the arguments of one script line into events. If the arguments are
+         * not understood, they are ignored and no events are added.
+         *
+         * @param script the script being replayed, events are added with
+         *        {@link MonkeySourceScript#enqueueEvent}
+         * @param args the arguments extracted from the line
+         */
+        void handle(MonkeySourceScript script, String[] args);
+    }
+
+    /**
+     * Command to inject a recorded key event.
+     */
+    static class KeyCommand implements ScriptCommandHandler {
+        // DispatchKey(downTime,eventTime,action,code,repeat,metaState,device,scancode)
+        public void handle(MonkeySourceScript script, String[] args) {
+            if (args.length != 8) {
+                return;
+            }
             try {
-                Logger.out.println(" old key\n");  //打印一行日志， old key
                 long downTime = Long.parseLong(args[0]);  //解析括号中的第一个字符串
                 long eventTime = Long.parseLong(args[1]);
                 int action = Integer.parseInt(args[2]);
@@ -294,20 +480,34 @@ public class MonkeySourceScript implements MonkeyEventSource {
                 int device = Integer.parseInt(args[6]);
                 int scancode = Integer.parseInt(args[7]); //解析括号中的最后一个字符串
 
-                MonkeyKeyEvent e = new MonkeyKeyEvent(downTime, eventTime, action, code, repeat,
-                        metaState, device, scancode); //创建MonkeyKeyEvent对象，牛逼
-                Logger.out.println(" Key code " + code + "\n"); //输出Key code 值
-
-                mQ.addLast(e); //将事件对象，添加到双向队列的尾部
-                Logger.out.println("Added key up \n"); //打印一行日志，告知添加事件完毕
+                script.addKeyEvent(downTime, eventTime, action, code, repeat, metaState, device,
+                        scancode);
             } catch (NumberFormatException e) { //如果捕获到解析数字失败，什么也不干……
             }
-            return; //事件添加完毕，方法结束，真的是一行一个事件
+        }
+    }
+
+    /**
+     * Command to inject a recorded touch or trackball event. The optional 13th argument is
+     * the pointer id of a two pointer gesture.
+     */
+    static class MotionCommand implements ScriptCommandHandler {
+        private final boolean mTouch; //true表示触摸事件，false表示轨迹球事件
+
+        MotionCommand(boolean touch) {
+            mTouch = touch;
+        }
+
+        boolean isTouch() {
+            return mTouch;
         }
 
-        // Handle trackball or pointer events 处理轨迹球事件，还有键盘事件，因为它俩需要的参数都是12个
-        if ((s.indexOf(EVENT_KEYWORD_POINTER) >= 0 || s.indexOf(EVENT_KEYWORD_TRACKBALL) >= 0)
-                && args.length == 12) {
+        // DispatchPointer(downTime,eventTime,action,x,y,pressure,size,metaState,
+        //         xPrecision,yPrecision,device,edgeFlags[,pointerId])
+        public void handle(MonkeySourceScript script, String[] args) {
+            if (args.length != 12 && args.length != 13) {
+                return;
+            }
             try {
                 long downTime = Long.parseLong(args[0]);
                 long eventTime = Long.parseLong(args[1]);
@@ -322,106 +522,90 @@ public class MonkeySourceScript implements MonkeyEventSource {
                 int device = Integer.parseInt(args[10]);
                 int edgeFlags = Integer.parseInt(args[11]);
 
-                MonkeyMotionEvent e;
-                if (s.indexOf("Pointer") > 0) {
-                    e = new MonkeyTouchEvent(action); //创建MonkeyTouchEvent对象
+                if (args.length == 12) {
+                    script.addMotionEvent(mTouch, downTime, eventTime, action, x, y, pressure,
+                            size, metaState, xPrecision, yPrecision, device, edgeFlags);
                 } else {
-                    e = new MonkeyTrackballEvent(action); //创建MonkeyTrackballEvent对象
+                    int pointerId = Integer.parseInt(args[12]);
+                    script.addMultiTouchEvent(mTouch, downTime, eventTime, action, x, y,
+                            pressure, size, metaState, xPrecision, yPrecision, device,
+                            edgeFlags, pointerId);
                 }
-
-                e.setDownTime(downTime)
-                        .setEventTime(eventTime)
-                        .setMetaState(metaState)
-                        .setPrecision(xPrecision, yPrecision)
-                        .setDeviceId(device)
-                        .setEdgeFlags(edgeFlags)
-                        .addPointer(0, x, y, pressure, size);
-                mQ.addLast(e); //添加到双向链表中
             } catch (NumberFormatException e) {
             }
-            return;
         }
+    }
 
-        // Handle trackball or multi-touch  pointer events. pointer ID is the 13th parameter
-        if ((s.indexOf(EVENT_KEYWORD_POINTER) >= 0 || s.indexOf(EVENT_KEYWORD_TRACKBALL) >= 0)
-                && args.length == 13) {
+    /**
+     * Command to inject a touch or trackball event with any number of pointers, as written
+     * by {@link MonkeyEventExporter}. The event is injected at the current time; events
+     * with the same down time argument belong to the same gesture.
+     */
+    private static class MotionListCommand implements ScriptCommandHandler {
+        // DispatchMotion(touch|trackball,downTime,action,displayId,intermediate,
+        //         pointerCount,id,x,y[,id,x,y...])
+        public void handle(MonkeySourceScript script, String[] args) {
+            if (args.length < 6) {
+                return;
+            }
             try {
-                long downTime = Long.parseLong(args[0]);
-                long eventTime = Long.parseLong(args[1]);
+                boolean touch = "touch".equals(args[0]);
+                long downTime = Long.parseLong(args[1]);
                 int action = Integer.parseInt(args[2]);
-                float x = Float.parseFloat(args[3]);
-                float y = Float.parseFloat(args[4]);
-                float pressure = Float.parseFloat(args[5]);
-                float size = Float.parseFloat(args[6]);
-                int metaState = Integer.parseInt(args[7]);
-                float xPrecision = Float.parseFloat(args[8]);
-                float yPrecision = Float.parseFloat(args[9]);
-                int device = Integer.parseInt(args[10]);
-                int edgeFlags = Integer.parseInt(args[11]);
-                int pointerId = Integer.parseInt(args[12]);
-
+                int displayId = Integer.parseInt(args[3]);
+                boolean intermediate = !"0".equals(args[4]);
+                int pointerCount = Integer.parseInt(args[5]);
+                if (pointerCount < 1 || args.length != 6 + pointerCount * 3) {
+                    return;
+                }
                 MonkeyMotionEvent e;
-                if (s.indexOf("Pointer") > 0) {
-                    if (action == MotionEvent.ACTION_POINTER_DOWN) {
-                        e = new MonkeyTouchEvent(MotionEvent.ACTION_POINTER_DOWN
-                                | (pointerId << MotionEvent.ACTION_POINTER_INDEX_SHIFT))
-                                .setIntermediateNote(true);
-                    } else {
-                        e = new MonkeyTouchEvent(action);
-                    }
-                    if (mScriptStartTime < 0) {
-                        mMonkeyStartTime = SystemClock.uptimeMillis();
-                        mScriptStartTime = eventTime;
-                    }
+                if (touch) {
+                    e = new MonkeyTouchEvent(action);
                 } else {
                     e = new MonkeyTrackballEvent(action);
                 }
-
-                if (pointerId == 1) {
-                    e.setDownTime(downTime)
-                            .setEventTime(eventTime)
-                            .setMetaState(metaState)
-                            .setPrecision(xPrecision, yPrecision)
-                            .setDeviceId(device)
-                            .setEdgeFlags(edgeFlags)
-                            .addPointer(0, mLastX[0], mLastY[0], pressure, size)
-                            .addPointer(1, x, y, pressure, size);
-                    mLastX[1] = x;
-                    mLastY[1] = y;
-                } else if (pointerId == 0) {
-                    e.setDownTime(downTime)
-                            .setEventTime(eventTime)
-                            .setMetaState(metaState)
-                            .setPrecision(xPrecision, yPrecision)
-                            .setDeviceId(device)
-                            .setEdgeFlags(edgeFlags)
-                            .addPointer(0, x, y, pressure, size);
-                    if (action == MotionEvent.ACTION_POINTER_UP) {
-                        e.addPointer(1, mLastX[1], mLastY[1]);
-                    }
-                    mLastX[0] = x;
-                    mLastY[0] = y;
+                e.setDownTime(downTime)
+                        .setDisplayId(displayId)
+                        .setIntermediateNote(intermediate);
+                for (int i = 6; i < args.length; i += 3) {
+                    e.addPointer(Integer.parseInt(args[i]), Float.parseFloat(args[i + 1]),
+                            Float.parseFloat(args[i + 2]));
                 }
+                script.enqueueEvent(e);
+            } catch (NumberFormatException e) {
+            }
+        }
+    }
 
-                // Dynamically adjust waiting time to ensure that simulated evnets follow
-                // the time tap specified in the script
-                if (mReadScriptLineByLine) {
-                    long curUpTime = SystemClock.uptimeMillis();
-                    long realElapsedTime = curUpTime - mMonkeyStartTime;
-                    long scriptElapsedTime = eventTime - mScriptStartTime;
-                    if (realElapsedTime < scriptElapsedTime) {
-                        long waitDuration = scriptElapsedTime - realElapsedTime;
-                        mQ.addLast(new MonkeyWaitEvent(waitDuration));
-                    }
+    /**
+     * Command to set the throttle of the event queued by the next line, waited for after
+     * that event is injected.
+     */
+    private static class ThrottleCommand implements ScriptCommandHandler {
+        // Throttle(milliseconds)
+        public void handle(MonkeySourceScript script, String[] args) {
+            if (args.length != 1) {
+                return;
+            }
+            try {
+                long throttle = Long.parseLong(args[0]);
+                if (throttle >= 0) {
+                    script.mPendingThrottle = throttle;
                 }
-                mQ.addLast(e);
             } catch (NumberFormatException e) {
             }
-            return;
         }
+    }
 
-        // Handle screen rotation events
-        if ((s.indexOf(EVENT_KEYWORD_ROTATION) >= 0) && args.length == 2) {
+    /**
+     * Command to rotate the screen.
+     */
+    private static class RotateScreenCommand implements ScriptCommandHandler {
+        // RotateScreen(rotationDegree,persist)
+        public void handle(MonkeySourceScript script, String[] args) {
+            if (args.length != 2) {
+                return;
+            }
             try {
                 int rotationDegree = Integer.parseInt(args[0]);
                 int persist = Integer.parseInt(args[1]);
@@ -429,16 +613,23 @@ public class MonkeySourceScript implements MonkeyEventSource {
                         (rotationDegree == Surface.ROTATION_90) ||
                         (rotationDegree == Surface.ROTATION_180) ||
                         (rotationDegree == Surface.ROTATION_270)) {
-                    mQ.addLast(new MonkeyRotationEvent(rotationDegree,
+                    script.enqueueEvent(new MonkeyRotationEvent(rotationDegree,
                             persist != 0));
                 }
             } catch (NumberFormatException e) {
             }
-            return;
         }
+    }
 
-        // Handle tap event
-        if ((s.indexOf(EVENT_KEYWORD_TAP) >= 0) && args.length >= 2) {
+    /**
+     * Command to tap a point, optionally holding it down for a while.
+     */
+    private static class TapCommand implements ScriptCommandHandler {
+        // Tap(x,y[,tapDuration])
+        public void handle(MonkeySourceScript script, String[] args) {
+            if (args.length < 2) {
+                return;
+            }
             try {
                 float x = Float.parseFloat(args[0]);
                 float y = Float.parseFloat(args[1]);
@@ -453,23 +644,30 @@ public class MonkeySourceScript implements MonkeyEventSource {
                         .setDownTime(downTime)
                         .setEventTime(downTime)
                         .addPointer(0, x, y, 1, 5);
-                mQ.addLast(e1);
+                script.enqueueEvent(e1);
                 if (tapDuration > 0) {
-                    mQ.addLast(new MonkeyWaitEvent(tapDuration));
+                    script.enqueueEvent(new MonkeyWaitEvent(tapDuration));
                 }
                 MonkeyMotionEvent e2 = new MonkeyTouchEvent(MotionEvent.ACTION_UP)
                         .setDownTime(downTime)
                         .setEventTime(downTime)
                         .addPointer(0, x, y, 1, 5);
-                mQ.addLast(e2);
+                script.enqueueEvent(e2);
             } catch (NumberFormatException e) {
                 Logger.err.println("// " + e.toString());
             }
-            return;
         }
+    }
 
-        //Handle the press and hold
-        if ((s.indexOf(EVENT_KEYWORD_PRESSANDHOLD) >= 0) && args.length == 3) {
+    /**
+     * Command to press a point and hold it down.
+     */
+    private static class PressAndHoldCommand implements ScriptCommandHandler {
+        // PressAndHold(x,y,pressDuration)
+        public void handle(MonkeySourceScript script, String[] args) {
+            if (args.length != 3) {
+                return;
+            }
             try {
                 float x = Float.parseFloat(args[0]);
                 float y = Float.parseFloat(args[1]);
@@ -487,18 +685,25 @@ public class MonkeySourceScript implements MonkeyEventSource {
                         .setDownTime(downTime + pressDuration)
                         .setEventTime(downTime + pressDuration)
                         .addPointer(0, x, y, 1, 5);
-                mQ.addLast(e1);
-                mQ.addLast(e2);
-                mQ.addLast(e2);
+                script.enqueueEvent(e1);
+                script.enqueueEvent(e2);
+                script.enqueueEvent(e3);
 
             } catch (NumberFormatException e) {
                 Logger.err.println("// " + e.toString());
             }
-            return;
         }
+    }
 
-        // Handle drag event
-        if ((s.indexOf(EVENT_KEYWORD_DRAG) >= 0) && args.length == 5) {
+    /**
+     * Command to drag from one point to another in a number of steps.
+     */
+    private static class DragCommand implements ScriptCommandHandler {
+        // Drag(xStart,yStart,xEnd,yEnd,stepCount)
+        public void handle(MonkeySourceScript script, String[] args) {
+            if (args.length != 5) {
+                return;
+            }
             float xStart = Float.parseFloat(args[0]);
             float yStart = Float.parseFloat(args[1]);
             float xEnd = Float.parseFloat(args[2]);
@@ -517,7 +722,7 @@ public class MonkeySourceScript implements MonkeyEventSource {
                 MonkeyMotionEvent e =
                         new MonkeyTouchEvent(MotionEvent.ACTION_DOWN).setDownTime(downTime)
                                 .setEventTime(eventTime).addPointer(0, x, y, 1, 5);
-                mQ.addLast(e);
+                script.enqueueEvent(e);
 
                 for (int i = 0; i < stepCount; ++i) {
                     x += xStep;
@@ -525,18 +730,28 @@ public class MonkeySourceScript implements MonkeyEventSource {
                     eventTime = SystemClock.uptimeMillis();
                     e = new MonkeyTouchEvent(MotionEvent.ACTION_MOVE).setDownTime(downTime)
                             .setEventTime(eventTime).addPointer(0, x, y, 1, 5);
-                    mQ.addLast(e);
+                    script.enqueueEvent(e);
                 }
 
                 eventTime = SystemClock.uptimeMillis();
                 e = new MonkeyTouchEvent(MotionEvent.ACTION_UP).setDownTime(downTime)
                         .setEventTime(eventTime).addPointer(0, x, y, 1, 5);
-                mQ.addLast(e);
+                script.enqueueEvent(e);
             }
         }
+    }
 
-        // Handle pinch or zoom action
-        if ((s.indexOf(EVENT_KEYWORD_PINCH_ZOOM) >= 0) && args.length == 9) {
+    /**
+     * Command to move two pointers from their start to their end points in a number of
+     * steps.
+     */
+    private static class PinchZoomCommand implements ScriptCommandHandler {
+        // PinchZoom(pt1xStart,pt1yStart,pt1xEnd,pt1yEnd,pt2xStart,pt2yStart,pt2xEnd,pt2yEnd,
+        //         stepCount)
+        public void handle(MonkeySourceScript script, String[] args) {
+            if (args.length != 9) {
+                return;
+            }
             //Parse the parameters
             float pt1xStart = Float.parseFloat(args[0]);
             float pt1yStart = Float.parseFloat(args[1]);
@@ -565,10 +780,11 @@ public class MonkeySourceScript implements MonkeyEventSource {
                 float pt2xStep = (pt2xEnd - pt2xStart) / stepCount;
                 float pt2yStep = (pt2yEnd - pt2yStart) / stepCount;
 
-                mQ.addLast(new MonkeyTouchEvent(MotionEvent.ACTION_DOWN).setDownTime(downTime)
-                        .setEventTime(eventTime).addPointer(0, x1, y1, 1, 5));
+                script.enqueueEvent(new MonkeyTouchEvent(MotionEvent.ACTION_DOWN)
+                        .setDownTime(downTime).setEventTime(eventTime)
+                        .addPointer(0, x1, y1, 1, 5));
 
-                mQ.addLast(new MonkeyTouchEvent(MotionEvent.ACTION_POINTER_DOWN
+                script.enqueueEvent(new MonkeyTouchEvent(MotionEvent.ACTION_POINTER_DOWN
                         | (1 << MotionEvent.ACTION_POINTER_INDEX_SHIFT)).setDownTime(downTime)
                         .addPointer(0, x1, y1).addPointer(1, x2, y2).setIntermediateNote(true));
 
@@ -579,26 +795,55 @@ public class MonkeySourceScript implements MonkeyEventSource {
                     y2 += pt2yStep;
 
                     eventTime = SystemClock.uptimeMillis();
-                    mQ.addLast(new MonkeyTouchEvent(MotionEvent.ACTION_MOVE).setDownTime(downTime)
-                            .setEventTime(eventTime).addPointer(0, x1, y1, 1, 5).addPointer(1, x2,
-                                    y2, 1, 5));
+                    script.enqueueEvent(new MonkeyTouchEvent(MotionEvent.ACTION_MOVE)
+                            .setDownTime(downTime).setEventTime(eventTime)
+                            .addPointer(0, x1, y1, 1, 5).addPointer(1, x2, y2, 1, 5));
                 }
                 eventTime = SystemClock.uptimeMillis();
-                mQ.addLast(new MonkeyTouchEvent(MotionEvent.ACTION_POINTER_UP)
+                script.enqueueEvent(new MonkeyTouchEvent(MotionEvent.ACTION_POINTER_UP)
                         .setDownTime(downTime).setEventTime(eventTime).addPointer(0, x1, y1)
                         .addPointer(1, x2, y2));
             }
         }
+    }
+
+    /**
+     * Command to open or close the keyboard.
+     */
+    private static class FlipCommand implements ScriptCommandHandler {
+        // DispatchFlip(keyboardOpen)
+        public void handle(MonkeySourceScript script, String[] args) {
+            if (args.length == 1) {
+                boolean keyboardOpen = Boolean.parseBoolean(args[0]);
+                script.enqueueEvent(new MonkeyFlipEvent(keyboardOpen));
+            }
+        }
+    }
 
-        // Handle flip events
-        if (s.indexOf(EVENT_KEYWORD_FLIP) >= 0 && args.length == 1) {
-            boolean keyboardOpen = Boolean.parseBoolean(args[0]);
-            MonkeyFlipEvent e = new MonkeyFlipEvent(keyboardOpen);
-            mQ.addLast(e);
+    /**
+     * Command to grant a runtime permission if it is revoked, or revoke it if granted.
+     */
+    private static class TogglePermissionCommand implements ScriptCommandHandler {
+        // TogglePermission(pkg_name,permission_name)
+        public void handle(MonkeySourceScript script, String[] args) {
+            if (args.length != 2) {
+                return;
+            }
+            PermissionInfo info = new PermissionInfo();
+            info.name = args[1];
+            script.enqueueEvent(new MonkeyPermissionEvent(args[0], info));
         }
+    }
 
-        // Handle launch events
-        if (s.indexOf(EVENT_KEYWORD_ACTIVITY) >= 0 && args.length >= 2) {
+    /**
+     * Command to start an activity, optionally after an alarm.
+     */
+    private static class LaunchActivityCommand implements ScriptCommandHandler {
+        // LaunchActivity(pkg_name,cl_name[,alarmTime])
+        public void handle(MonkeySourceScript script, String[] args) {
+            if (args.length < 2) {
+                return;
+            }
             String pkg_name = args[0];
             String cl_name = args[1];
             long alarmTime = 0;
@@ -615,163 +860,298 @@ public class MonkeySourceScript implements MonkeyEventSource {
             }
 
             if (args.length == 2) {
-                MonkeyActivityEvent e = new MonkeyActivityEvent(mApp);
-                mQ.addLast(e);
+                script.enqueueEvent(new MonkeyActivityEvent(mApp));
             } else {
-                MonkeyActivityEvent e = new MonkeyActivityEvent(mApp, alarmTime);
-                mQ.addLast(e);
+                script.enqueueEvent(new MonkeyActivityEvent(mApp, alarmTime));
             }
-            return;
         }
+    }
 
-        //Handle the device wake up event
-        if (s.indexOf(EVENT_KEYWORD_DEVICE_WAKEUP) >= 0) {
+    /**
+     * Command to put the device to sleep and wake it up again.
+     */
+    private static class DeviceWakeUpCommand implements ScriptCommandHandler {
+        // DeviceWakeUp()
+        public void handle(MonkeySourceScript script, String[] args) {
             String pkg_name = "com.google.android.powerutil";
             String cl_name = "com.google.android.powerutil.WakeUpScreen";
-            long deviceSleepTime = mDeviceSleepTime;
+            long deviceSleepTime = script.mDeviceSleepTime;
 
             //Start the wakeUpScreen test activity to turn off the screen.
             ComponentName mApp = new ComponentName(pkg_name, cl_name);
-            mQ.addLast(new MonkeyActivityEvent(mApp, deviceSleepTime));
+            script.enqueueEvent(new MonkeyActivityEvent(mApp, deviceSleepTime));
 
             //inject the special key for the wakeUpScreen test activity.
-            mQ.addLast(new MonkeyKeyEvent(KeyEvent.ACTION_DOWN, KeyEvent.KEYCODE_0));
-            mQ.addLast(new MonkeyKeyEvent(KeyEvent.ACTION_UP, KeyEvent.KEYCODE_0));
+            script.enqueueEvent(new MonkeyKeyEvent(KeyEvent.ACTION_DOWN, KeyEvent.KEYCODE_0));
+            script.enqueueEvent(new MonkeyKeyEvent(KeyEvent.ACTION_UP, KeyEvent.KEYCODE_0));
 
             //Add the wait event after the device sleep event so that the monkey
             //can continue after the device wake up.
-            mQ.addLast(new MonkeyWaitEvent(deviceSleepTime + 3000));
+            script.enqueueEvent(new MonkeyWaitEvent(deviceSleepTime + 3000));
 
             //Insert the menu key to unlock the screen
-            mQ.addLast(new MonkeyKeyEvent(KeyEvent.ACTION_DOWN, KeyEvent.KEYCODE_MENU));
-            mQ.addLast(new MonkeyKeyEvent(KeyEvent.ACTION_UP, KeyEvent.KEYCODE_MENU));
+            script.enqueueEvent(new MonkeyKeyEvent(KeyEvent.ACTION_DOWN, KeyEvent.KEYCODE_MENU));
+            script.enqueueEvent(new MonkeyKeyEvent(KeyEvent.ACTION_UP, KeyEvent.KEYCODE_MENU));
 
             //Insert the back key to dismiss the test activity
-            mQ.addLast(new MonkeyKeyEvent(KeyEvent.ACTION_DOWN, KeyEvent.KEYCODE_BACK));
-            mQ.addLast(new MonkeyKeyEvent(KeyEvent.ACTION_UP, KeyEvent.KEYCODE_BACK));
-
-            return;
+            script.enqueueEvent(new MonkeyKeyEvent(KeyEvent.ACTION_DOWN, KeyEvent.KEYCODE_BACK));
+            script.enqueueEvent(new MonkeyKeyEvent(KeyEvent.ACTION_UP, KeyEvent.KEYCODE_BACK));
         }
+    }
 
-        // Handle launch instrumentation events
-        if (s.indexOf(EVENT_KEYWORD_INSTRUMENTATION) >= 0 && args.length == 2) {
-            String test_name = args[0];
-            String runner_name = args[1];
-            MonkeyInstrumentationEvent e = new MonkeyInstrumentationEvent(test_name, runner_name);
-            mQ.addLast(e);
-            return;
+    /**
+     * Command to start an instrumentation test.
+     */
+    private static class LaunchInstrumentationCommand implements ScriptCommandHandler {
+        // LaunchInstrumentation(test_name,runner_name)
+        public void handle(MonkeySourceScript script, String[] args) {
+            if (args.length == 2) {
+                String test_name = args[0];
+                String runner_name = args[1];
+                script.enqueueEvent(new MonkeyInstrumentationEvent(test_name, runner_name));
+            }
         }
+    }
 
-        // Handle wait events
-        if (s.indexOf(EVENT_KEYWORD_WAIT) >= 0 && args.length == 1) {
+    /**
+     * Command to wait for a number of milliseconds.
+     */
+    private static class UserWaitCommand implements ScriptCommandHandler {
+        // UserWait(sleeptime)
+        public void handle(MonkeySourceScript script, String[] args) {
+            if (args.length != 1) {
+                return;
+            }
             try {
                 long sleeptime = Integer.parseInt(args[0]);
-                MonkeyWaitEvent e = new MonkeyWaitEvent(sleeptime);
-                mQ.addLast(e);
+                script.enqueueEvent(new MonkeyWaitEvent(sleeptime));
             } catch (NumberFormatException e) {
             }
-            return;
         }
+    }
 
-
-        // Handle the profile wait time
-        if (s.indexOf(EVENT_KEYWORD_PROFILE_WAIT) >= 0) {
-            MonkeyWaitEvent e = new MonkeyWaitEvent(mProfileWaitTime);
-            mQ.addLast(e);
-            return;
+    /**
+     * Command to wait for the profile wait time given with --profile-wait.
+     */
+    private static class ProfileWaitCommand implements ScriptCommandHandler {
+        // ProfileWait()
+        public void handle(MonkeySourceScript script, String[] args) {
+            script.enqueueEvent(new MonkeyWaitEvent(script.mProfileWaitTime));
         }
+    }
 
-        // Handle keypress events
-        if (s.indexOf(EVENT_KEYWORD_KEYPRESS) >= 0 && args.length == 1) {
+    /**
+     * Command to press and release a key given by its name.
+     */
+    private static class KeyPressCommand implements ScriptCommandHandler {
+        // DispatchPress(KEYCODE_xxx)
+        public void handle(MonkeySourceScript script, String[] args) {
+            if (args.length != 1) {
+                return;
+            }
             String key_name = args[0];
             int keyCode = MonkeySourceRandom.getKeyCode(key_name);
             if (keyCode == KeyEvent.KEYCODE_UNKNOWN) {
                 return;
             }
-            MonkeyKeyEvent e = new MonkeyKeyEvent(KeyEvent.ACTION_DOWN, keyCode);
-            mQ.addLast(e);
-            e = new MonkeyKeyEvent(KeyEvent.ACTION_UP, keyCode);
-            mQ.addLast(e);
-            return;
+            script.enqueueEvent(new MonkeyKeyEvent(KeyEvent.ACTION_DOWN, keyCode));
+            script.enqueueEvent(new MonkeyKeyEvent(KeyEvent.ACTION_UP, keyCode));
         }
+    }
 
-        // Handle longpress events
-        if (s.indexOf(EVENT_KEYWORD_LONGPRESS) >= 0) {
-            MonkeyKeyEvent e;
-            e = new MonkeyKeyEvent(KeyEvent.ACTION_DOWN, KeyEvent.KEYCODE_DPAD_CENTER);
-            mQ.addLast(e);
-            MonkeyWaitEvent we = new MonkeyWaitEvent(LONGPRESS_WAIT_TIME);
-            mQ.addLast(we);
-            e = new MonkeyKeyEvent(KeyEvent.ACTION_UP, KeyEvent.KEYCODE_DPAD_CENTER);
-            mQ.addLast(e);
+    /**
+     * Command to long press the center of the dpad.
+     */
+    private static class LongPressCommand implements ScriptCommandHandler {
+        // LongPress()
+        public void handle(MonkeySourceScript script, String[] args) {
+            script.enqueueEvent(
+                    new MonkeyKeyEvent(KeyEvent.ACTION_DOWN, KeyEvent.KEYCODE_DPAD_CENTER));
+            script.enqueueEvent(new MonkeyWaitEvent(LONGPRESS_WAIT_TIME));
+            script.enqueueEvent(
+                    new MonkeyKeyEvent(KeyEvent.ACTION_UP, KeyEvent.KEYCODE_DPAD_CENTER));
         }
+    }
 
-        //The power log event is mainly for the automated power framework
-        if (s.indexOf(EVENT_KEYWORD_POWERLOG) >= 0 && args.length > 0) {
-            String power_log_type = args[0];
-            String test_case_status;
-
+    /**
+     * Command to add an entry to the power log, mainly for the automated power framework.
+     */
+    private static class PowerLogCommand implements ScriptCommandHandler {
+        // PowerLog(power_log_type[,test_case_status])
+        public void handle(MonkeySourceScript script, String[] args) {
             if (args.length == 1) {
-                MonkeyPowerEvent e = new MonkeyPowerEvent(power_log_type);
-                mQ.addLast(e);
+                script.enqueueEvent(new MonkeyPowerEvent(args[0]));
             } else if (args.length == 2) {
-                test_case_status = args[1];
-                MonkeyPowerEvent e = new MonkeyPowerEvent(power_log_type, test_case_status);
-                mQ.addLast(e);
+                script.enqueueEvent(new MonkeyPowerEvent(args[0], args[1]));
             }
         }
+    }
 
-        //Write power log to sdcard
-        if (s.indexOf(EVENT_KEYWORD_WRITEPOWERLOG) >= 0) {
-            MonkeyPowerEvent e = new MonkeyPowerEvent();
-            mQ.addLast(e);
+    /**
+     * Command to write the power log to sdcard.
+     */
+    private static class WriteLogCommand implements ScriptCommandHandler {
+        // WriteLog()
+        public void handle(MonkeySourceScript script, String[] args) {
+            script.enqueueEvent(new MonkeyPowerEvent());
         }
+    }
 
-        //Run the shell command
-        if (s.indexOf(EVENT_KEYWORD_RUNCMD) >= 0 && args.length == 1) {
-            String cmd = args[0];
-            MonkeyCommandEvent e = new MonkeyCommandEvent(cmd);
-            mQ.addLast(e);
+    /**
+     * Command to run a shell command.
+     */
+    private static class RunCmdCommand implements ScriptCommandHandler {
+        // RunCmd(cmd)
+        public void handle(MonkeySourceScript script, String[] args) {
+            if (args.length == 1) {
+                script.enqueueEvent(new MonkeyCommandEvent(args[0]));
+            }
         }
+    }
 
-        //Input the string through the shell command
-        if (s.indexOf(EVENT_KEYWORD_INPUT_STRING) >= 0 && args.length == 1) {
-            String input = args[0];
-            String cmd = "input text " + input;
-            MonkeyCommandEvent e = new MonkeyCommandEvent(cmd);
-            mQ.addLast(e);
-            return;
+    /**
+     * Command to input a string through the shell.
+     */
+    private static class InputStringCommand implements ScriptCommandHandler {
+        // DispatchString(input)
+        public void handle(MonkeySourceScript script, String[] args) {
+            if (args.length == 1) {
+                script.enqueueEvent(new MonkeyCommandEvent("input text " + args[0]));
+            }
         }
+    }
 
-        if (s.indexOf(EVENT_KEYWORD_START_FRAMERATE_CAPTURE) >= 0) {
-            MonkeyGetFrameRateEvent e = new MonkeyGetFrameRateEvent("start");
-            mQ.addLast(e);
-            return;
-        }
+    /**
+     * Commands to start and end capturing the frame rate of the screen or of an app.
+     */
+    private static class FramerateCommand implements ScriptCommandHandler {
+        private final boolean mStart;
+        private final boolean mApp;
 
-        if (s.indexOf(EVENT_KEYWORD_END_FRAMERATE_CAPTURE) >= 0 && args.length == 1) {
-            String input = args[0];
-            MonkeyGetFrameRateEvent e = new MonkeyGetFrameRateEvent("end", input);
-            mQ.addLast(e);
-            return;
+        FramerateCommand(boolean start, boolean app) {
+            mStart = start;
+            mApp = app;
         }
 
-        if (s.indexOf(EVENT_KEYWORD_START_APP_FRAMERATE_CAPTURE) >= 0 && args.length == 1) {
-            String app = args[0];
-            MonkeyGetAppFrameRateEvent e = new MonkeyGetAppFrameRateEvent("start", app);
-            mQ.addLast(e);
-            return;
+        // StartCaptureFramerate()
+        // EndCaptureFramerate(input)
+        // StartCaptureAppFramerate(app)
+        // EndCaptureAppFramerate(app,label)
+        public void handle(MonkeySourceScript script, String[] args) {
+            if (!mApp) {
+                if (mStart) {
+                    script.enqueueEvent(new MonkeyGetFrameRateEvent("start"));
+                } else if (args.length == 1) {
+                    script.enqueueEvent(new MonkeyGetFrameRateEvent("end", args[0]));
+                }
+            } else if (mStart) {
+                if (args.length == 1) {
+                    script.enqueueEvent(new MonkeyGetAppFrameRateEvent("start", args[0]));
+                }
+            } else if (args.length == 2) {
+                script.enqueueEvent(new MonkeyGetAppFrameRateEvent("end", args[0], args[1]));
+            }
         }
+    }
 
-        if (s.indexOf(EVENT_KEYWORD_END_APP_FRAMERATE_CAPTURE) >= 0 && args.length == 2) {
-            String app = args[0];
-            String label = args[1];
-            MonkeyGetAppFrameRateEvent e = new MonkeyGetAppFrameRateEvent("end", app, label);
-            mQ.addLast(e);
-            return;
+    // This maps from command names to command implementations. Commands are registered
+    // before the run starts and looked up for every line, so reads take no lock.
+    private static final Map<String, ScriptCommandHandler> COMMAND_MAP =
+            new ConcurrentHashMap<String, ScriptCommandHandler>(); //命令名到命令实现的映射
+
+    static {
+        // Add in all the commands we support
+        registerCommand(EVENT_KEYWORD_KEY, new KeyCommand());
+        registerCommand(EVENT_KEYWORD_POINTER, new MotionCommand(true));
+        registerCommand(EVENT_KEYWORD_TRACKBALL, new MotionCommand(false));
+        registerCommand(EVENT_KEYWORD_MOTION, new MotionListCommand());
+        registerCommand(EVENT_KEYWORD_THROTTLE, new ThrottleCommand());
+        registerCommand(EVENT_KEYWORD_ROTATION, new RotateScreenCommand());
+        registerCommand(EVENT_KEYWORD_TAP, new TapCommand());
+        registerCommand(EVENT_KEYWORD_PRESSANDHOLD, new PressAndHoldCommand());
+        registerCommand(EVENT_KEYWORD_DRAG, new DragCommand());
+        registerCommand(EVENT_KEYWORD_PINCH_ZOOM, new PinchZoomCommand());
+        registerCommand(EVENT_KEYWORD_FLIP, new FlipCommand());
+        registerCommand(EVENT_KEYWORD_ACTIVITY, new LaunchActivityCommand());
+        registerCommand(EVENT_KEYWORD_PERMISSION, new TogglePermissionCommand());
+        registerCommand(EVENT_KEYWORD_DEVICE_WAKEUP, new DeviceWakeUpCommand());
+        registerCommand(EVENT_KEYWORD_INSTRUMENTATION, new LaunchInstrumentationCommand());
+        registerCommand(EVENT_KEYWORD_WAIT, new UserWaitCommand());
+        registerCommand(EVENT_KEYWORD_PROFILE_WAIT, new ProfileWaitCommand());
+        registerCommand(EVENT_KEYWORD_KEYPRESS, new KeyPressCommand());
+        registerCommand(EVENT_KEYWORD_LONGPRESS, new LongPressCommand());
+        registerCommand(EVENT_KEYWORD_POWERLOG, new PowerLogCommand());
+        registerCommand(EVENT_KEYWORD_WRITEPOWERLOG, new WriteLogCommand());
+        registerCommand(EVENT_KEYWORD_RUNCMD, new RunCmdCommand());
+        registerCommand(EVENT_KEYWORD_INPUT_STRING, new InputStringCommand());
+        registerCommand(EVENT_KEYWORD_START_FRAMERATE_CAPTURE,
+                new FramerateCommand(true, false));
+        registerCommand(EVENT_KEYWORD_END_FRAMERATE_CAPTURE, new FramerateCommand(false, false));
+        registerCommand(EVENT_KEYWORD_START_APP_FRAMERATE_CAPTURE,
+                new FramerateCommand(true, true));
+        registerCommand(EVENT_KEYWORD_END_APP_FRAMERATE_CAPTURE,
+                new FramerateCommand(false, true));
+    }
+
+    /**
+     * Registers a handler for a script command. Both {@code verb(args)} and
+     * {@code captureVerb(args)} lines are passed to it. Registering the name of a built-in
+     * command replaces it.
+     *
+     * @param verb the command name, case sensitive
+     * @param handler the handler for lines with that command
+     */
+    public static void registerCommand(String verb, ScriptCommandHandler handler) {
+        COMMAND_MAP.put(verb, handler);
+        COMMAND_MAP.put(CAPTURE_PREFIX + verb, handler);
+    }
+
+    /**
+     * Looks up the handler for a line.
+     *
+     * @param line A string in the form {@code cmd(arg1,arg2,arg3)}.
+     * @return the handler for {@code cmd}, or null if there is none
+     */
+    static ScriptCommandHandler getHandler(String line) {
+        int index = line.indexOf('(');
+        if (index < 0) {
+            return null;
         }
+        String verb = line.substring(0, index).trim(); //括号前面的命令名
+        return COMMAND_MAP.get(verb);
+    }
+
+    /**
+     * Adds an event to the end of the event queue, used by {@link ScriptCommandHandler}s.
+     */
+    public void enqueueEvent(MonkeyEvent e) {
+        queue(e);
+    }
 
+    /**
+     * Adds an event to the end of the event queue. A throttle set by a preceding
+     * {@code Throttle} line replaces the one the queue gives the event.
+     */
+    private void queue(MonkeyEvent e) {
+        mQ.addLast(e);
+        if (mPendingThrottle >= 0) {
+            e.setThrottle(mPendingThrottle);
+            mPendingThrottle = -1;
+        }
+    }
 
+    /**
+     * Creates an event and adds it to the event queue. If the parameters are
+     * not understood, they are ignored and no events are added.
+     *
+     * @param s    The entire string from the script file. 从脚本文件中读取的一整行字符串
+     * @param args An array of arguments extracted from the script file line. 从括号中提取的内容
+     */
+    private void handleEvent(String s, String[] args) {
+        ScriptCommandHandler handler = getHandler(s); //只解析一次命令名，然后查表
+        if (handler != null) {
+            handler.handle(this, args);
+        }
     }
 
     /**
@@ -781,11 +1161,25 @@ public class MonkeySourceScript implements MonkeyEventSource {
      * @param line A string in the form {@code cmd(arg1,arg2,arg3)}.
      */
     private void processLine(String line) {
+        String[] args = parseArgs(line);
+        if (args == null) {
+            return;  //容错，一行中没有（，或者没有）
+        }
+        handleEvent(line, args); //将整行内容与字符串数组（括号中的字符串）都传入进去，一个handleEvent（）的方法中
+    }
+
+    /**
+     * Extracts the arguments from a line.
+     *
+     * @param line A string in the form {@code cmd(arg1,arg2,arg3)}.
+     * @return the trimmed arguments, or null if the line has no argument list
+     */
+    static String[] parseArgs(String line) {
         int index1 = line.indexOf('('); //先找到第一个出现的（的位置
         int index2 = line.indexOf(')'); //再找到第一个出现的）的位置
 
         if (index1 < 0 || index2 < 0) {
-            return;  //容错，一行中没有（，或者没有）
+            return null;
         }
 
         String[] args = line.substring(index1 + 1, index2).split(","); //先把（）中的字符串取出来，然后用，分隔成字符串数组
@@ -793,8 +1187,53 @@ public class MonkeySourceScript implements MonkeyEventSource {
         for (int i = 0; i < args.length; i++) {
             args[i] = args[i].trim();// 遍历字符串数组的每个字符串，并且把空白字符都去除掉，再次交给同一个数组对象保存
         }
+        return args;
+    }
 
-        handleEvent(line, args); //将整行内容与字符串数组（括号中的字符串）都传入进去，一个handleEvent（）的方法中
+    /**
+     * @return true if no events read from the script are queued, so that a checkpoint
+     *         taken now resumes with the next line
+     */
+    boolean canCheckpoint() {
+        return mQ.isEmpty() && mPendingThrottle < 0;
+    }
+
+    void saveState(MonkeyCheckpoint cp) {
+        cp.mSource = MonkeyCheckpoint.SOURCE_SCRIPT;
+        cp.mScriptOpened = mFileOpened;
+        cp.mScriptPosition = mProgram != null ? mCompiledRecordIndex : mLinesRead;
+        cp.mLastRecordedDownTimeKey = mLastRecordedDownTimeKey;
+        cp.mLastRecordedDownTimeMotion = mLastRecordedDownTimeMotion;
+        cp.mLastExportDownTimeKey = mLastExportDownTimeKey;
+        cp.mLastExportDownTimeMotion = mLastExportDownTimeMotion;
+    }
+
+    /**
+     * Continues from a checkpoint when the script is next opened. A checkpoint taken
+     * between two passes starts the next pass from the beginning.
+     */
+    void restoreState(MonkeyCheckpoint cp) {
+        mResumeState = cp.mScriptOpened ? cp : null;
+    }
+
+    /**
+     * Skips the lines or records read before the checkpoint and restores the timing
+     * anchors. The replay pace is realigned at the next recorded event.
+     */
+    private void skipToCheckpoint(MonkeyCheckpoint cp) throws IOException {
+        if (mProgram != null) {
+            mCompiledRecordIndex = Math.min(cp.mScriptPosition, mProgram.getRecordCount());
+        } else {
+            while (mLinesRead < cp.mScriptPosition && mBufferedReader.readLine() != null) {
+                mLinesRead++; //跳过已经回放过的行
+            }
+        }
+        mLastRecordedDownTimeKey = cp.mLastRecordedDownTimeKey;
+        mLastRecordedDownTimeMotion = cp.mLastRecordedDownTimeMotion;
+        mLastExportDownTimeKey = cp.mLastExportDownTimeKey;
+        mLastExportDownTimeMotion = cp.mLastExportDownTimeMotion;
+        Logger.out.println(":Resuming " + mScriptFileName + " at "
+                + (mProgram != null ? "record " : "line ") + cp.mScriptPosition);
     }
 
     /**
@@ -804,6 +1243,10 @@ public class MonkeySourceScript implements MonkeyEventSource {
      */
     private void closeFile() throws IOException {
         mFileOpened = false; //表示，文件关闭
+        if (mProgram != null) {
+            mProgram = null; //程序由缓存持有，没有需要关闭的文件
+            return;
+        }
 
         try {
             mFStream.close(); //关闭文件输入流，释放内存
@@ -831,9 +1274,16 @@ public class MonkeySourceScript implements MonkeyEventSource {
         if (!mFileOpened) { //如果文件没有打开过……
             resetValue(); //重置所有值为初始值
             readHeader(); //读取文件的前面几行，跟检查事件源时调用的方法都一样
+            mScheduler = new MonkeyReplayScheduler(mSpeed);
+            if (mResumeState != null) {
+                skipToCheckpoint(mResumeState);
+                mResumeState = null;
+            }
         }
 
-        if (mReadScriptLineByLine) { //如果标记了一行一行的读取脚本
+        if (mProgram != null) {
+            linesRead = readCompiledRecords(mReadScriptLineByLine ? 1 : MAX_ONE_TIME_READS);
+        } else if (mReadScriptLineByLine) { //如果标记了一行一行的读取脚本
             linesRead = readOneLine();  //每次读取一行
         } else {
             linesRead = readLines(); //一下子读取所有行
@@ -841,22 +1291,9 @@ public class MonkeySourceScript implements MonkeyEventSource {
 
         if (linesRead == 0) { //当读取数量为0时
             closeFile();  //关闭文件
-        }
-    }
-
-    /**
-     * Sleep for a period of given time. Used to introduce latency between
-     * events.
-     *
-     * @param time The amount of time to sleep in ms
-     */
-    private void needSleep(long time) {
-        if (time < 1) {
-            return;
-        }
-        try {
-            Thread.sleep(time);
-        } catch (InterruptedException e) {
+            if (mVerbose > 0) {
+                mScheduler.dump();
+            }
         }
     }
 
@@ -873,6 +1310,7 @@ public class MonkeySourceScript implements MonkeyEventSource {
             validHeader = readHeader();  //读取文件的开头,保存结果到局部变量中
             closeFile(); //关闭文件，释放内存
         } catch (IOException e) {
+            Logger.err.println("** Error: " + e.getMessage());
             return false; //如果打开文件出现错误，即IOException，直接返回false，表示事件源都错误
         }
 
@@ -894,64 +1332,67 @@ public class MonkeySourceScript implements MonkeyEventSource {
 
     /**
      * Adjust key downtime and eventtime according to both recorded values and
-     * current system time.
+     * current system time. Waits until the key is due at the pace it was recorded.
      *
      * @param e A KeyEvent
      */
     private void adjustKeyEventTime(MonkeyKeyEvent e) {
         if (e.getEventTime() < 0) {
+            mScheduler.reset(); //不是录制的按键，之后的录制事件重新对齐时间
             return;
         }
-        long thisDownTime = 0;
-        long thisEventTime = 0;
-        long expectedDelay = 0;
-
-        if (mLastRecordedEventTime <= 0) {
-            // first time event
-            thisDownTime = SystemClock.uptimeMillis();
-            thisEventTime = thisDownTime;
+        long recordedDownTime = e.getDownTime();
+        long thisEventTime = mScheduler.await(e.getEventTime());
+        long thisDownTime;
+        if (recordedDownTime == mLastRecordedDownTimeKey) {
+            thisDownTime = mLastExportDownTimeKey;
         } else {
-            if (e.getDownTime() != mLastRecordedDownTimeKey) {
-                thisDownTime = e.getDownTime();
-            } else {
-                thisDownTime = mLastExportDownTimeKey;
-            }
-            expectedDelay = (long) ((e.getEventTime() - mLastRecordedEventTime) * mSpeed);
-            thisEventTime = mLastExportEventTime + expectedDelay;
-            // add sleep to simulate everything in recording
-            needSleep(expectedDelay - SLEEP_COMPENSATE_DIFF);
+            thisDownTime = Math.min(mScheduler.toUptime(recordedDownTime), thisEventTime);
         }
-        mLastRecordedDownTimeKey = e.getDownTime();
-        mLastRecordedEventTime = e.getEventTime();
+        logLateness();
+        mLastRecordedDownTimeKey = recordedDownTime;
         e.setDownTime(thisDownTime);
         e.setEventTime(thisEventTime);
         mLastExportDownTimeKey = thisDownTime;
-        mLastExportEventTime = thisEventTime;
     }
 
     /**
-     * Adjust motion downtime and eventtime according to current system time.
+     * Adjust motion downtime and eventtime. Recorded events are injected at the pace they
+     * were recorded, all others at the current system time.
      *
      * @param e A MotionEvent
      */
     private void adjustMotionEventTime(MonkeyMotionEvent e) {
-        long thisEventTime = SystemClock.uptimeMillis();
-        long thisDownTime = e.getDownTime();
+        long thisEventTime;
+        long thisDownTime;
+        if (e.isRecorded()) {
+            thisEventTime = mScheduler.await(e.getEventTime());
+            thisDownTime = Math.min(mScheduler.toUptime(e.getDownTime()), thisEventTime);
+            logLateness();
+        } else {
+            mScheduler.reset();
+            thisEventTime = SystemClock.uptimeMillis();
+            thisDownTime = thisEventTime;
+        }
 
-        if (thisDownTime == mLastRecordedDownTimeMotion) {
+        if (e.getDownTime() == mLastRecordedDownTimeMotion) {
             // this event is the same batch as previous one
             e.setDownTime(mLastExportDownTimeMotion);
         } else {
             // this event is the start of a new batch
-            mLastRecordedDownTimeMotion = thisDownTime;
-            // update down time to match current time
-            e.setDownTime(thisEventTime);
-            mLastExportDownTimeMotion = thisEventTime;
+            mLastRecordedDownTimeMotion = e.getDownTime();
+            e.setDownTime(thisDownTime);
+            mLastExportDownTimeMotion = thisDownTime;
         }
-        // always refresh event time
         e.setEventTime(thisEventTime);
     }
 
+    private void logLateness() {
+        if (mVerbose > 2) {
+            Logger.out.println(":Replay lateness " + mScheduler.getLastLateness() / 1000 + "us");
+        }
+    }
+
     /**
      * Gets the next event to be injected from the script. If the event queue is
      * empty, reads the next n events from the script into the queue, where n is
@@ -987,6 +1428,8 @@ public class MonkeySourceScript implements MonkeyEventSource {
         } else if (ev.getEventType() == MonkeyEvent.EVENT_TYPE_TOUCH
                 || ev.getEventType() == MonkeyEvent.EVENT_TYPE_TRACKBALL) {
             adjustMotionEventTime((MonkeyMotionEvent) ev);
+        } else {
+            mScheduler.reset(); //等待、启动Activity等事件之后，重新对齐时间
         }
         return ev;
     }
@@ -0,0 +1,269 @@
+/*
+ * Copyright (C) 2008 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.commands.monkey;
+
+import android.content.ComponentName;
+import android.content.pm.IPackageManager;
+import android.content.pm.PackageInfo;
+import android.content.pm.PermissionInfo;
+import android.os.Build;
+import android.os.RemoteException;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * What the monkey discovers from the package manager at startup, the main activities
+ * and the runtime permissions of the targeted packages, saved with --startup-cache so
+ * the next run on the same device can skip the discovery.
+ * <p>
+ * The snapshot is keyed by a hash of the build fingerprint, the user, the categories,
+ * the package filter and the version code and update time of every installed package.
+ * Computing the key takes one getInstalledPackages() call; any installed, updated or
+ * removed package makes the snapshot stale and it is rebuilt. Permission flags changed
+ * by policy without a package update are not noticed.
+ * <p>
+ * All values are big endian.
+ *
+ * <pre>
+ * int magic, short version, short unused, long key,
+ * int mainAppCount (-1 if absent), mainAppCount * (UTF package, UTF class),
+ * int packageCount (-1 if absent), packageCount * (UTF package, int permissionCount,
+ *     permissionCount * (UTF name, UTF group, int protectionLevel))
+ * </pre>
+ * 缓存启动时查询到的主Activity和权限信息，按已安装包的版本作为key，避免每次启动都重新查询
+ */
+public class MonkeyStartupSnapshot {
+    static final int MAGIC = 0x4d4b5353; // "MKSS"
+    static final short VERSION = 1;
+
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final String mFile;
+    private final long mKey;
+    private List<ComponentName> mMainApps;
+    private Map<String, List<PermissionInfo>> mPermissions;
+    private boolean mChanged; //有新查询到的内容，需要写回文件
+
+    private MonkeyStartupSnapshot(String file, long key) {
+        mFile = file;
+        mKey = key;
+    }
+
+    /**
+     * Computes the key of the current device state.
+     */
+    public static long computeKey(IPackageManager pm, int userId, List<String> categories,
+            boolean permissionTargetSystem) throws RemoteException {
+        long key = hash(FNV_OFFSET, Build.FINGERPRINT);
+        key = hash(key, Integer.toString(userId));
+        for (String category : categories) {
+            key = hash(key, category);
+        }
+        key = hash(key, "valid");
+        key = hashSorted(key, MonkeyUtils.getPackageFilter().getValidPackages());
+        key = hash(key, "invalid");
+        key = hashSorted(key, MonkeyUtils.getPackageFilter().getInvalidPackages());
+        key = hash(key, permissionTargetSystem ? "system" : "");
+
+        long packages = 0; // summed, so the order of the list does not matter
+        List<?> infos = pm.getInstalledPackages(0, userId).getList();
+        for (Object o : infos) {
+            PackageInfo info = (PackageInfo) o;
+            long h = hash(FNV_OFFSET, info.packageName);
+            h = hash(h, Long.toString(info.getLongVersionCode()));
+            h = hash(h, Long.toString(info.lastUpdateTime));
+            packages += h;
+        }
+        return hash(key, Long.toString(packages));
+    }
+
+    private static long hash(long h, String s) {
+        for (int i = 0; i < s.length(); i++) {
+            h ^= s.charAt(i);
+            h *= FNV_PRIME;
+        }
+        h ^= 0xff; // separator, so "ab","c" and "a","bc" differ
+        return h * FNV_PRIME;
+    }
+
+    private static long hashSorted(long h, Set<String> set) {
+        List<String> sorted = new ArrayList<String>(set);
+        Collections.sort(sorted);
+        for (String s : sorted) {
+            h = hash(h, s);
+        }
+        return h;
+    }
+
+    /**
+     * Loads the snapshot of a file if its key matches.
+     *
+     * @return the snapshot; empty if the file is missing, unreadable or stale
+     */
+    public static MonkeyStartupSnapshot load(String file, long key) {
+        MonkeyStartupSnapshot snapshot = new MonkeyStartupSnapshot(file, key);
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != MAGIC || in.readShort() != VERSION) {
+                Logger.err.println("** Warning: Ignoring startup cache " + file
+                        + " of another format");
+                return snapshot;
+            }
+            in.readShort();
+            if (in.readLong() != key) {
+                Logger.out.println(":StartupCache: " + file + " is stale, rebuilding");
+                return snapshot;
+            }
+            int apps = in.readInt();
+            if (apps >= 0) {
+                List<ComponentName> mainApps = new ArrayList<ComponentName>(apps);
+                for (int i = 0; i < apps; i++) {
+                    mainApps.add(new ComponentName(in.readUTF(), in.readUTF()));
+                }
+                snapshot.mMainApps = mainApps;
+            }
+            int packages = in.readInt();
+            if (packages >= 0) {
+                Map<String, List<PermissionInfo>> permissions =
+                        new HashMap<String, List<PermissionInfo>>();
+                for (int i = 0; i < packages; i++) {
+                    String pkg = in.readUTF();
+                    int n = in.readInt();
+                    List<PermissionInfo> infos = new ArrayList<PermissionInfo>(n);
+                    for (int j = 0; j < n; j++) {
+                        PermissionInfo pi = new PermissionInfo();
+                        pi.name = in.readUTF();
+                        pi.group = in.readUTF();
+                        pi.protectionLevel = in.readInt();
+                        infos.add(pi);
+                    }
+                    permissions.put(pkg, infos);
+                }
+                snapshot.mPermissions = permissions;
+            }
+            Logger.out.println(":StartupCache: using " + file);
+        } catch (FileNotFoundException e) {
+            // first run, the snapshot is written once discovery is done
+        } catch (IOException e) {
+            Logger.err.println("** Warning: Failed reading startup cache " + file + ": " + e);
+            snapshot.mMainApps = null;
+            snapshot.mPermissions = null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // nothing left to do
+                }
+            }
+        }
+        return snapshot;
+    }
+
+    /**
+     * @return the main activities of the snapshot, or null if they must be discovered
+     */
+    public List<ComponentName> getMainApps() {
+        return mMainApps;
+    }
+
+    public void setMainApps(List<ComponentName> mainApps) {
+        mMainApps = new ArrayList<ComponentName>(mainApps);
+        mChanged = true;
+    }
+
+    /**
+     * @return the targeted packages and their permissions, or null if they must be
+     *         discovered
+     */
+    public Map<String, List<PermissionInfo>> getPermissions() {
+        return mPermissions;
+    }
+
+    public void setPermissions(Map<String, List<PermissionInfo>> permissions) {
+        mPermissions = permissions;
+        mChanged = true;
+    }
+
+    /**
+     * Writes the snapshot if something new was discovered, replacing the file atomically.
+     */
+    public void writeIfChanged() {
+        if (!mChanged) {
+            return;
+        }
+        File target = new File(mFile);
+        File tmp = new File(mFile + ".tmp");
+        try {
+            DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(tmp)));
+            try {
+                out.writeInt(MAGIC);
+                out.writeShort(VERSION);
+                out.writeShort(0);
+                out.writeLong(mKey);
+                if (mMainApps == null) {
+                    out.writeInt(-1);
+                } else {
+                    out.writeInt(mMainApps.size());
+                    for (ComponentName app : mMainApps) {
+                        out.writeUTF(app.getPackageName());
+                        out.writeUTF(app.getClassName());
+                    }
+                }
+                if (mPermissions == null) {
+                    out.writeInt(-1);
+                } else {
+                    out.writeInt(mPermissions.size());
+                    for (Map.Entry<String, List<PermissionInfo>> e : mPermissions.entrySet()) {
+                        out.writeUTF(e.getKey());
+                        out.writeInt(e.getValue().size());
+                        for (PermissionInfo pi : e.getValue()) {
+                            out.writeUTF(pi.name);
+                            out.writeUTF(pi.group);
+                            out.writeInt(pi.protectionLevel);
+                        }
+                    }
+                }
+            } finally {
+                out.close();
+            }
+            if (!tmp.renameTo(target)) {
+                throw new IOException("Failed renaming " + tmp + " to " + target);
+            }
+            mChanged = false;
+        } catch (IOException e) {
+            Logger.err.println("** Warning: Failed writing startup cache " + mFile + ": " + e);
+        }
+    }
+}
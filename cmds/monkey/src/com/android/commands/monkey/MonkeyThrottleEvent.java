@@ -38,6 +38,10 @@ public class MonkeyThrottleEvent extends MonkeyEvent {
         mThrottle = throttle; //创建MonkeyThrottleEvent对象时，初始化间隔时间
     }
 
+    long getThrottleTime() {
+        return mThrottle;
+    }
+
     /**
      *
      * @param iwm wires to current window manager WMS系统服务（这里未使用）
@@ -47,17 +51,28 @@ public class MonkeyThrottleEvent extends MonkeyEvent {
      */
     @Override
     public int injectEvent(IWindowManager iwm, IActivityManager iam, int verbose) {
+        return sleep(mThrottle, verbose);
+    }
 
+    /**
+     * Waits for the given throttle. Also used for the throttle carried by an event itself,
+     * see {@link MonkeyEvent#getThrottle()}.
+     *
+     * @param throttle the delay in milliseconds
+     * @param verbose a log switch log等级
+     * @return 当线程被中断，则认为注入失败，其他情况均为成功
+     */
+    static int sleep(long throttle, int verbose) {
         if (verbose > 1) {
-            Logger.out.println("Sleeping for " + mThrottle + " milliseconds");
+            Logger.out.println("Sleeping for " + throttle + " milliseconds");
         }
         try {
-            Thread.sleep(mThrottle); //线程休眠指定的毫秒数……
+            Thread.sleep(throttle); //线程休眠指定的毫秒数……
         } catch (InterruptedException e1) { //如果发送线程中断
             Logger.out.println("** Monkey interrupted in sleep.");
             return MonkeyEvent.INJECT_FAIL;  //也算注入事件失败
         }
-        
+
         return MonkeyEvent.INJECT_SUCCESS;//返回成功
     }
 }
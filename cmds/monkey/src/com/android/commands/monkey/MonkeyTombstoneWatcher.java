@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2008 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.commands.monkey;
+
+import android.os.FileObserver;
+
+import java.io.File;
+import java.util.HashSet;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Watches the tombstone directory with inotify and hands new tombstones to the main loop.
+ * <p>
+ * A tombstone is published when it has been closed after writing, or moved into the
+ * directory complete, so the main loop never sees a partly written file and never has to
+ * list the directory or stat its files. Current tombstoned writes an O_TMPFILE and links
+ * it in with linkat(), which raises only a create event; a created file that already has
+ * content is published then, and the close event that may follow for the same name is
+ * not published again. Events arrive on the FileObserver thread; the main loop drains
+ * them without taking a lock.
+ * 使用inotify监控/data/tombstones目录，代替每次循环都遍历目录
+ */
+public class MonkeyTombstoneWatcher extends FileObserver {
+    private final File mDirectory;
+    private final String mPrefix;
+
+    // tombstone file names, in the order they were completed
+    private final ConcurrentLinkedQueue<String> mNewTombstones =
+            new ConcurrentLinkedQueue<String>(); //FileObserver线程写入，Monkey主线程读取
+
+    // names published on create, whose next close is not published again
+    private final HashSet<String> mPublishedOnCreate = new HashSet<String>(); //仅观察线程使用
+
+    /**
+     * @param directory the tombstone directory
+     * @param prefix the prefix of tombstone file names, other files are ignored
+     */
+    public MonkeyTombstoneWatcher(File directory, String prefix) {
+        super(directory, FileObserver.CREATE | FileObserver.CLOSE_WRITE | FileObserver.MOVED_TO
+                | FileObserver.DELETE);
+        mDirectory = directory;
+        mPrefix = prefix;
+    }
+
+    @Override
+    public void onEvent(int event, String path) {
+        if (path == null || !path.startsWith(mPrefix)) {
+            return;
+        }
+        switch (event & FileObserver.ALL_EVENTS) {
+            case FileObserver.CREATE:
+                // linked in complete from an O_TMPFILE; an empty file is still being written
+                if (new File(mDirectory, path).length() > 0) {
+                    mPublishedOnCreate.add(path);
+                    mNewTombstones.offer(path);
+                }
+                break;
+            case FileObserver.CLOSE_WRITE:
+                if (!mPublishedOnCreate.remove(path)) {
+                    mNewTombstones.offer(path);
+                }
+                break;
+            case FileObserver.MOVED_TO:
+                mPublishedOnCreate.remove(path);
+                mNewTombstones.offer(path);
+                break;
+            case FileObserver.DELETE:
+                mPublishedOnCreate.remove(path); //名字会被轮换复用
+                break;
+        }
+    }
+
+    /**
+     * Logs the tombstones completed since the last call.
+     *
+     * @return true if there were any
+     */
+    public boolean checkNewTombstones() {
+        String name = mNewTombstones.poll();
+        if (name == null) {
+            return false; //通常情况下只有一次无锁的poll
+        }
+        do {
+            File f = new File(mDirectory, name);
+            Logger.out.println("** New tombstone found: " + f.getAbsolutePath()
+                    + ", size: " + f.length());
+            name = mNewTombstones.poll();
+        } while (name != null);
+        return true;
+    }
+}
@@ -16,6 +16,7 @@
 
 package com.android.commands.monkey;
 
+import android.util.Pools;
 import android.view.InputDevice;
 
 
@@ -25,6 +26,11 @@ import android.view.InputDevice;
  * MonkeyTouchEvent is a MonkeyMotionEvent
  */
 public class MonkeyTouchEvent extends MonkeyMotionEvent {
+    private static final int MAX_POOL_SIZE = 256;
+
+    private static final Pools.SynchronizedPool<MonkeyTouchEvent> sPool =
+            new Pools.SynchronizedPool<MonkeyTouchEvent>(MAX_POOL_SIZE);
+
     /**
      *
      * @param action 表示动作,创建MonkeyTouchEvent对象，必须指定一个action
@@ -33,6 +39,29 @@ public class MonkeyTouchEvent extends MonkeyMotionEvent {
         super(MonkeyEvent.EVENT_TYPE_TOUCH, InputDevice.SOURCE_TOUCHSCREEN, action); //传入参数为事件类型、事件来源、需要执行的事件动作
     }
 
+    /**
+     * Returns a touch event from the pool, or a new one if the pool is empty. It goes back
+     * to the pool when {@link #recycle()} is called after injection.
+     */
+    public static MonkeyTouchEvent obtain(int action) {
+        MonkeyTouchEvent ev = sPool.acquire();
+        if (ev == null) {
+            ev = new MonkeyTouchEvent(action);
+        } else {
+            ev.reset(action);
+        }
+        ev.setRecyclable(true);
+        return ev;
+    }
+
+    @Override
+    public void recycle() {
+        if (isRecyclable()) {
+            setRecyclable(false);
+            sPool.release(this);
+        }
+    }
+
     @Override
     protected String getTypeLabel() {
         return "Touch";
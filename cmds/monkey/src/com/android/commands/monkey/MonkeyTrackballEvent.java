@@ -16,6 +16,7 @@
 
 package com.android.commands.monkey;
 
+import android.util.Pools;
 import android.view.InputDevice;
 
 /**
@@ -23,6 +24,11 @@ import android.view.InputDevice;
  * 轨迹球事件，继承MonkeyMotionEvent
  */
 public class MonkeyTrackballEvent extends MonkeyMotionEvent {
+    private static final int MAX_POOL_SIZE = 256;
+
+    private static final Pools.SynchronizedPool<MonkeyTrackballEvent> sPool =
+            new Pools.SynchronizedPool<MonkeyTrackballEvent>(MAX_POOL_SIZE);
+
     /**
      *
      * @param action 表示具体的轨迹球动作
@@ -31,6 +37,29 @@ public class MonkeyTrackballEvent extends MonkeyMotionEvent {
         super(MonkeyEvent.EVENT_TYPE_TRACKBALL, InputDevice.SOURCE_TRACKBALL, action); //传入参数，事件类型为EVENT_TYPE_TRACKBALL，事件来源为SOURCE_TRACKBALL
     }
 
+    /**
+     * Returns a trackball event from the pool, or a new one if the pool is empty. It goes back
+     * to the pool when {@link #recycle()} is called after injection.
+     */
+    public static MonkeyTrackballEvent obtain(int action) {
+        MonkeyTrackballEvent ev = sPool.acquire();
+        if (ev == null) {
+            ev = new MonkeyTrackballEvent(action);
+        } else {
+            ev.reset(action);
+        }
+        ev.setRecyclable(true);
+        return ev;
+    }
+
+    @Override
+    public void recycle() {
+        if (isRecyclable()) {
+            setRecyclable(false);
+            sPool.release(this);
+        }
+    }
+
     @Override
     protected String getTypeLabel() {
         return "Trackball";
@@ -17,6 +17,7 @@
 package com.android.commands.monkey;
 
 import java.text.SimpleDateFormat;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Set;
@@ -99,6 +100,20 @@ public abstract class MonkeyUtils {
             return mValidPackages.size() > 0;
         }
 
+        /**
+         * @return the packages set with -p or the allowlist file
+         */
+        public Set<String> getValidPackages() {
+            return Collections.unmodifiableSet(mValidPackages);
+        }
+
+        /**
+         * @return the packages set with --pkg-blacklist-file
+         */
+        public Set<String> getInvalidPackages() {
+            return Collections.unmodifiableSet(mInvalidPackages);
+        }
+
         /**
          * 检查是否包含某个有效包
          * @param pkg 包名